@@ -0,0 +1,99 @@
+package edu.cmu.hcii.whyline.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+
+import edu.cmu.hcii.whyline.Whyline;
+import edu.cmu.hcii.whyline.WhylineBatch;
+import edu.cmu.hcii.whyline.trace.Trace;
+import edu.cmu.hcii.whyline.util.Util;
+
+/**
+ * Points the Whyline at a scratch home folder while benchmarks run, so that they don't write into the user's traces and caches,
+ * and finds the recorded trace that the loading and query benchmarks use.
+ *
+ * @author Andrew J. Ko
+ *
+ */
+public final class BenchmarkHome {
+
+	/**
+	 * The system property naming the folder of a recorded trace. Record one with the Whyline on any program; the longer its trace, the steadier the numbers.
+	 */
+	public static final String TRACE_PROPERTY = "whyline.benchmark.trace";
+
+	private static File previousHome;
+
+	private BenchmarkHome() {}
+
+	/**
+	 * Switches to a fresh scratch home for the rest of this run, without touching the user's preferences, so a benchmark
+	 * that dies before calling restore() leaves the user's home alone. The scratch home has an empty working trace, laid out
+	 * the way the agent lays it out before a program runs, since the tracer writes into it as soon as it's loaded.
+	 */
+	public static synchronized File use() throws IOException {
+
+		if(previousHome == null) previousHome = Whyline.getHome();
+		File home = new File(System.getProperty("java.io.tmpdir"), "whyline-benchmarks-" + System.nanoTime());
+		Whyline.useHome(home);
+
+		File working = Whyline.getWorkingTraceFolder();
+		new File(working, Whyline.STATIC_FOLDER_PATH).mkdirs();
+		new File(working, Whyline.DYNAMIC_FOLDER_PATH).mkdirs();
+		new File(working, Whyline.HISTORY_PATH).mkdirs();
+		if(!Whyline.getWorkingSerialHistoryFolder().mkdirs()) throw new IOException("Couldn't make a working trace in " + home);
+
+		return home;
+
+	}
+
+	/**
+	 * Switches back to the home in use before use() and deletes the scratch home.
+	 */
+	public static synchronized void restore() throws IOException {
+
+		File scratch = Whyline.getHome();
+		if(previousHome != null) Whyline.useHome(previousHome);
+		previousHome = null;
+		if(scratch != null && scratch.exists() && scratch.getName().startsWith("whyline-benchmarks-"))
+			Util.deleteFolder(scratch);
+
+	}
+
+	public static File getRecordedTrace() {
+
+		String path = System.getProperty(TRACE_PROPERTY);
+		if(path == null) throw new IllegalStateException("Set -D" + TRACE_PROPERTY + " to the folder of a recorded trace.");
+		File trace = new File(path);
+		if(!trace.isDirectory()) throw new IllegalStateException("There's no trace at " + trace);
+		return trace;
+
+	}
+
+	/**
+	 * Copies the recorded trace into the scratch home, since loading a trace writes into its folder.
+	 */
+	public static File copyRecordedTrace(File home) throws IOException {
+
+		File copy = new File(home, "trace-" + System.nanoTime());
+		Util.copyFolder(getRecordedTrace(), copy, new Util.ProgressListener() {
+			public void notice(String notice) {}
+			public void progress(double percent) {}
+		});
+		return copy;
+
+	}
+
+	/**
+	 * Loads a copy of the recorded trace, waiting until it's done.
+	 */
+	public static Trace loadCopyOfRecordedTrace(File home) throws IOException, InterruptedException {
+
+		File copy = copyRecordedTrace(home);
+		Trace trace = WhylineBatch.load(copy);
+		if(trace == null) throw new IOException("Couldn't load the trace copied to " + copy);
+		return trace;
+
+	}
+
+}
@@ -0,0 +1,79 @@
+package edu.cmu.hcii.whyline.benchmarks;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import edu.cmu.hcii.whyline.analysis.AnalysisException;
+import edu.cmu.hcii.whyline.bytecode.*;
+
+/**
+ * Parsing, writing and analyzing classfiles, which the Whyline does for every class a program loads, both when instrumenting
+ * and when loading a trace. The classes measured are some of the Whyline's own, chosen for their size.
+ *
+ * @author Andrew J. Ko
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ClassfileBenchmark {
+
+	@Param({ "edu/cmu/hcii/whyline/util/IntegerVector", "edu/cmu/hcii/whyline/bytecode/Classfile", "edu/cmu/hcii/whyline/trace/Trace" })
+	public String className;
+
+	private byte[] bytes;
+	private Classfile classfile;
+	private final List<CodeAttribute> code = new ArrayList<CodeAttribute>();
+
+	@Setup(Level.Trial)
+	public void read() throws IOException, JavaSpecificationViolation, AnalysisException {
+
+		InputStream in = ClassfileBenchmark.class.getResourceAsStream("/" + className + ".class");
+		if(in == null) throw new IOException("Couldn't find " + className + " on the classpath");
+		ByteArrayOutputStream out = new ByteArrayOutputStream();
+		byte[] buffer = new byte[8192];
+		int length;
+		while((length = in.read(buffer)) > 0)
+			out.write(buffer, 0, length);
+		in.close();
+		bytes = out.toByteArray();
+
+		classfile = new Classfile(bytes);
+		for(MethodInfo method : classfile.getDeclaredMethods())
+			if(method.getCode() != null)
+				code.add(method.getCode());
+
+	}
+
+	@Benchmark
+	public Classfile parse() throws IOException, JavaSpecificationViolation, AnalysisException { return new Classfile(bytes); }
+
+	@Benchmark
+	public byte[] toByteArray() { return classfile.toByteArray(); }
+
+	/**
+	 * Analyzes the stack dependencies of every method in the class.
+	 */
+	@Benchmark
+	public int analyzeStackDependencies() throws AnalysisException {
+
+		int analyzed = 0;
+		for(CodeAttribute method : code) {
+			StackDependencies dependencies = new StackDependencies(method);
+			dependencies.analyze();
+			analyzed++;
+		}
+		return analyzed;
+
+	}
+
+}
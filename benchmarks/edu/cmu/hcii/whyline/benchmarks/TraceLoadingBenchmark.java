@@ -0,0 +1,70 @@
+package edu.cmu.hcii.whyline.benchmarks;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import edu.cmu.hcii.whyline.Whyline;
+import edu.cmu.hcii.whyline.WhylineBatch;
+import edu.cmu.hcii.whyline.trace.Trace;
+import edu.cmu.hcii.whyline.util.Util;
+
+/**
+ * Loading a recorded trace that hasn't been loaded before, from start to finish: its meta data, classfiles and call graph, 
+ * then the merge of its threads' serial traces into blocks, histories and indices. The serial history is usually most of the time, 
+ * but the loader doesn't time its phases separately, so this measures them all.
+ * 
+ * Each load is of a fresh copy, made before the load is timed, since loading writes into the trace's folder. The classfile analysis 
+ * cache is emptied before each load too, so that every load is a first load, rather than only the first.
+ *
+ * Requires -Dwhyline.benchmark.trace.
+ *
+ * @author Andrew J. Ko
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2)
+@Measurement(iterations = 5)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class TraceLoadingBenchmark {
+
+	private File home;
+	private File copy;
+
+	@Setup(Level.Trial)
+	public void use() throws IOException {
+
+		home = BenchmarkHome.use();
+		File serial = new File(BenchmarkHome.getRecordedTrace(), Whyline.SERIAL_PATH);
+		if(!serial.exists()) throw new IllegalStateException("The trace at " + BenchmarkHome.getRecordedTrace() + " was saved, so it has no serial history to load.");
+
+	}
+
+	@Setup(Level.Invocation)
+	public void copy() throws IOException {
+
+		if(Whyline.getAnalysisCacheFolder().exists()) Util.deleteFolder(Whyline.getAnalysisCacheFolder());
+		copy = BenchmarkHome.copyRecordedTrace(home);
+
+	}
+
+	@TearDown(Level.Invocation)
+	public void delete() throws IOException { Util.deleteFolder(copy); }
+
+	@TearDown(Level.Trial)
+	public void restore() throws IOException { BenchmarkHome.restore(); }
+
+	@Benchmark
+	public Trace loadRecordedTrace() throws IOException, InterruptedException {
+
+		Trace trace = WhylineBatch.load(copy);
+		if(trace == null) throw new IOException("Couldn't load the trace copied to " + copy);
+		return trace;
+
+	}
+
+}
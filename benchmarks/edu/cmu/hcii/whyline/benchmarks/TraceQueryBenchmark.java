@@ -0,0 +1,99 @@
+package edu.cmu.hcii.whyline.benchmarks;
+
+import java.io.IOException;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+
+import edu.cmu.hcii.whyline.trace.EventKind;
+import edu.cmu.hcii.whyline.trace.Trace;
+import edu.cmu.hcii.whyline.trace.Value;
+import edu.cmu.hcii.whyline.util.IntegerVector;
+
+/**
+ * The queries that answering questions makes most often, on random events of a recorded trace. Operand stack values are cached
+ * once they're found, so after warming up, that benchmark mostly measures the cache; with a trace larger than the cache budget, it
+ * measures finding them too. Run with -t to see how the queries scale when several threads ask at once.
+ *
+ * Requires -Dwhyline.benchmark.trace.
+ *
+ * @author Andrew J. Ko
+ *
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Djava.awt.headless=true")
+public class TraceQueryBenchmark {
+
+	private static final int NUMBER_OF_EVENTS_QUERIED = 1 << 16;
+
+	private Trace trace;
+
+	// Random events, and random events whose instructions have operands.
+	private int[] eventIDs;
+	private int[] eventIDsWithArguments;
+
+	@State(Scope.Thread)
+	public static class Cursor {
+
+		private int next = 0;
+
+		int next(int[] eventIDs) { 
+
+			int eventID = eventIDs[next];
+			next = (next + 1) & (eventIDs.length - 1);
+			return eventID;
+
+		}
+
+	}
+
+	@Setup(Level.Trial)
+	public void load() throws IOException, InterruptedException {
+
+		trace = BenchmarkHome.loadCopyOfRecordedTrace(BenchmarkHome.use());
+
+		// Always the same events, so runs are comparable.
+		Random random = new Random(0);
+		eventIDs = new int[NUMBER_OF_EVENTS_QUERIED];
+		for(int i = 0; i < eventIDs.length; i++)
+			eventIDs[i] = random.nextInt(trace.getNumberOfEvents());
+
+		IntegerVector withArguments = new IntegerVector(NUMBER_OF_EVENTS_QUERIED);
+		for(int attempts = 0; withArguments.size() < NUMBER_OF_EVENTS_QUERIED && attempts < NUMBER_OF_EVENTS_QUERIED * 100; attempts++) {
+			int eventID = random.nextInt(trace.getNumberOfEvents());
+			if(trace.getInstruction(eventID).getNumberOfArgumentProducers() > 0)
+				withArguments.append(eventID);
+		}
+		if(withArguments.size() < NUMBER_OF_EVENTS_QUERIED) throw new IllegalStateException("The trace has too few events with operands to query.");
+		eventIDsWithArguments = new int[NUMBER_OF_EVENTS_QUERIED];
+		for(int i = 0; i < eventIDsWithArguments.length; i++)
+			eventIDsWithArguments[i] = withArguments.get(i);
+
+	}
+
+	@TearDown(Level.Trial)
+	public void restore() throws IOException { 
+
+		System.out.println(trace.getCacheBudget().getStatistics());
+		BenchmarkHome.restore(); 
+
+	}
+
+	@Benchmark
+	public EventKind getKind(Cursor cursor) { return trace.getKind(cursor.next(eventIDs)); }
+
+	@Benchmark
+	public int getThreadID(Cursor cursor) { return trace.getThreadID(cursor.next(eventIDs)); }
+
+	@Benchmark
+	public int getStartID(Cursor cursor) { return trace.getStartID(cursor.next(eventIDs)); }
+
+	@Benchmark
+	public Value getOperandStackValue(Cursor cursor) { return trace.getOperandStackValue(cursor.next(eventIDsWithArguments), 0); }
+
+}
@@ -0,0 +1,85 @@
+package edu.cmu.hcii.whyline.benchmarks;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import edu.cmu.hcii.whyline.tracing.Tracer;
+
+/**
+ * The cost per event of the hooks that instrumented programs call. MONITOR writes nothing but the event's header, so it measures
+ * the header alone; the others add a value. Every hook writes to its thread's serial trace, so with more threads this also measures
+ * how well the tracer scales. Run main() to measure each hook with 1 to 64 threads.
+ *
+ * Each run writes a serial trace into a scratch Whyline home, which can be large. The tracer is shut down at the end of the run,
+ * before the scratch home is deleted, so that its shutdown hook doesn't write into a folder that's gone.
+ *
+ * @author Andrew J. Ko
+ *
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TracerBenchmark {
+
+	private static final int[] THREADS = { 1, 2, 4, 8, 16, 32, 64 };
+
+	// An arbitrary class and instruction; the tracer only writes these out.
+	private static final long INSTRUCTION_ID = (42L << 32) | 7;
+
+	private final Object object = new Object();
+	private int value = 0;
+
+	@State(Scope.Benchmark)
+	public static class Home {
+
+		@Setup(Level.Trial)
+		public void use() throws IOException { BenchmarkHome.use(); }
+
+		@TearDown(Level.Trial)
+		public void restore() throws IOException { 
+			
+			Tracer.shutdown();
+			BenchmarkHome.restore(); 
+			
+		}
+
+	}
+
+	@Benchmark
+	public void header(Home home) throws IOException { Tracer.MONITOR(INSTRUCTION_ID); }
+
+	@Benchmark
+	public void integerProduced(Home home) throws IOException { Tracer.INTEGER_PRODUCED(value++, INSTRUCTION_ID); }
+
+	@Benchmark
+	public void objectProduced(Home home) throws IOException { Tracer.OBJECT_PRODUCED(object, false, INSTRUCTION_ID); }
+
+	/**
+	 * Runs the tracer benchmarks with each number of threads in turn, passing along any other JMH options given.
+	 */
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+
+		CommandLineOptions commandLine = new CommandLineOptions(args);
+		for(int threads : THREADS) {
+			Options options = new OptionsBuilder()
+				.parent(commandLine)
+				.include(TracerBenchmark.class.getName() + "\\.")
+				.threads(threads)
+				.build();
+			new Runner(options).run();
+		}
+
+	}
+
+}
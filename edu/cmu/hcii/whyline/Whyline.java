@@ -25,6 +25,8 @@ public final class Whyline {
 	public static final int WHYLINE_FAILURE_EXIT_CODE = 711;
 
 	private static final String JDK_SOURCE_PATH = "JDK_SOURCE_PATH";
+	private static final String MAP_EVENT_IDS = "MAP_EVENT_IDS";
+	private static final String EVENT_SEGMENT = "EVENT_SEGMENT";
 	
 	private static final String WHYLINE_HOME_PATH_KEY = "whylineHomePath";
 	private static String WHYLINE_HOME;
@@ -36,6 +38,7 @@ public final class Whyline {
 	public static final String CALLS_NAME = "calls";
 	public static final String VALUES_NAME = "values";
 	public static final String CLASSIDS_NAME = "classids";
+	public static final String MAPPED_IDS_NAME = "mapped";
 
 	public static final String TRACE_FILE_SUFFIX = ".history";
 
@@ -59,6 +62,7 @@ public final class Whyline {
 	public static final String CALLS_PATH = RANDOM_PATH + File.separatorChar + CALLS_NAME;
 	public static final String VALUES_PATH = RANDOM_PATH + File.separatorChar + VALUES_NAME;
 	public static final String RANGES_PATH = RANDOM_PATH + File.separatorChar + "ranges";
+	public static final String CALL_TREES_PATH = RANDOM_PATH + File.separatorChar + "calltrees";
 	public static final String IO_PATH = RANDOM_PATH + File.separatorChar + "io";
 	public static final String EXCEPTIONS_PATH = RANDOM_PATH + File.separatorChar + "exceptions";
 	public static final String STATIC_ASSIGNMENTS_PATH = RANDOM_PATH + File.separatorChar + "globals";
@@ -67,7 +71,9 @@ public final class Whyline {
 	public static final String INSTANTIATIONS_PATH = RANDOM_PATH + File.separatorChar + "instantiations";
 	public static final String INITIALIZATIONS_PATH = RANDOM_PATH + File.separatorChar + "initializations";
 	public static final String RUNS_PATH = RANDOM_PATH + File.separatorChar + "runs";
+	public static final String SEGMENT_PATH = RANDOM_PATH + File.separatorChar + "segment";
 	public static final String INVOCATIONS_PATH = RANDOM_PATH + File.separatorChar + "invocations";
+	public static final String EXECUTIONS_PATH = RANDOM_PATH + File.separatorChar + "executions";
 	public static final String ARGUMENTS_PATH = RANDOM_PATH + File.separatorChar + "arguments";
 	public static final String IMAGE_PATH = ARGUMENTS_PATH + File.separatorChar + "image";
 	public static final String KEY_PATH = ARGUMENTS_PATH + File.separatorChar + "key";
@@ -82,13 +88,17 @@ public final class Whyline {
 	public static final String CLASSIDS_PATH = STATIC_FOLDER_PATH + File.separatorChar + CLASSIDS_NAME;
 	public static final String CALL_GRAPH_PATH = STATIC_FOLDER_PATH + File.separatorChar + "callgraph";
 	public static final String OUTPUT_PATH = STATIC_FOLDER_PATH + File.separatorChar + "output";
+	public static final String SOURCE_INDEX_PATH = STATIC_FOLDER_PATH + File.separatorChar + "sourceindex";
 
 	// GLOBAL FILE AND FOLDER NAMES
 	public static final String CLASS_CACHE_PATH = "classes";
 	public static final String ANALYZED_CLASS_CACHE_FOLDER_NAME = "uninstrumented";
-	public static final String INSTRUMENTED_CLASS_CACHE_FOLDER_NAME = "instrumented";
+	// Classes instrumented before global class IDs were widened are in "instrumented", and are ignored. 
+	public static final String INSTRUMENTED_CLASS_CACHE_FOLDER_NAME = "instrumented-wide";
+	public static final String ANALYSIS_CACHE_FOLDER_NAME = "analysis";
 	public static final String EXECUTIONS_FILE_NAME = "configurations.xml";
 	public static final String SAVED_TRACES_FOLDER_NAME = "saved";
+	public static final String SOURCE_INDEX_FOLDER_NAME = "sourceindex";
 	public static final String WORKING_TRACE_FOLDER_NAME = "recent";
 
 	private static File WORKING_TRACE_FOLDER;
@@ -105,7 +115,9 @@ public final class Whyline {
 	private static File CLASS_CACHE_FOLDER;	
 	private static File UNINSTRUMENTED_CLASS_CACHE_FOLDER;	
 	private static File INSTRUMENTED_CLASS_CACHE_FOLDER;	
+	private static File ANALYSIS_CACHE_FOLDER;	
 	private static File SAVED_TRACES_FOLDER;
+	private static File SOURCE_INDEX_FOLDER;
 	
 	public static File WHYLINE_JAR_PATH = null;
 
@@ -244,6 +256,41 @@ public final class Whyline {
 		
 	}
 	
+	/**
+	 * If true, newly loaded traces keep the kinds and instruction IDs of their events in a single memory-mapped file, 
+	 * rather than in blocks that are swapped in and out of memory.
+	 */
+	public static boolean isMappingEventIDs() {
+		
+		return getPreferences().getBoolean(MAP_EVENT_IDS, false);
+		
+	}
+
+	public static void setMappingEventIDs(boolean map) {
+
+		Preferences userPrefs = getPreferences();
+		userPrefs.putBoolean(MAP_EVENT_IDS, map);
+		try { userPrefs.flush(); } catch(BackingStoreException e) { e.printStackTrace(); }
+
+	}
+	
+	/**
+	 * The segment of traces with 64-bit event IDs to load, when loading them from their serial histories. 
+	 */
+	public static int getEventSegment() {
+		
+		return getPreferences().getInt(EVENT_SEGMENT, 0);
+		
+	}
+
+	public static void setEventSegment(int segment) {
+
+		Preferences userPrefs = getPreferences();
+		userPrefs.putInt(EVENT_SEGMENT, segment);
+		try { userPrefs.flush(); } catch(BackingStoreException e) { e.printStackTrace(); }
+
+	}
+	
 	public static void setHome(File home) {
 
 		Preferences userPrefs = getPreferences();
@@ -254,6 +301,15 @@ public final class Whyline {
 			e.printStackTrace();
 		}
 
+		useHome(home);
+		
+	}
+
+	/**
+	 * Like setHome(), but only for the rest of this run; the user's preferences still name their usual home.
+	 */
+	public static void useHome(File home) {
+
 		WHYLINE_FOLDER = home;
 		WHYLINE_FOLDER.mkdir();	
 
@@ -269,7 +325,9 @@ public final class Whyline {
 		CLASS_CACHE_FOLDER = new File(WHYLINE_FOLDER, CLASS_CACHE_PATH);	
 		UNINSTRUMENTED_CLASS_CACHE_FOLDER = new File(getClassCacheFolder(), ANALYZED_CLASS_CACHE_FOLDER_NAME);	
 		INSTRUMENTED_CLASS_CACHE_FOLDER = new File(getClassCacheFolder(), INSTRUMENTED_CLASS_CACHE_FOLDER_NAME);	
+		ANALYSIS_CACHE_FOLDER = new File(getClassCacheFolder(), ANALYSIS_CACHE_FOLDER_NAME);	
 		SAVED_TRACES_FOLDER = new File(WHYLINE_FOLDER, SAVED_TRACES_FOLDER_NAME);
+		SOURCE_INDEX_FOLDER = new File(WHYLINE_FOLDER, SOURCE_INDEX_FOLDER_NAME);
 		
 	}
 	
@@ -286,7 +344,9 @@ public final class Whyline {
 	public static File getClassCacheFolder() { return CLASS_CACHE_FOLDER; }
 	public static File getUninstrumentedClassCacheFolder() { return UNINSTRUMENTED_CLASS_CACHE_FOLDER; }
 	public static File getInstrumentedClassCacheFolder() { return INSTRUMENTED_CLASS_CACHE_FOLDER; }
+	public static File getAnalysisCacheFolder() { return ANALYSIS_CACHE_FOLDER; }
 	public static File getSavedTracesFolder() { return SAVED_TRACES_FOLDER; }
+	public static File getSourceIndexFolder() { return SOURCE_INDEX_FOLDER; }
 
 	public static final void debug(String message) {
 		
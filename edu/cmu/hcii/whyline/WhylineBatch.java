@@ -0,0 +1,156 @@
+package edu.cmu.hcii.whyline;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import edu.cmu.hcii.whyline.io.WindowState;
+import edu.cmu.hcii.whyline.qa.BatchAnswerer;
+import edu.cmu.hcii.whyline.source.JavaSourceFile;
+import edu.cmu.hcii.whyline.trace.Trace;
+import edu.cmu.hcii.whyline.trace.TraceListener;
+import edu.cmu.hcii.whyline.util.Util;
+
+/**
+ * Loads a trace and answers a file of questions about it without opening any windows, for answering questions about traces
+ * on machines without displays. Writes one line of tab separated values per question, with how long it took to answer,
+ * and a summary of the batch's throughput to the error stream. See {@link BatchAnswerer} for how to write questions.
+ *
+ * Usage: WhylineBatch &lt;trace folder&gt; &lt;questions file&gt; [&lt;answers file&gt; [&lt;threads&gt; [&lt;segment&gt;]]]
+ *
+ * Traces too long for 32-bit event IDs are loaded one segment at a time; the segment argument picks which, starting from 1, 
+ * and otherwise the one in the Whyline's preferences is loaded.
+ *
+ * @author Andrew J. Ko
+ *
+ */
+public class WhylineBatch {
+
+	public static void main(String[] args) throws Exception {
+
+		// This has to be set before anything touches AWT.
+		System.setProperty("java.awt.headless", "true");
+
+		if(args.length < 2) {
+			System.err.println("Usage: WhylineBatch <trace folder> <questions file> [<answers file> [<threads> [<segment>]]]");
+			System.exit(1);
+		}
+
+		File traceFolder = new File(args[0]);
+		File questionsFile = new File(args[1]);
+		File answersFile = args.length > 2 ? new File(args[2]) : null;
+		int numberOfThreads = args.length > 3 ? Integer.parseInt(args[3]) : Runtime.getRuntime().availableProcessors();
+		int segment = args.length > 4 ? Integer.parseInt(args[4]) - 1 : -1;
+
+		if(!traceFolder.exists()) {
+			System.err.println("Couldn't find a trace at " + traceFolder);
+			System.exit(1);
+		}
+
+		List<String> questions = readQuestions(questionsFile);
+
+		long beforeLoading = System.currentTimeMillis();
+		Trace trace = load(traceFolder, segment);
+		if(trace == null) System.exit(1);
+		System.err.println("Loaded " + Util.commas(trace.getNumberOfEvents()) + " events in " + (System.currentTimeMillis() - beforeLoading) + " ms");
+		if(trace.isTruncated())
+			System.err.println("The trace was truncated to " + trace.getSegmentDescription() + "; answers only cover these events");
+
+		long beforeAnswering = System.nanoTime();
+		List<BatchAnswerer.Result> results = new BatchAnswerer(trace).answer(questions, numberOfThreads);
+		long answeringTime = System.nanoTime() - beforeAnswering;
+
+		PrintStream out = answersFile == null ? System.out : new PrintStream(new BufferedOutputStream(new FileOutputStream(answersFile)));
+		BatchAnswerer.write(results, out);
+		if(out != System.out) out.close();
+
+		int answered = 0;
+		for(BatchAnswerer.Result result : results)
+			if(result.status.equals(BatchAnswerer.Result.ANSWERED)) answered++;
+		double seconds = answeringTime / 1000000000.0;
+		System.err.println("Answered " + answered + " of " + results.size() + " questions in " + (long)(seconds * 1000) + " ms on " + numberOfThreads + " threads (" + (results.size() / seconds) + " questions per second)");
+
+		System.err.println(trace.getCacheBudget().getStatistics());
+
+		System.exit(answered == results.size() ? 0 : 2);
+
+	}
+
+	/**
+	 * Reads one question per line, skipping blank lines and lines starting with #.
+	 */
+	private static List<String> readQuestions(File file) throws IOException {
+
+		List<String> questions = new ArrayList<String>();
+		BufferedReader reader = new BufferedReader(new FileReader(file));
+		try {
+			String line;
+			while((line = reader.readLine()) != null) {
+				line = line.trim();
+				if(line.length() > 0 && !line.startsWith("#"))
+					questions.add(line);
+			}
+		} finally {
+			reader.close();
+		}
+		return questions;
+
+	}
+
+	/**
+	 * Loads the trace, waiting until it's done, and returns it, or null if it couldn't be loaded.
+	 */
+	public static Trace load(File traceFolder) throws IOException, InterruptedException {
+
+		return load(traceFolder, -1);
+
+	}
+
+	/**
+	 * Loads the given segment of the trace, or the one in the Whyline's preferences if the segment is negative.
+	 */
+	public static Trace load(File traceFolder, int segment) throws IOException, InterruptedException {
+
+		final CountDownLatch loaded = new CountDownLatch(1);
+		final Exception[] problem = new Exception[1];
+
+		final Trace trace = new Trace(new TraceListener() {
+			private String lastMessage = null;
+			public void loadingMetadata() {}
+			public void doneLoadingMetadata() {}
+			public void loadingClassFiles() {}
+			public void doneLoadingClassFiles() {}
+			public void loadingProgress(String message, double percentLoaded) {
+				if(message != null && !message.equals(lastMessage)) System.err.println(message);
+				lastMessage = message;
+			}
+			public void doneLoading(long time) { loaded.countDown(); }
+			public void windowParsed(WindowState window) {}
+			public void ioEventsParsed(int inputTime) {}
+			public void exceptionDuringLoading(Exception e) {
+				problem[0] = e;
+				loaded.countDown();
+			}
+			public void additionalSourceLoaded(JavaSourceFile source) {}
+			public void blockEvent(boolean blockLoaded, int blockID, int frequency) {}
+		}, traceFolder);
+
+		if(segment >= 0) trace.setSegmentToLoad(segment);
+		trace.load(1000);
+		loaded.await();
+
+		if(problem[0] != null) {
+			System.err.println("Couldn't load the trace at " + traceFolder + ": " + problem[0]);
+			return null;
+		}
+
+		// The trace tells us it's done just before it marks itself done.
+		while(!trace.isDoneLoading())
+			Thread.sleep(10);
+
+		return trace;
+
+	}
+
+}
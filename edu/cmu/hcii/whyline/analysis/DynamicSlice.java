@@ -1,15 +1,26 @@
 package edu.cmu.hcii.whyline.analysis;
 
 import java.util.*;
-
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import edu.cmu.hcii.whyline.bytecode.Instruction;
 import edu.cmu.hcii.whyline.source.Line;
 import edu.cmu.hcii.whyline.source.Token;
 import edu.cmu.hcii.whyline.trace.*;
 import edu.cmu.hcii.whyline.ui.*;
+import edu.cmu.hcii.whyline.util.IntegerVector;
 
 /**
+ * Slices backwards from every execution of a line. The slicer explains one frontier of events at a time, in order of event ID, so
+ * that events near each other, which are usually in the same blocks, are explained together. Each frontier is split into runs of
+ * consecutive events whose dependencies are found by a pool of workers. Every event is explained at most once, so dependencies shared
+ * by many events, like those of an event in a loop, don't get explained over and over.
+ * 
  * @author Andrew J. Ko
  *
  */
@@ -67,13 +78,16 @@ public final class DynamicSlice implements SearchResultsInterface {
 		if(slicer.done) 
 			return slicer.slice.isEmpty() ? "Slice is empty." : "Done.";
 		else 
-			return "" + slicer.eventsToExplain.size() + " events left to explain...";
+			return "" + slicer.eventsLeftToExplain + " events left to explain...";
 		
 	}
 	
+	/**
+	 * Returns a copy of the tokens sliced so far, so the slice can be shown while it's still growing.
+	 */
 	public SortedSet<Token> getResults() {
 	
-		return slicer.slice;
+		synchronized(slicer.slice) { return new TreeSet<Token>(slicer.slice); }
 		
 	}
 	
@@ -83,51 +97,143 @@ public final class DynamicSlice implements SearchResultsInterface {
 	
 	private class Slicer extends Thread {
 
+		// The number of consecutive events in the frontier that one worker explains at a time.
+		private static final int EVENTS_PER_TASK = 256;
+
 		public final SortedSet<Token> slice = new TreeSet<Token>();
-		public final gnu.trove.TIntHashSet eventsToExplain;
-		public boolean done = false;
-		
+		public volatile int eventsLeftToExplain;
+		public volatile boolean done = false;
+
+		// The events that have been explained, or are in the frontier waiting to be.
+		private final BitSet eventsExplained;
+		private final Set<Line> linesSliced = new HashSet<Line>();
+
+		private int[] frontier;
+
 		private Slicer(gnu.trove.TIntHashSet eventsToExplain) {
 
-			this.eventsToExplain = new gnu.trove.TIntHashSet(eventsToExplain.toArray());			
+			super("Dynamic slicer");
+			setDaemon(true);
+
+			eventsExplained = new BitSet(trace.getNumberOfEvents());
+			frontier = eventsToExplain.toArray();
+			Arrays.sort(frontier);
+			for(int event : frontier)
+				eventsExplained.set(event);
+			eventsLeftToExplain = frontier.length;
 			
 		}
 		
 		public void run() {
 			
-			gnu.trove.TIntHashSet newEvents = new gnu.trove.TIntHashSet();
-			
-			while(eventsToExplain.size() > 0) {
+			ExecutorService workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread thread = new Thread(runnable, "Dynamic slice worker");
+					thread.setDaemon(true);
+					return thread;
+				}
+			});
 
-				synchronized(eventsToExplain) {
-				
-					for(int event : eventsToExplain.toArray()) {
+			try {
+
+				while(frontier.length > 0) {
 	
-						slice.addAll(trace.getInstruction(event).getLine().getTokensAfterFirstNonWhitespaceToken());
-						
-						List<Value> sd = trace.getOperandStackDependencies(event);
-						int md = trace.getHeapDependency(event);
+					// Split the frontier into runs of consecutive events and explain them in parallel.
+					List<Future<Explanation>> explanations = new ArrayList<Future<Explanation>>(frontier.length / EVENTS_PER_TASK + 1);
+					for(int first = 0; first < frontier.length; first += EVENTS_PER_TASK)
+						explanations.add(workers.submit(new Explanation(frontier, first, Math.min(frontier.length, first + EVENTS_PER_TASK))));
 	
-						if(md >= 0) newEvents.add(md);
-						for(Value value : sd)
-							if(value instanceof TraceValue)
-								newEvents.add(((TraceValue)value).getEventID());
-						
-					}
+					// Gather the lines and dependencies found, in the order of the frontier, skipping any we've already seen.
+					IntegerVector nextFrontier = new IntegerVector(frontier.length);
+					for(Future<Explanation> future : explanations) {
+	
+						Explanation explanation = future.get();
+	
+						List<Token> tokens = new ArrayList<Token>();
+						for(Line line : explanation.lines)
+							if(linesSliced.add(line))
+								tokens.addAll(line.getTokensAfterFirstNonWhitespaceToken());
+						if(!tokens.isEmpty())
+							synchronized(slice) { slice.addAll(tokens); }
+	
+						for(int i = 0; i < explanation.dependencies.size(); i++) {
+							int dependency = explanation.dependencies.get(i);
+							if(!eventsExplained.get(dependency)) {
+								eventsExplained.set(dependency);
+								nextFrontier.append(dependency);
+							}
+						}
 	
-					eventsToExplain.clear();
-					eventsToExplain.addAll(newEvents.toArray());
-					newEvents.clear();
+						eventsLeftToExplain -= explanation.last - explanation.first;
+	
+					}
 					
+					nextFrontier.sortInAscendingOrder();
+					frontier = new int[nextFrontier.size()];
+					for(int i = 0; i < frontier.length; i++)
+						frontier[i] = nextFrontier.get(i);
+					eventsLeftToExplain = frontier.length;
+	
 				}
-				
+
+			} 
+			catch(InterruptedException e) {}
+			catch(ExecutionException e) {
+				e.getCause().printStackTrace();
+			}
+			finally {
+				workers.shutdown();
 			}
 			
+			eventsLeftToExplain = 0;
 			done = true;
 						
 		}
 		
 	}
 
-}
+	/**
+	 * Finds the lines and the dependencies of a run of events in a frontier.
+	 */
+	private class Explanation implements Callable<Explanation> {
+		
+		private final int[] frontier;
+		private final int first, last;
+		
+		private final Set<Line> lines = new HashSet<Line>();
+		private final IntegerVector dependencies;
+		
+		public Explanation(int[] frontier, int first, int last) {
+			
+			this.frontier = frontier;
+			this.first = first;
+			this.last = last;
+			this.dependencies = new IntegerVector(Math.max(1, (last - first) * 2));
+			
+		}
+		
+		public Explanation call() {
+
+			for(int i = first; i < last; i++) {
+
+				int event = frontier[i];
 
+				Line line = trace.getInstruction(event).getLine();
+				if(line != null) lines.add(line);
+
+				List<Value> sd = trace.getOperandStackDependencies(event);
+				int md = trace.getHeapDependency(event);
+
+				if(md >= 0) dependencies.append(md);
+				for(Value value : sd)
+					if(value instanceof TraceValue)
+						dependencies.append(((TraceValue)value).getEventID());
+
+			}
+			return this;
+			
+		}
+		
+	}
+
+}
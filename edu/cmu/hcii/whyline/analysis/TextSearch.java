@@ -1,16 +1,27 @@
 package edu.cmu.hcii.whyline.analysis;
 
 import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
 
 import edu.cmu.hcii.whyline.source.JavaSourceFile;
 import edu.cmu.hcii.whyline.source.Line;
 import edu.cmu.hcii.whyline.source.ParseException;
+import edu.cmu.hcii.whyline.source.SourceIndex;
 import edu.cmu.hcii.whyline.source.Token;
 import edu.cmu.hcii.whyline.trace.JDKSource;
+import edu.cmu.hcii.whyline.trace.Trace;
 import edu.cmu.hcii.whyline.ui.WhylineUI;
 import edu.cmu.hcii.whyline.util.IntegerVector;
 
 /**
+ * Searches source for text. Rather than tokenizing every file, we ask the user's and the JDK's source indices which files might contain the
+ * text, and then tokenize and search just those, in parallel. Matches are added to the results as each file is searched, so they appear
+ * while the search continues.
+ * 
  * @author Andrew J. Ko
  *
  */
@@ -33,7 +44,8 @@ public class TextSearch implements SearchResultsInterface {
 	private final String query;
 	private final Mode mode;
 	private final WhylineUI whylineUI;
-	private boolean done = false;
+	private volatile boolean done = false;
+	private volatile boolean indexing = false;
 	
 	private int filesRemaining;
 	
@@ -52,57 +64,125 @@ public class TextSearch implements SearchResultsInterface {
 		Thread search = new Thread() {
 			public void run() {
 
-				for(JavaSourceFile source : whylineUI.getTrace().getAllSourceFiles())
-					check(source);
-			
-				if(mode == Mode.ALL)
-					for(JavaSourceFile source : JDKSource.getAllSource())
-						check(source);
+				ExecutorService workers = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+					public Thread newThread(Runnable runnable) {
+						Thread worker = new Thread(runnable, "text search");
+						worker.setDaemon(true);
+						return worker;
+					}
+				});
+
+				try {
+
+					Trace trace = whylineUI.getTrace();
+					
+					// Find the files that might contain the text. If there's no index, any file might.
+					indexing = true;
+					Set<String> userCandidates = new LinkedHashSet<String>();
+					SourceIndex userIndex = trace.getUserSourceIndex();
+					if(userIndex != null) userCandidates.addAll(userIndex.getFilesThatMightContain(query));
+					else
+						for(JavaSourceFile source : trace.getAllSourceFiles())
+							userCandidates.add(source.getFileName());
+
+					Set<String> jdkCandidates = new LinkedHashSet<String>();
+					if(mode == Mode.ALL) {
+						SourceIndex jdkIndex = JDKSource.getTextIndex();
+						if(jdkIndex != null) jdkCandidates.addAll(jdkIndex.getFilesThatMightContain(query));
+						else
+							for(JavaSourceFile source : JDKSource.getAllSource())
+								jdkCandidates.add(source.getFileName());
+						jdkCandidates.removeAll(userCandidates);
+					}
+					indexing = false;
+
+					synchronized(matches) { filesRemaining = userCandidates.size() + jdkCandidates.size(); }
+					
+					List<Future<?>> searches = new ArrayList<Future<?>>(userCandidates.size() + jdkCandidates.size());
+					for(String name : userCandidates)
+						search(trace.getSourceByQualifiedName(name), workers, searches);
+					for(String name : jdkCandidates)
+						search(JDKSource.getSourceForQualifiedName(name), workers, searches);
+					
+					for(Future<?> search : searches) {
+						try {
+							search.get();
+						} catch(ExecutionException e) {
+							e.getCause().printStackTrace();
+						}
+					}
+					
+				} catch(InterruptedException e) {
+				} finally {
+					workers.shutdown();
+					indexing = false;
+					done = true;
+				}
+				
+			}
+
+			private void search(final JavaSourceFile source, ExecutorService workers, List<Future<?>> searches) {
 				
-				done = true;
+				if(source == null) {
+					synchronized(matches) { filesRemaining--; }
+				}
+				else {
+					searches.add(workers.submit(new Runnable() {
+						public void run() { check(source); }
+					}));
+				}
 				
 			}
 			
 			private void check(JavaSourceFile source) {
-				synchronized(matches) {
 
-					try {
-						String string = source.getSourceAsString();
+				List<Token> tokensMatched = new ArrayList<Token>();
+				
+				try {
+					String string = source.getSourceAsString();
+					
+					if(string != null && query.length() > 0) {
 						
 						String lower = string.toLowerCase(Locale.ENGLISH);
 						IntegerVector matchIndices = new IntegerVector(3);
-						int index = 0;
-						// Find the character index of all matches.
+						int index = lower.indexOf(query);
+						// Find the character index of all matches, which are in increasing order.
 						while(index >= 0) {
-							index = lower.indexOf(query, index);
-							if(index > 0) {
-								matchIndices.append(index);
-								index++;	// Jump to the next character to start searching.
-							}
+							matchIndices.append(index);
+							// Jump to the next character to start searching.
+							index = lower.indexOf(query, index + 1);
 						}
-
-						// Find all tokens intersecting these ranges
+	
+						// Find all tokens intersecting these ranges. Since both the tokens and matches are in order, we 
+						// only have to pass through each once.
 						Line[] lines = source.getLines();
-						if(lines != null) {
-							int charIndex = 0; 
+						if(lines != null && !matchIndices.isEmpty()) {
+							int charIndex = 0;
+							int firstMatch = 0;
 							for(Line line : lines) {
 								for(Token token : line.getTokens()) {
+									int length = token.getText().length();
+									// Skip the matches before this token; they can't be in any of the tokens after it either.
+									while(firstMatch < matchIndices.size() && matchIndices.get(firstMatch) < charIndex)
+										firstMatch++;
 									// Does this token's character range contain any of the match indices?
-									for(int i = 0; i < matchIndices.size(); i++) {
-										int matchIndex = matchIndices.get(i);
-										if(matchIndex >= charIndex && matchIndex <= charIndex + token.getText().length())
-											matches.add(token);
-									}
-									charIndex += token.getText().length();
+									if(firstMatch < matchIndices.size() && matchIndices.get(firstMatch) <= charIndex + length)
+										tokensMatched.add(token);
+									charIndex += length;
 								}
 							}
 						}
 						
-					} catch (ParseException e1) {
 					}
+					
+				} catch (ParseException e1) {
+				}
 
+				synchronized(matches) {
+					matches.addAll(tokensMatched);
 					filesRemaining--;
 				}
+				
 			}
 
 		};
@@ -113,7 +193,12 @@ public class TextSearch implements SearchResultsInterface {
 	
 	public String getResultsDescription() { return "text search for \"" + query + "\""; }
 
-	public String getCurrentStatus() { return filesRemaining <= 0 ? "Done searching." : "" + filesRemaining + " files left to search."; }
+	public String getCurrentStatus() { 
+		
+		if(indexing) return "Finding files to search...";
+		synchronized(matches) { return filesRemaining <= 0 ? "Done searching." : "" + filesRemaining + " files left to search."; }
+		
+	}
 	
 	public SortedSet<Token> getResults() { synchronized(matches) { return new TreeSet<Token>(matches); } }
 	
@@ -5,6 +5,7 @@ import java.lang.ref.WeakReference;
 import java.util.*;
 
 import edu.cmu.hcii.whyline.analysis.AnalysisException;
+import edu.cmu.hcii.whyline.analysis.ControlDependencies;
 import edu.cmu.hcii.whyline.source.*;
 import edu.cmu.hcii.whyline.trace.Trace;
 
@@ -28,7 +29,7 @@ public final class Classfile implements FileInterface, Comparable<FileInterface>
 	private Classfile superclass;
 	private final ArrayList<Classfile> subclasses = new ArrayList<Classfile>(3);
 	private final ArrayList<Classfile> implementors = new ArrayList<Classfile>(3);
-	private TIntHashSet superclasses;
+	private volatile TIntHashSet superclasses;
 	
 	private ClassInfo[] interfaces;
 	private final ArrayList<Classfile> interfacesImplemented = new ArrayList<Classfile>(3);
@@ -39,7 +40,8 @@ public final class Classfile implements FileInterface, Comparable<FileInterface>
 	private HashMap<String, FieldInfo> fieldsByName = new HashMap<String,FieldInfo>();
 	private ArrayList<FieldInfo> fields;
 	private SourceFileAttribute sourceFile;
-	private JavaSourceFile source = null;
+	// Found the first time someone asks, which may be several query threads at once.
+	private volatile JavaSourceFile source = null;
 	private MethodInfo main = null;
 	private final int originalLength;
 	
@@ -67,6 +69,12 @@ public final class Classfile implements FileInterface, Comparable<FileInterface>
 			
 		}
 
+		public ControlDependencies getControlDependenciesFor(MethodInfo method) {
+			
+			return new ControlDependencies(method.getCode());
+			
+		}
+
 	};
 			
 	public Classfile(byte[] classfileBuffer) throws IOException, JavaSpecificationViolation, AnalysisException {
@@ -212,6 +220,100 @@ public final class Classfile implements FileInterface, Comparable<FileInterface>
 			
 	}
 	
+	/**
+	 * Reads the bytes of the next classfile in the given stream without parsing it, by following the lengths
+	 * in its constant pool, members and attributes. This lets us slice a stream of classfiles into pieces that can be parsed separately.
+	 */
+	public static byte[] readBytes(DataInputStream in) throws IOException {
+		
+		ByteArrayOutputStream bytes = new ByteArrayOutputStream(1024);
+		DataOutputStream out = new DataOutputStream(bytes);
+		
+		// Magic and versions
+		copy(in, out, 8);
+		
+		// Constant pool
+		int constantPoolCount = copyUnsignedShort(in, out);
+		for(int i = 1; i < constantPoolCount; i++) {
+			int tag = in.readUnsignedByte();
+			out.writeByte(tag);
+			switch(tag) {
+				case UTF8Info.tag :
+					copy(in, out, copyUnsignedShort(in, out));
+					break;
+				case IntegerInfo.tag :
+				case FloatInfo.tag :
+				case FieldrefInfo.tag :
+				case MethodrefInfo.tag :
+				case InterfaceMethodrefInfo.tag :
+				case NameAndTypeInfo.tag :
+					copy(in, out, 4);
+					break;
+				case LongInfo.tag :
+				case DoubleInfo.tag :
+					copy(in, out, 8);
+					// These take two entries.
+					i++;
+					break;
+				case ClassInfo.tag :
+				case StringInfo.tag :
+					copy(in, out, 2);
+					break;
+				default :
+					throw new IOException("Invalid constant pool tag: " + tag);
+			}
+		}
+		
+		// Access flags, this class and super class
+		copy(in, out, 6);
+		
+		// Interfaces
+		copy(in, out, copyUnsignedShort(in, out) * 2);
+		
+		// Fields and methods have the same layout: access flags, name, descriptor, and attributes.
+		for(int members = 0; members < 2; members++) {
+			int memberCount = copyUnsignedShort(in, out);
+			for(int i = 0; i < memberCount; i++) {
+				copy(in, out, 6);
+				copyAttributes(in, out);
+			}
+		}
+		
+		copyAttributes(in, out);
+		
+		out.flush();
+		return bytes.toByteArray();
+		
+	}
+	
+	private static void copyAttributes(DataInputStream in, DataOutputStream out) throws IOException {
+		
+		int attributeCount = copyUnsignedShort(in, out);
+		for(int i = 0; i < attributeCount; i++) {
+			copy(in, out, 2);
+			int length = in.readInt();
+			out.writeInt(length);
+			copy(in, out, length);
+		}
+		
+	}
+	
+	private static int copyUnsignedShort(DataInputStream in, DataOutputStream out) throws IOException {
+		
+		int value = in.readUnsignedShort();
+		out.writeShort(value);
+		return value;
+		
+	}
+	
+	private static void copy(DataInputStream in, DataOutputStream out, int length) throws IOException {
+		
+		byte[] buffer = new byte[length];
+		in.readFully(buffer);
+		out.write(buffer);
+		
+	}
+	
 	public static ClassInfo getSuperclass(byte[] bytes) {
 		
 		try {
@@ -331,7 +433,8 @@ public final class Classfile implements FileInterface, Comparable<FileInterface>
 	 */
 	private void determineSuperclasses() {
 
-		superclasses = new TIntHashSet(2);
+		// Build the set before publishing it, since the call graph is resolved by several threads at once.
+		TIntHashSet superclasses = new TIntHashSet(2);
 
 		Classfile clazz = this;
 		while(clazz != null) {
@@ -341,6 +444,8 @@ public final class Classfile implements FileInterface, Comparable<FileInterface>
 		}
 		superclasses.trimToSize();
 		
+		this.superclasses = superclasses;
+		
 	}
 	
 	/**
@@ -685,11 +790,21 @@ public final class Classfile implements FileInterface, Comparable<FileInterface>
 	
 	public JavaSourceFile getSourceFile() { 
 	
+		JavaSourceFile found = source;
+		if(found != null) return found;
+
 		Trace t = trace != null ? trace.get() : null;
-		if(source == null && t != null) source = t.getSourceFor(this);
-		if(source != null) source.linkClassfile(this);
-		
-		return source; 
+		if(t == null) return null;
+
+		synchronized(this) {
+			if(source == null) {
+				found = t.getSourceFor(this);
+				// Link before publishing, so that no one sees the source without this class in it.
+				if(found != null) found.linkClassfile(this);
+				source = found;
+			}
+			return source;
+		}
 	
 	}
 	
@@ -558,7 +558,7 @@ public final class CodeAttribute extends Attribute {
 	
 	public Set<Instruction> getControlDependenciesFor(Instruction inst) {
 
-		if(controlDependencies == null) controlDependencies = new ControlDependencies(this);
+		if(controlDependencies == null) controlDependencies = classfile.getStackDependenciesCache().getControlDependenciesFor(method);
 		return controlDependencies.getControlDependenciesOf(inst);
 		
 	}
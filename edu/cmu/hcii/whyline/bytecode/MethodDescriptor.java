@@ -30,7 +30,8 @@ public final class MethodDescriptor implements Iterable<String> {
 	private static HashMap<String,MethodDescriptor> staticDescriptors = new HashMap<String,MethodDescriptor>(10);
 	private static HashMap<String,MethodDescriptor> nonStaticDescriptors = new HashMap<String,MethodDescriptor>(10);
 
-	public static MethodDescriptor get(boolean isStatic, String descriptor) {
+	// Classfiles are parsed in parallel, so access to the pools is synchronized.
+	public static synchronized MethodDescriptor get(boolean isStatic, String descriptor) {
 		
 		MethodDescriptor desc = isStatic ? staticDescriptors.get(descriptor) : nonStaticDescriptors.get(descriptor);
 		if(desc == null) {
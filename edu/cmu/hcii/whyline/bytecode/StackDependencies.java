@@ -1,5 +1,8 @@
 package edu.cmu.hcii.whyline.bytecode;
 
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.util.*;
 
 import edu.cmu.hcii.whyline.analysis.AnalysisException;
@@ -48,6 +51,86 @@ public class StackDependencies {
 		
 	}
 	
+	/**
+	 * Reads dependencies saved with write(). The code must be the same code they were computed for.
+	 */
+	public StackDependencies(CodeAttribute code, DataInputStream in) throws IOException {
+		
+		this.code = code;
+		
+		int numberOfInstructionsWithProducers = in.readInt();
+		producersByInstructionIndex = new TIntObjectHashMap<InstructionProducers>(numberOfInstructionsWithProducers);
+		for(int i = 0; i < numberOfInstructionsWithProducers; i++) {
+			Instruction inst = code.getInstruction(in.readInt());
+			InstructionProducers producers = new InstructionProducers(inst);
+			for(int argument = 0; argument < producers.argumentProducers.length; argument++) {
+				int numberOfProducers = in.readUnsignedShort();
+				for(int j = 0; j < numberOfProducers; j++)
+					producers.add(argument, code.getInstruction(in.readInt()));
+			}
+			producersByInstructionIndex.put(inst.getIndex(), producers);
+		}
+		
+		consumersByInstructionIndex = readConsumers(code, in);
+		if(in.readBoolean())
+			additionalConsumers = readConsumers(code, in);
+		
+		analyzed = true;
+		
+	}
+	
+	private static TIntObjectHashMap<Instruction> readConsumers(CodeAttribute code, DataInputStream in) throws IOException {
+		
+		int size = in.readInt();
+		TIntObjectHashMap<Instruction> consumers = new TIntObjectHashMap<Instruction>(size);
+		for(int i = 0; i < size; i++) {
+			int producerIndex = in.readInt();
+			consumers.put(producerIndex, code.getInstruction(in.readInt()));
+		}
+		return consumers;
+		
+	}
+	
+	/**
+	 * Writes the analyzed dependencies as instruction indices.
+	 */
+	public void write(DataOutputStream out) throws IOException {
+		
+		out.writeInt(producersByInstructionIndex.size());
+		TIntObjectIterator<InstructionProducers> iterator = producersByInstructionIndex.iterator();
+		while(iterator.hasNext()) {
+			iterator.advance();
+			out.writeInt(iterator.key());
+			for(Producers producers : iterator.value().argumentProducers) {
+				int numberOfProducers = producers == null ? 0 : producers.getNumberOfProducers();
+				out.writeShort(numberOfProducers);
+				for(int i = 0; i < numberOfProducers; i++) {
+					// Null producers are the exception operand pushed by the JVM.
+					Instruction producer = producers.getProducer(i);
+					out.writeInt(producer == null ? -1 : producer.getIndex());
+				}
+			}
+		}
+		
+		writeConsumers(out, consumersByInstructionIndex);
+		out.writeBoolean(additionalConsumers != null);
+		if(additionalConsumers != null)
+			writeConsumers(out, additionalConsumers);
+		
+	}
+	
+	private static void writeConsumers(DataOutputStream out, TIntObjectHashMap<Instruction> consumers) throws IOException {
+		
+		out.writeInt(consumers.size());
+		TIntObjectIterator<Instruction> iterator = consumers.iterator();
+		while(iterator.hasNext()) {
+			iterator.advance();
+			out.writeInt(iterator.key());
+			out.writeInt(iterator.value().getIndex());
+		}
+		
+	}
+	
 	public Consumers getConsumersOf(Instruction inst) {
 
 		int index = inst.getIndex();
@@ -1,8 +1,10 @@
 package edu.cmu.hcii.whyline.bytecode;
 
 import edu.cmu.hcii.whyline.analysis.AnalysisException;
+import edu.cmu.hcii.whyline.analysis.ControlDependencies;
 
 /**
+ * Provides the stack and control dependencies of methods, so that they can be kept somewhere other than the methods themselves.
  * 
  * @author Andrew J. Ko
  *
@@ -10,5 +12,7 @@ import edu.cmu.hcii.whyline.analysis.AnalysisException;
 public interface StackDependenciesCache {
 
 	public StackDependencies getStackDependenciesFor(MethodInfo method) throws AnalysisException;
+
+	public ControlDependencies getControlDependenciesFor(MethodInfo method);
 	
 }
@@ -3,7 +3,6 @@ package edu.cmu.hcii.whyline.io;
 import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Iterator;
 
 import edu.cmu.hcii.whyline.trace.*;
@@ -14,118 +13,247 @@ import edu.cmu.hcii.whyline.util.Saveable;
  * output events from the history. The first thing we do is take the trace and extract
  * the output history from it.
  * 
+ * Event IDs are kept in an array in order of occurrence, so finding the events at, before, after, or between times is a binary search.
+ * Histories of events that are just views of the trace's arguments, like mouse and key events, can be lazy: they keep only the IDs,
+ * and make events when asked for them, so long input histories only cost an int per event.
+ * 
  * @author Andrew J. Ko
  *
  */
 public final class IOHistory<T extends IOEvent> implements Iterable<T>, Saveable {
 
-	private final ArrayList<T> events;
+	// How many events a lazy history keeps around after making them, so asking for the same few events doesn't make new ones every time.
+	private static final int RECENT_EVENTS = 64;
+
 	private final Trace trace;
 	private final IOHistory<? super T> parent;
+	private final EventFactory<T> factory;
+
+	// The IDs of the events, in increasing order, so that we can binary search them. The array is replaced before the size
+	// grows, so that a reader that reads the size first always sees an array at least that long.
+	private int[] eventIDs;
+	private volatile int size = 0;
+	
+	// Either the event at each index, or the lazy history that can make it. Lazy histories don't keep this at all.
+	private Object[] events;
 	
+	private final IOEvent[] recentEvents;
+
 	public IOHistory(IOHistory<? super T> parent, Trace trace) {
 
+		this(parent, trace, null);
+
+	}
+
+	/**
+	 * If given a factory, the history only remembers the IDs of the events added to it, and makes events as they're asked for.
+	 * This is only appropriate for events that keep no state of their own, since the same event may be made more than once.
+	 */
+	public IOHistory(IOHistory<? super T> parent, Trace trace, EventFactory<T> factory) {
+
 		this.parent = parent;
 		this.trace = trace;
+		this.factory = factory;
 
-		events = new ArrayList<T>(20000);
+		eventIDs = new int[20000];
+		events = factory == null ? new Object[20000] : null;
+		recentEvents = factory == null ? null : new IOEvent[RECENT_EVENTS];
 
 	}
 	
-	public void trimToSize() {
+	public synchronized void trimToSize() {
 		
-		events.trimToSize();
+		int[] newEventIDs = new int[size];
+		System.arraycopy(eventIDs, 0, newEventIDs, 0, size);
+		eventIDs = newEventIDs;
+
+		if(events != null) {
+			Object[] newEvents = new Object[size];
+			System.arraycopy(events, 0, newEvents, 0, size);
+			events = newEvents;
+		}
 		
 	}
 	
 	public void add(T event) { 
 		
-		assert events.isEmpty() || event.getEventID() > getLastEvent().getEventID() : "IO events must be added in order of occurrence.";
+		// Lazy histories give their ancestors themselves instead of the event, so that no one keeps the event.
+		add(event.getEventID(), factory == null ? event : this);
+		
+	}
+
+	/**
+	 * Adds either the event or the lazy history that can make it, and passes the same along to the parent.
+	 */
+	private synchronized void add(int eventID, Object eventOrHistory) {
+		
+		assert size == 0 || eventID > eventIDs[size - 1] : "IO events must be added in order of occurrence.";
+		
+		if(size == eventIDs.length) {
+			int[] newEventIDs = new int[Math.max(16, size * 2)];
+			System.arraycopy(eventIDs, 0, newEventIDs, 0, size);
+			eventIDs = newEventIDs;
+		}
+		eventIDs[size] = eventID;
+
+		if(events != null) {
+			if(size == events.length) {
+				Object[] newEvents = new Object[eventIDs.length];
+				System.arraycopy(events, 0, newEvents, 0, size);
+				events = newEvents;
+			}
+			events[size] = eventOrHistory;
+		}
 		
-		events.add(event);
-		if(parent != null) parent.add(event);
+		size++;
+
+		if(parent != null) parent.add(eventID, eventOrHistory);
 		
 	}
 
-	public int getNumberOfEvents() { return events.size(); }
+	public int getNumberOfEvents() { return size; }
 	
-	public T getEventAtIndex(int index) { return events.get(index); }
+	public int getEventIDAtIndex(int index) { 
 		
-	public T getMostRecentBeforeTime(int time) {
+		if(index < 0 || index >= size) throw new IndexOutOfBoundsException("There's no event at index " + index + " of " + size);
+		return eventIDs[index]; 
+		
+	}
+	
+	@SuppressWarnings("unchecked")
+	public T getEventAtIndex(int index) {
 		
-		int index = events.size() - 1;
+		int eventID = getEventIDAtIndex(index);
 		
-		while(index >= 0) {
+		if(factory != null) {
 			
-			T e = events.get(index);
-			if(e.getEventID() < time) {
-				return e;
+			synchronized(recentEvents) {
+				int slot = index % RECENT_EVENTS;
+				IOEvent recent = recentEvents[slot];
+				if(recent == null || recent.getEventID() != eventID) {
+					recent = factory.create(eventID);
+					recentEvents[slot] = recent;
+				}
+				return (T)recent;
 			}
-			index--;
 			
 		}
-		return null;
+		
+		Object event = events[index];
+		return event instanceof IOHistory ? (T)((IOHistory<?>)event).getEventAtTime(eventID) : (T)event;
 		
 	}
-	
-	public T getEventAtTime(int time) {
 
-		int index = events.size() - 1;
+	/**
+	 * Returns the index of the first event whose ID is greater than or equal to the given time, or the number of events if there isn't one.
+	 */
+	public int getIndexOfFirstEventAtOrAfter(int time) {
 		
-		while(index >= 0) {
-			
-			T e = events.get(index);
-			if(e.getEventID() == time) return e;
-			index--;
-			
+		// Read the size before the array, so that the array we search is at least that long.
+		int high = size;
+		int[] ids = eventIDs;
+		int low = 0;
+		while(low < high) {
+			int middle = (low + high) >>> 1;
+			if(ids[middle] < time) low = middle + 1;
+			else high = middle;
 		}
-		return null;
+		return low;
 		
 	}
 	
-	public T getNextAfterTime(int time) {
+	public T getMostRecentBeforeTime(int time) {
 		
-		int index = 0;
+		int index = getIndexOfFirstEventAtOrAfter(time) - 1;
+		return index < 0 ? null : getEventAtIndex(index);
 		
-		while(index < events.size()) {
-			
-			T e = events.get(index);
-			if(e.getEventID() > time) return e;
-			index++;
-			
-		}
-		return null;
+	}
+	
+	public T getEventAtTime(int time) {
+
+		int index = getIndexOfFirstEventAtOrAfter(time);
+		return index < size && eventIDs[index] == time ? getEventAtIndex(index) : null;
+		
+	}
+	
+	public T getNextAfterTime(int time) {
 		
+		int index = time == Integer.MAX_VALUE ? size : getIndexOfFirstEventAtOrAfter(time + 1);
+		return index < size ? getEventAtIndex(index) : null;
 		
 	}
 
-	public T getLastEvent() { return events.size() > 0 ? events.get(events.size() - 1) : null; }
-	public T getFirstEvent() { return events.size() > 0 ? events.get(0) : null; }
+	public T getLastEvent() { return size > 0 ? getEventAtIndex(size - 1) : null; }
+	public T getFirstEvent() { return size > 0 ? getEventAtIndex(0) : null; }
+
+	/**
+	 * Returns the number of events that occurred at or after the first time and at or before the last time.
+	 */
+	public int getNumberOfEventsBetween(int firstTime, int lastTime) {
+		
+		if(lastTime < firstTime) return 0;
+		int lastIndex = lastTime == Integer.MAX_VALUE ? size : getIndexOfFirstEventAtOrAfter(lastTime + 1);
+		return lastIndex - getIndexOfFirstEventAtOrAfter(firstTime);
+		
+	}
 	
-	public Iterator<T> iterator() { return events.iterator(); }
+	/**
+	 * Iterates through the events that occurred at or after the first time and at or before the last time, in order of occurrence.
+	 */
+	public Iterable<T> getEventsBetween(int firstTime, int lastTime) {
+		
+		int firstIndex = getIndexOfFirstEventAtOrAfter(firstTime);
+		return new EventsBeforeOrAfterIterator(true, firstIndex, firstIndex + getNumberOfEventsBetween(firstTime, lastTime));
+		
+	}
+	
+	public Iterator<T> iterator() { return new EventsBeforeOrAfterIterator(true, 0, size); }
+
 	public Iterable<T> getIteratorForEventsAfter(T event) { return new EventsBeforeOrAfterIterator(true, event); }
 	public Iterable<T> getIteratorForEventsBefore(T event) { return new EventsBeforeOrAfterIterator(false, event); }
 	
+	/**
+	 * Makes the events of a lazy history from their IDs.
+	 */
+	public static interface EventFactory<T extends IOEvent> {
+		
+		public T create(int eventID);
+		
+	}
+	
 	private class EventsBeforeOrAfterIterator implements Iterator<T>, Iterable<T> {
 		
 		private final boolean forward;
 		private int historyIndex;
+		private final int endIndex;
 		
 		public EventsBeforeOrAfterIterator(boolean forward, T startEvent) {
 			
 			this.forward = forward;
-			historyIndex = startEvent == null ? 0 : events.indexOf(startEvent);
-			if(historyIndex < 0) historyIndex = -1;			
+			this.endIndex = size;
+			
+			if(startEvent == null) historyIndex = 0;
+			else {
+				int index = getIndexOfFirstEventAtOrAfter(startEvent.getEventID());
+				historyIndex = index < endIndex && eventIDs[index] == startEvent.getEventID() ? index : -1;
+			}
 			
 			// Go the one after the given event.
-			next();
+			if(hasNext()) historyIndex += forward ? 1 : -1;
+			
+		}
+		
+		public EventsBeforeOrAfterIterator(boolean forward, int startIndex, int endIndex) {
+			
+			this.forward = forward;
+			this.historyIndex = startIndex;
+			this.endIndex = endIndex;
 			
 		}
 		
 		public boolean hasNext() {
 			
-			if(historyIndex < 0) return false;
-			return forward ? historyIndex <= events.size() - 1 : historyIndex >= 0; 
+			return historyIndex >= 0 && historyIndex < endIndex; 
 			
 		}
 
@@ -133,7 +261,7 @@ public final class IOHistory<T extends IOEvent> implements Iterable<T>, Saveable
 
 			if(!hasNext()) return null;
 
-			T nextEvent = events.get(historyIndex);
+			T nextEvent = getEventAtIndex(historyIndex);
 			historyIndex += forward ? 1 : -1;
 			return nextEvent;
 			
@@ -147,9 +275,10 @@ public final class IOHistory<T extends IOEvent> implements Iterable<T>, Saveable
 
 	public void write(DataOutputStream out) throws IOException {
 		
-		out.writeInt(getNumberOfEvents());
-		for(IOEvent io : events)
-			out.writeInt(io.getEventID());
+		int numberOfEvents = getNumberOfEvents();
+		out.writeInt(numberOfEvents);
+		for(int i = 0; i < numberOfEvents; i++)
+			out.writeInt(eventIDs[i]);
 
 	}
 
@@ -198,6 +198,9 @@ public class WindowParser {
 		parser = null;
 		parsed = true;
 		
+		for(Object window : windowsByWindowID.getValues())
+			((WindowState)window).makeKeyframesInBackground();
+		
 	}
 	
 }
\ No newline at end of file
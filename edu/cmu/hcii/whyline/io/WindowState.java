@@ -4,18 +4,34 @@ import java.awt.*;
 import java.util.List;
 import java.awt.image.BufferedImage;
 import java.util.*;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 import edu.cmu.hcii.whyline.ui.*;
 import edu.cmu.hcii.whyline.ui.io.GraphicsContext;
+import gnu.trove.TIntArrayList;
+import gnu.trove.TIntHashSet;
 import gnu.trove.TLongLongHashMap;
 import gnu.trove.TLongObjectHashMap;
 
 /**
+ * Drawing the window at an event replays its repaints up to the event. So that scrubbing through a long history doesn't replay
+ * everything every time, we take keyframes of the window's image before the first repaint after every so many render events,
+ * and start replaying from the latest one before the event. Keyframes are stored compressed, and only so many bytes of them are kept,
+ * evicting the least recently used. They're made as they're needed, and once the window is parsed, ahead of time in the background.
+ * 
+ * Render events are also indexed by where they were drawn, so finding the events under the mouse only tests the events near it,
+ * rather than every event in the window's history.
+ * 
  * @author Andrew J. Ko
  *
  */
 public final class WindowState {
 
+	private static final int RENDER_EVENTS_PER_KEYFRAME = 5000;
+	private static final int MAXIMUM_KEYFRAME_BYTES = 16 * 1024 * 1024;
+
 	private final WindowParser parser;
 
 	private final ArrayList<Repaint> repaints = new ArrayList<Repaint>(1000);
@@ -37,6 +53,20 @@ public final class WindowState {
 	private int maxHeight = 1;
 	private final SortedSet<DrawImageEvent> drawImagesSkipped = new TreeSet<DrawImageEvent>();;
 	
+	// Render events by where they were drawn, so that finding the events at a location only looks at events near it.
+	// Events drawn into offscreen images are indexed by where they are in the image.
+	private final EventGrid windowEvents = new EventGrid();
+	private final TLongObjectHashMap<EventGrid> imageEventsByImageID = new TLongObjectHashMap<EventGrid>(20);
+	private final TIntHashSet offscreenDrawIDs = new TIntHashSet(1000);
+	
+	// The indices of the repaints that keyframes are taken before, in increasing order.
+	private final TIntArrayList keyframeRepaints = new TIntArrayList();
+	private int renderEventsSinceLastKeyframe = 0;
+
+	// Keyframes by the index of the repaint they're before, in order of least to most recent use.
+	private final LinkedHashMap<Integer,Keyframe> keyframesByRepaint = new LinkedHashMap<Integer,Keyframe>(16, .75f, true);
+	private int keyframeBytes = 0;
+
 	public int getMaxWidth() { return maxWidth; }
 	public int getMaxHeight() { return maxHeight; }
 	
@@ -72,6 +102,11 @@ public final class WindowState {
 				
 		repaints.add(repaint);
 		
+		if(renderEventsSinceLastKeyframe >= RENDER_EVENTS_PER_KEYFRAME) {
+			keyframeRepaints.add(repaints.size() - 1);
+			renderEventsSinceLastKeyframe = 0;
+		}
+		
 		// Now we prepare the next repaint. Restore the graphics context back to this view's context.
 		currentRepaintsGraphics = (Graphics2D)image.getGraphics();
 		currentRepaintsGraphics.addRenderingHints(new RenderingHints(java.awt.RenderingHints.KEY_TEXT_ANTIALIASING, java.awt.RenderingHints.VALUE_TEXT_ANTIALIAS_ON)); 
@@ -101,7 +136,10 @@ public final class WindowState {
 		// If the repaints are empty, add one so that we can add this event to it.
 		if(!hasRepaints()) addRepaint(null);
 		
-		if(event instanceof RenderEvent) getLastRepaint().addEvent((RenderEvent)event);
+		if(event instanceof RenderEvent) {
+			getLastRepaint().addEvent((RenderEvent)event);
+			renderEventsSinceLastKeyframe++;
+		}
 		else if(event instanceof ModifyClipEvent) clipEvents.add((ModifyClipEvent)event);
 
 		// If we're finding a get graphics output event that's not a repaint marker, that it's an image.
@@ -174,6 +212,7 @@ public final class WindowState {
 					drawImageEventByImageID.put(imageID, drawImages);
 				}
 				drawImages.add(drawImage);
+				offscreenDrawIDs.add(drawImage.getEventID());
 				
 			}
 			else {
@@ -211,6 +250,21 @@ public final class WindowState {
 				}
 				
 				visibleEvents.add((RenderEvent)event);
+				
+				// Events without boundaries can't contain any point, so there's no need to index them.
+				Rectangle bounds = ((RenderEvent)event).getClippedBoundaries();
+				if(bounds != null) {
+					if(context.representsWindow()) windowEvents.add((RenderEvent)event, bounds);
+					else {
+						long imageID = imageIDByContextID.get(id);
+						EventGrid imageEvents = imageEventsByImageID.get(imageID);
+						if(imageEvents == null) {
+							imageEvents = new EventGrid();
+							imageEventsByImageID.put(imageID, imageEvents);
+						}
+						imageEvents.add((RenderEvent)event, bounds);
+					}
+				}
 					
 			}
 			
@@ -234,70 +288,168 @@ public final class WindowState {
 		int newWidth = lastRepaint.getGetGraphicsEvent().getWidth();
 		int newHeight = lastRepaint.getGetGraphicsEvent().getHeight();
 
-		int newX = 0;
-		int newY = 0;
-		
 		Graphics targetContext = targetImage.createGraphics();
 		
-		Image lastImageDrawn = null;
-		
-		// The window parser may still be parsing this, so we need to make sure we lock on this before we loop through the repaints.
-		synchronized(this) {
+		// Start from the latest keyframe before the event, if there is one.
+		Frame frame = new Frame();
+		int keyframe = getIndexOfKeyframeBefore(eventID);
+		int firstRepaint = 0;
+		if(keyframe >= 0) {
+			firstRepaint = keyframeRepaints.get(keyframe);
+			getKeyframe(keyframe).restore(frame);
+		}
 		
-			for(Repaint repaint : repaints) {
+		replay(frame, firstRepaint, repaints.size(), eventID, targetContext);
 
-				if(repaint.getGetGraphicsEvent().getEventID() > eventID)
-					break;
-				
-				int x = (int) repaint.getGetGraphicsEvent().getWindowX(); 
-				int y = (int) repaint.getGetGraphicsEvent().getWindowY(); 
-				if(!(x == 0 && y == 0)) {
-					newX = x;
-					newY = y;
-				}
-				
-				// Don't draw past the point we've parsed to.
-				if(parser.getLastEventIDParsed() < repaint.getLastEventID())
-					break;
-				
-				// If this is a new one...
-				if(lastImageDrawn != repaint.getImage()) {
-	
-					// if we're done with an image, render it into the target.
-					if(lastImageDrawn != null)
-						targetContext.drawImage(lastImageDrawn, 0, 0, null);
-					
-					lastImageDrawn = repaint.getImage();
-	
-					// Clear the new image	
-					Graphics2D imageGraphics = (Graphics2D)lastImageDrawn.getGraphics();
-					imageGraphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
-					imageGraphics.setColor(UI.getPanelLightColor());
-					imageGraphics.fillRect(0, 0, lastImageDrawn.getWidth(null), lastImageDrawn.getHeight(null));				
-					
-				}
+		targetContext.drawImage(frame.image, 0, 0, null);
+		
+		return new Rectangle(frame.x, frame.y, newWidth, newHeight);
+		
+	}
 	
-				lastRepaint = repaint;
+	/**
+	 * Paints the given range of repaints' events up to the given event ID, continuing from the given frame.
+	 * If given a target, images that are replaced by larger ones are drawn into it as they're replaced.
+	 * 
+	 * @return True if every repaint in the range was painted.
+	 */
+	private boolean replay(Frame frame, int firstRepaint, int lastRepaint, int eventID, Graphics targetContext) {
+
+		for(int i = firstRepaint; i < lastRepaint; i++) {
+
+			Repaint repaint = repaints.get(i);
+			
+			if(repaint.getGetGraphicsEvent().getEventID() > eventID)
+				return false;
+			
+			int x = (int) repaint.getGetGraphicsEvent().getWindowX(); 
+			int y = (int) repaint.getGetGraphicsEvent().getWindowY(); 
+			if(!(x == 0 && y == 0)) {
+				frame.x = x;
+				frame.y = y;
+			}
+			
+			// Don't draw past the point we've parsed to.
+			if(parser.getLastEventIDParsed() < repaint.getLastEventID())
+				return false;
+			
+			// If this is a new one...
+			if(frame.image != repaint.getImage()) {
+
+				// if we're done with an image, render it into the target.
+				if(frame.image != null && targetContext != null)
+					targetContext.drawImage(frame.image, 0, 0, null);
 				
-				if(repaint.getGetGraphicsEvent().getEventID() > eventID) break;
+				frame.image = repaint.getImage();
+
+				// Clear the new image	
+				Graphics2D imageGraphics = (Graphics2D)frame.image.getGraphics();
+				imageGraphics.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+				imageGraphics.setColor(UI.getPanelLightColor());
+				imageGraphics.fillRect(0, 0, frame.image.getWidth(null), frame.image.getHeight(null));				
 				
-				for(RenderEvent event : repaint) {
-					
-					if(event.getEventID() > eventID)
-						break;
-										
-					if(event.isVisibleAfter(eventID))
-						event.paintByMemory();
+			}
 
-				}
+			for(RenderEvent event : repaint) {
 				
+				if(event.getEventID() > eventID)
+					return false;
+									
+				if(event.isVisibleAfter(eventID))
+					event.paintByMemory();
+
 			}
 			
 		}
+		
+		return true;
+		
+	}
+	
+	/**
+	 * Returns the index of the latest keyframe whose repaint starts at or before the given event and whose previous repaints have been parsed, or -1 if there isn't one. 
+	 */
+	private int getIndexOfKeyframeBefore(int eventID) {
+		
+		int low = 0;
+		int high = keyframeRepaints.size() - 1;
+		int result = -1;
+		while(low <= high) {
+			int middle = (low + high) >>> 1;
+			if(repaints.get(keyframeRepaints.get(middle)).getGetGraphicsEvent().getEventID() <= eventID) {
+				result = middle;
+				low = middle + 1;
+			}
+			else high = middle - 1;
+		}
+		
+		while(result >= 0 && parser.getLastEventIDParsed() < repaints.get(keyframeRepaints.get(result) - 1).getLastEventID())
+			result--;
+		
+		return result;
+		
+	}
+	
+	/**
+	 * Returns the given keyframe, making it from the latest earlier keyframe we have if we don't have it.
+	 */
+	private Keyframe getKeyframe(int keyframe) {
+		
+		int repaint = keyframeRepaints.get(keyframe);
+		Keyframe frame = keyframesByRepaint.get(repaint);
+		if(frame != null) return frame;
+		
+		Frame state = new Frame();
+		int firstRepaint = 0;
+		for(int earlier = keyframe - 1; earlier >= 0; earlier--) {
+			Keyframe earlierFrame = keyframesByRepaint.get(keyframeRepaints.get(earlier));
+			if(earlierFrame != null) {
+				earlierFrame.restore(state);
+				firstRepaint = keyframeRepaints.get(earlier);
+				break;
+			}
+		}
+		
+		// Paint everything before the keyframe's repaint as it would look just before it.
+		boolean replayed = replay(state, firstRepaint, repaint, repaints.get(repaint).getGetGraphicsEvent().getEventID() - 1, null);
+		assert replayed : "Couldn't replay the repaints before keyframe " + keyframe + "; have they been parsed?";
+
+		frame = new Keyframe(state);
+		keyframesByRepaint.put(repaint, frame);
+		keyframeBytes += frame.getSize();
+
+		// Evict the least recently used keyframes until we're within our budget, keeping the one we just made.
+		Iterator<Keyframe> keyframes = keyframesByRepaint.values().iterator();
+		while(keyframeBytes > MAXIMUM_KEYFRAME_BYTES && keyframesByRepaint.size() > 1) {
+			Keyframe leastRecentlyUsed = keyframes.next();
+			keyframeBytes -= leastRecentlyUsed.getSize();
+			keyframes.remove();
+		}
 
-		targetContext.drawImage(lastImageDrawn, 0, 0, null);
+		return frame;
 		
-		return new Rectangle(newX, newY, newWidth, newHeight);
+	}
+	
+	/**
+	 * Makes keyframes for this window in a background thread, from first to last, until there are as many as we'll keep.
+	 * Should be called once the window has been parsed.
+	 */
+	public void makeKeyframesInBackground() {
+		
+		Thread keyframer = new Thread("Whyline keyframe renderer") {
+			public void run() {
+				for(int keyframe = 0; ; keyframe++) {
+					// Only hold the lock for one keyframe at a time, so that we don't make the UI wait.
+					synchronized(WindowState.this) {
+						if(keyframe >= keyframeRepaints.size() || keyframeBytes > MAXIMUM_KEYFRAME_BYTES / 2) return;
+						getKeyframe(keyframe);
+					}
+				}
+			}
+		};
+		keyframer.setDaemon(true);
+		keyframer.setPriority(Thread.MIN_PRIORITY);
+		keyframer.start();
 		
 	}
 
@@ -349,53 +501,240 @@ public final class WindowState {
 
 		drawImagesSkipped.clear();
 
-		boolean done = false;
-		for(Repaint repaint : repaints) {
-			if(done) break;
-			for(RenderEvent event : repaint) {
+		// Find the draws of offscreen images that are visible after the event and contain the point. Draws can be into
+		// windows or other images, so we look in every grid.
+		ArrayList<RenderEvent> candidates = new ArrayList<RenderEvent>();
+		windowEvents.addEventsAt(x, y, eventID, true, candidates);
+		for(Object imageEvents : imageEventsByImageID.getValues())
+			((EventGrid)imageEvents).addEventsAt(x, y, eventID, true, candidates);
 
-				if(event.getEventID() > eventID) {
-					done = true;
-					break;
+		for(RenderEvent candidate : candidates) {
+			
+			if(!(candidate instanceof DrawImageEvent) || !offscreenDrawIDs.contains(candidate.getEventID())) continue;
+			DrawImageEvent draw = (DrawImageEvent)candidate;
+			if(!draw.isVisibleAfter(eventID) || !draw.contains(x, y)) continue;
+
+			// Was anything drawn into the image by the given event? If not, we don't skip the draw.
+			long imageID = draw.getImageID();
+			EventGrid imageEvents = imageEventsByImageID.get(imageID);
+			if(imageEvents == null || imageEvents.getFirstEventID() > eventID) continue;
+
+			drawImagesSkipped.add(draw);
+			List<DrawImageEvent> drawImages = drawImageEventByImageID.get(imageID);
+
+			// Now we need to see if the mouse is over the specific render event. To do this, we'll translate the x, y coordinates to the image coordinate space.
+			int imageX = x - draw.getWindowX();
+			int imageY = y - draw.getWindowY();
+			ArrayList<RenderEvent> imageCandidates = new ArrayList<RenderEvent>();
+			imageEvents.addEventsAt(imageX, imageY, eventID, false, imageCandidates);
+			for(RenderEvent event : imageCandidates) {
+				if(event.getEventID() <= eventID && event.contains(imageX, imageY)) {
+					event.setRenderers(drawImages);
+					events.add(new GraphicalEventAppearance(event, draw));
 				}
+			}
+			
+		}
+
+		// Then find the window's events that are visible and contain the point, and are NOT draw image events that we've skipped above...
+		candidates.clear();
+		windowEvents.addEventsAt(x, y, eventID, true, candidates);
+		for(RenderEvent event : candidates)
+			if(event.isVisibleAfter(eventID) && event.contains(x, y) && !drawImagesSkipped.contains(event))
+				events.add(new GraphicalEventAppearance(event, event));
+		
+		return events;
 
-				long graphicsID = event.getGraphicsID();
-				GraphicsContext context = contextsByContextIDs.get(graphicsID);
-				// If this was an image drawn into a window, we want to wait until we find the primitive paint.
-				if(!context.representsWindow()) {
-
-					// Where was it actually drawn on screen? Was the image available at this time?
-					// To answer these questions, we need to find the image draw event that drew the image that
-					// generated this events graphics context.
-
-					// graphicsID -> imageID -> draw image event
-					// Find all of the draws of this image and see if any of them are visible after the given event
-					// and contain the given point.
-					long imageID = imageIDByContextID.get(graphicsID);
-					List<DrawImageEvent> drawImages = drawImageEventByImageID.get(imageID);
-					if(drawImages != null) {
-						for(DrawImageEvent draw : drawImages) {
-							if(draw.isVisibleAfter(eventID) && draw.contains(x, y)) {
-								event.setRenderers(drawImages);
-								drawImagesSkipped.add(draw);
-								// Now we need to see if the mouse is over the specific render event. To do this, we'll translate the x, y coordinates to the image coordinate space.
-								if(event.contains(x - draw.getWindowX(), y - draw.getWindowY())) {
-									events.add(new GraphicalEventAppearance(event, draw));
-								}
+	}
+	
+	/**
+	 * A grid of render events by their boundaries. Each event goes in the finest level of cells where it touches only a few,
+	 * so that large events don't fill many small cells. Events too large for any level are kept in a list that's always searched.
+	 * Each cell is sorted by event ID, so that searches for what was drawn by some event stop at that event, rather than
+	 * going through everything drawn there later in the trace.
+	 */
+	private static final class EventGrid {
+		
+		// Cells are 64, 512 and 4096 pixels on a side.
+		private static final int[] CELL_SIZE_BITS = { 6, 9, 12 };
+		private static final int MAXIMUM_CELLS_PER_EVENT = 16;
+		
+		private final ArrayList<TLongObjectHashMap<ArrayList<RenderEvent>>> cellsByLevel = new ArrayList<TLongObjectHashMap<ArrayList<RenderEvent>>>(CELL_SIZE_BITS.length);
+		private final ArrayList<RenderEvent> eventsInNoCell = new ArrayList<RenderEvent>();
+		private int firstEventID = Integer.MAX_VALUE;
+		
+		public EventGrid() {
+			
+			for(int level = 0; level < CELL_SIZE_BITS.length; level++)
+				cellsByLevel.add(new TLongObjectHashMap<ArrayList<RenderEvent>>());
+			
+		}
+		
+		private static long getCellKey(long column, long row) { return (column << 32) | (row & 0xFFFFFFFFL); }
+		
+		public int getFirstEventID() { return firstEventID; }
+		
+		public void add(RenderEvent event, Rectangle bounds) {
+			
+			firstEventID = Math.min(firstEventID, event.getEventID());
+			
+			// RenderEvent.contains() tests a slightly larger area than the event's boundaries, so we do too.
+			long left = (long)bounds.x - 1;
+			long top = (long)bounds.y - 1;
+			long right = (long)bounds.x + bounds.width + 1;
+			long bottom = (long)bounds.y + bounds.height + 1;
+			
+			for(int level = 0; level < CELL_SIZE_BITS.length; level++) {
+				
+				int bits = CELL_SIZE_BITS[level];
+				long firstColumn = left >> bits, lastColumn = right >> bits;
+				long firstRow = top >> bits, lastRow = bottom >> bits;
+				
+				if((lastColumn - firstColumn + 1) * (lastRow - firstRow + 1) <= MAXIMUM_CELLS_PER_EVENT) {
+					TLongObjectHashMap<ArrayList<RenderEvent>> cells = cellsByLevel.get(level);
+					for(long column = firstColumn; column <= lastColumn; column++) {
+						for(long row = firstRow; row <= lastRow; row++) {
+							long key = getCellKey(column, row);
+							ArrayList<RenderEvent> cell = cells.get(key);
+							if(cell == null) {
+								cell = new ArrayList<RenderEvent>(4);
+								cells.put(key, cell);
 							}
-						}						
+							insert(cell, event);
+						}
 					}
-				}
-				// If this is visible and contains the point, and is NOT a draw image event that we've skipped above...
-				else if(event.isVisibleAfter(eventID) && event.contains(x, y) && !drawImagesSkipped.contains(event))  {
-					events.add(new GraphicalEventAppearance(event, event));
+					return;
 				}
 				
 			}
+			
+			insert(eventsInNoCell, event);
+			
 		}
 		
-		return events;
+		/**
+		 * Events are almost always added in order, so this is almost always an append.
+		 */
+		private static void insert(ArrayList<RenderEvent> cell, RenderEvent event) {
+			
+			int index = cell.size();
+			while(index > 0 && cell.get(index - 1).getEventID() > event.getEventID())
+				index--;
+			cell.add(index, event);
+			
+		}
+		
+		/**
+		 * Adds every event drawn at or before the given event ID that might contain the given point to the given list, each once.
+		 * If visibleOnly is true, this skips events that were drawn over by then.
+		 */
+		public void addEventsAt(int x, int y, int eventID, boolean visibleOnly, List<RenderEvent> events) {
+			
+			for(int level = 0; level < CELL_SIZE_BITS.length; level++) {
+				int bits = CELL_SIZE_BITS[level];
+				ArrayList<RenderEvent> cell = cellsByLevel.get(level).get(getCellKey(x >> bits, y >> bits));
+				if(cell != null) addEventsBefore(cell, eventID, visibleOnly, events);
+			}
+			addEventsBefore(eventsInNoCell, eventID, visibleOnly, events);
+			
+		}
+		
+		private static void addEventsBefore(ArrayList<RenderEvent> cell, int eventID, boolean visibleOnly, List<RenderEvent> events) {
+			
+			for(int i = 0; i < cell.size(); i++) {
+				RenderEvent event = cell.get(i);
+				if(event.getEventID() > eventID) break;
+				if(visibleOnly && event.hasOccluder() && event.getOccluder().getEventID() <= eventID) continue;
+				events.add(event);
+			}
+			
+		}
+		
+	}
+	
+	/**
+	 * The window's image and location partway through replaying its repaints.
+	 */
+	private static final class Frame {
+		
+		private BufferedImage image;
+		private int x = 0, y = 0;
+		
+	}
+	
+	/**
+	 * A compressed copy of a frame.
+	 */
+	private static final class Keyframe {
 
+		private final BufferedImage image;
+		private final int x, y;
+		private final byte[] pixels;
+		
+		public Keyframe(Frame frame) {
+
+			image = frame.image;
+			x = frame.x;
+			y = frame.y;
+
+			if(image == null) pixels = new byte[0];
+			else {
+				int[] argb = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+				byte[] bytes = new byte[argb.length * 4];
+				for(int i = 0, b = 0; i < argb.length; i++) {
+					bytes[b++] = (byte)(argb[i] >>> 24);
+					bytes[b++] = (byte)(argb[i] >>> 16);
+					bytes[b++] = (byte)(argb[i] >>> 8);
+					bytes[b++] = (byte)argb[i];
+				}
+				Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+				deflater.setInput(bytes);
+				deflater.finish();
+				byte[] buffer = new byte[Math.max(64, bytes.length / 8)];
+				int length = 0;
+				while(!deflater.finished()) {
+					if(length == buffer.length) {
+						byte[] newBuffer = new byte[buffer.length * 2];
+						System.arraycopy(buffer, 0, newBuffer, 0, length);
+						buffer = newBuffer;
+					}
+					length += deflater.deflate(buffer, length, buffer.length - length);
+				}
+				deflater.end();
+				pixels = new byte[length];
+				System.arraycopy(buffer, 0, pixels, 0, length);
+			}
+			
+		}
+		
+		public int getSize() { return pixels.length; }
+		
+		public void restore(Frame frame) {
+			
+			frame.image = image;
+			frame.x = x;
+			frame.y = y;
+			
+			if(image == null) return;
+			
+			int[] argb = new int[image.getWidth() * image.getHeight()];
+			byte[] bytes = new byte[argb.length * 4];
+			Inflater inflater = new Inflater();
+			inflater.setInput(pixels);
+			try {
+				int length = 0;
+				while(length < bytes.length && !inflater.finished() && !inflater.needsInput())
+					length += inflater.inflate(bytes, length, bytes.length - length);
+			} catch(DataFormatException e) {
+				e.printStackTrace();
+			}
+			inflater.end();
+			for(int i = 0, b = 0; i < argb.length; i++, b += 4)
+				argb[i] = ((bytes[b] & 0xFF) << 24) | ((bytes[b + 1] & 0xFF) << 16) | ((bytes[b + 2] & 0xFF) << 8) | (bytes[b + 3] & 0xFF);
+			image.setRGB(0, 0, image.getWidth(), image.getHeight(), argb, 0, image.getWidth());
+			
+		}
+		
 	}
 	
 	/**
@@ -409,9 +748,9 @@ public final class WindowState {
 
 		private final GetGraphicsOutputEvent event; 
 		private final LinkedList<RenderEvent> eventsByRepaint = new LinkedList<RenderEvent>();
-		private final Image image;
+		private final BufferedImage image;
 		
-		public Repaint(GetGraphicsOutputEvent event, Image image) {
+		public Repaint(GetGraphicsOutputEvent event, BufferedImage image) {
 			
 			this.event = event;
 			this.image = image;
@@ -423,7 +762,7 @@ public final class WindowState {
 		public void addEvent(RenderEvent event) { assert event != null : "Event is null!"; eventsByRepaint.add(event); }
 		public int getLastEventID() { return eventsByRepaint.isEmpty() ? -1 : eventsByRepaint.getLast().getEventID(); }
 		
-		public Image getImage() { return image; }
+		public BufferedImage getImage() { return image; }
 		
 		public Iterator<RenderEvent> iterator() { return eventsByRepaint.iterator(); }
 		
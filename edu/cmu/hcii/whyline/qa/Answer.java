@@ -1,6 +1,7 @@
 package edu.cmu.hcii.whyline.qa;
 
 import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import edu.cmu.hcii.whyline.bytecode.Instruction;
 import edu.cmu.hcii.whyline.trace.*;
@@ -11,9 +12,10 @@ import edu.cmu.hcii.whyline.trace.*;
  */
 public abstract class Answer implements Comparable<Answer> {
 
-	private static int answerID = 0;
+	// Questions may be answered on several threads at once.
+	private static final AtomicInteger answerID = new AtomicInteger(0);
 	
-	private final int id  = answerID++;
+	private final int id  = answerID.getAndIncrement();
 	
 	protected final Trace trace;
 	protected final Question<?>  question;
@@ -0,0 +1,286 @@
+package edu.cmu.hcii.whyline.qa;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import edu.cmu.hcii.whyline.analysis.AnalysisException;
+import edu.cmu.hcii.whyline.bytecode.*;
+import edu.cmu.hcii.whyline.io.TextualOutputEvent;
+import edu.cmu.hcii.whyline.source.Line;
+import edu.cmu.hcii.whyline.trace.Serializer;
+import edu.cmu.hcii.whyline.trace.Trace;
+import edu.cmu.hcii.whyline.trace.nodes.ObjectState;
+
+/**
+ * Answers a batch of questions about a loaded trace without a user interface, several at a time, timing each one.
+ * Questions are written one per line, as a kind followed by a selector, with code named the way {@link Serializer} names it:
+ *
+ * <pre>
+ * event &lt;eventID&gt;                          why did this event occur?
+ * print &lt;text&gt;                             why did the last output containing this text get printed?
+ * field &lt;objectID&gt; &lt;fieldName&gt;             why did this object's field have its value?
+ * line &lt;file&gt;:&lt;line&gt;                      why didn't this line execute?
+ * instruction &lt;class&gt;:&lt;method&gt;:&lt;index&gt;    why didn't this instruction execute?
+ * method &lt;class&gt;:&lt;method&gt; [objectID]       why didn't this method execute (on this object)?
+ * </pre>
+ *
+ * Every question is asked about the whole trace.
+ *
+ * @author Andrew J. Ko
+ *
+ */
+public final class BatchAnswerer {
+
+	private final Trace trace;
+	private final Scope scope;
+
+	public BatchAnswerer(Trace trace) {
+
+		this.trace = trace;
+		this.scope = new Scope(trace, 0, trace.getNumberOfEvents() - 1);
+
+	}
+
+	/**
+	 * Answers the given questions on the given number of threads, returning the results in the same order.
+	 */
+	public List<Result> answer(List<String> questions, int numberOfThreads) throws InterruptedException {
+
+		ExecutorService workers = Executors.newFixedThreadPool(Math.max(1, numberOfThreads), new ThreadFactory() {
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "Whyline batch answerer");
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+
+		try {
+
+			List<Future<Result>> futures = new ArrayList<Future<Result>>(questions.size());
+			for(final String question : questions)
+				futures.add(workers.submit(new Callable<Result>() {
+					public Result call() { return answer(question); }
+				}));
+
+			List<Result> results = new ArrayList<Result>(questions.size());
+			for(int i = 0; i < futures.size(); i++) {
+				try {
+					results.add(futures.get(i).get());
+				} catch(ExecutionException e) {
+					// answer() catches everything it can, so this is an Error; report it with the question rather than losing the batch.
+					e.printStackTrace();
+					results.add(new Result(questions.get(i), Result.FAILED, 0, null, String.valueOf(e.getCause())));
+				}
+			}
+			return results;
+
+		}
+		finally {
+			workers.shutdownNow();
+		}
+
+	}
+
+	/**
+	 * Answers one question on the calling thread.
+	 */
+	public Result answer(String specification) {
+
+		BatchAsker asker = new BatchAsker();
+		Question<?> question;
+		try {
+			question = parse(asker, specification);
+		} catch(IllegalArgumentException e) {
+			return new Result(specification, Result.INVALID, 0, null, e.getMessage());
+		} catch(RuntimeException e) {
+			// Selectors that name code that isn't in the trace tend to fail somewhere in the lookup.
+			return new Result(specification, Result.INVALID, 0, null, String.valueOf(e));
+		}
+
+		long start = System.nanoTime();
+		try {
+			question.computeAnswer();
+		} catch(RuntimeException e) {
+			e.printStackTrace();
+			return new Result(specification, Result.FAILED, System.nanoTime() - start, null, String.valueOf(e));
+		}
+		long time = System.nanoTime() - start;
+
+		if(asker.problem != null) return new Result(specification, Result.FAILED, time, null, asker.problem.getMessage());
+		else return new Result(specification, Result.ANSWERED, time, question.getAnswer(), null);
+
+	}
+
+	private Question<?> parse(Asker asker, String specification) {
+
+		String[] words = specification.trim().split("\\s+", 2);
+		String kind = words[0];
+		if(words.length < 2) throw new IllegalArgumentException("Expected a selector after \"" + kind + "\"");
+		String selector = words[1].trim();
+
+		if(kind.equals("event")) {
+
+			int eventID = Integer.parseInt(selector);
+			if(eventID < 0 || eventID >= trace.getNumberOfEvents()) throw new IllegalArgumentException("There's no event " + eventID);
+			return new WhyDidEventOccur(asker, eventID, trace.getDescription(eventID));
+
+		}
+		else if(kind.equals("print")) {
+
+			TextualOutputEvent print = null;
+			for(int i = trace.getPrintHistory().getNumberOfEvents() - 1; i >= 0 && print == null; i--) {
+				TextualOutputEvent event = trace.getPrintHistory().getEventAtIndex(i);
+				if(event.getStringPrinted().contains(selector)) print = event;
+			}
+			if(print == null) throw new IllegalArgumentException("Nothing printed contains \"" + selector + "\"");
+			return new WhyDidEventOccur(asker, print.getEventID(), "<em>" + print.getStringPrinted() + "</em> print");
+
+		}
+		else if(kind.equals("field")) {
+
+			String[] objectAndField = selector.split("\\s+");
+			if(objectAndField.length != 2) throw new IllegalArgumentException("Expected an object ID and a field name");
+			long objectID = Long.parseLong(objectAndField[0]);
+			Classfile classfile = trace.getClassfileOfObjectID(objectID);
+			if(classfile == null) throw new IllegalArgumentException("Don't know the class of object " + objectID);
+			FieldInfo field = classfile.getFieldByName(objectAndField[1]);
+			if(field == null) throw new IllegalArgumentException(classfile.getInternalName().getText() + " has no field " + objectAndField[1]);
+			ObjectState object = trace.getObjectNode(objectID);
+			return new WhyDidFieldHaveValue(asker, object, field, " = its value");
+
+		}
+		else if(kind.equals("line")) {
+
+			Line line = Serializer.stringToLine(trace, selector);
+			if(line == null) throw new IllegalArgumentException("Couldn't find line " + selector);
+			Instruction instruction = line.getFirstInstruction();
+			if(instruction == null) throw new IllegalArgumentException("There's no code on line " + selector);
+			return new WhyDidntInstructionExecute(asker, instruction, "execute");
+
+		}
+		else if(kind.equals("instruction")) {
+
+			String[] parts = Serializer.stringToList(selector);
+			if(parts.length != 3) throw new IllegalArgumentException("Expected class:method:index");
+			Instruction instruction = Serializer.stringtoInstruction(trace, parts[0], parts[1], parts[2]);
+			return new WhyDidntInstructionExecute(asker, instruction, "execute");
+
+		}
+		else if(kind.equals("method")) {
+
+			String[] methodAndObject = selector.split("\\s+");
+			String[] parts = Serializer.stringToList(methodAndObject[0]);
+			if(parts.length != 2) throw new IllegalArgumentException("Expected class:method");
+			MethodInfo method = Serializer.stringToMethod(trace, parts[0], parts[1]);
+			if(method == null) throw new IllegalArgumentException("Couldn't find method " + methodAndObject[0]);
+			long objectID = methodAndObject.length > 1 ? Long.parseLong(methodAndObject[1]) : 0;
+			return new WhyDidntMethodExecute(asker, method, objectID, "execute");
+
+		}
+		else throw new IllegalArgumentException("Don't know how to ask \"" + kind + "\" questions");
+
+	}
+
+	/**
+	 * Writes the results as tab separated values, one question per line, after a header naming the columns.
+	 */
+	public static void write(List<Result> results, PrintStream out) {
+
+		out.println("question\tstatus\tmilliseconds\tkind\tlatest event\tunexecuted instructions\tanswer");
+		for(Result result : results) {
+
+			out.print(clean(result.question));
+			out.print('\t');
+			out.print(result.status);
+			out.print('\t');
+			out.print(result.nanoseconds / 1000000.0);
+			out.print('\t');
+
+			Answer answer = result.answer;
+			if(answer != null) {
+				out.print(clean(answer.getKind()));
+				out.print('\t');
+				out.print(answer.getLatestEventID());
+				out.print('\t');
+				StringBuilder unexecuted = new StringBuilder();
+				for(UnexecutedInstruction instruction : answer.getUnexecutedInstructions()) {
+					if(unexecuted.length() > 0) unexecuted.append(' ');
+					unexecuted.append(Serializer.instructionToString(instruction.getInstruction()));
+				}
+				out.print(unexecuted);
+				out.print('\t');
+				out.print(clean(answer.getAnswerText()));
+			}
+			else {
+				out.print("\t\t\t");
+				out.print(clean(result.problem));
+			}
+			out.println();
+
+		}
+		out.flush();
+
+	}
+
+	/**
+	 * Removes HTML and anything else that would break a column.
+	 */
+	private static String clean(String text) {
+
+		if(text == null) return "";
+		return text.replaceAll("<[^>]*>", "").replaceAll("&nbsp;", " ").replaceAll("&lt;", "<").replaceAll("&gt;", ">").replaceAll("&amp;", "&").replaceAll("\\s+", " ").trim();
+
+	}
+
+	/**
+	 * The outcome of asking one question.
+	 */
+	public static final class Result {
+
+		public static final String ANSWERED = "answered";
+		public static final String FAILED = "failed";
+		public static final String INVALID = "invalid";
+
+		public final String question;
+		public final String status;
+		public final long nanoseconds;
+		public final Answer answer;
+		public final String problem;
+
+		private Result(String question, String status, long nanoseconds, Answer answer, String problem) {
+
+			this.question = question;
+			this.status = status;
+			this.nanoseconds = nanoseconds;
+			this.answer = answer;
+			this.problem = problem;
+
+		}
+
+	}
+
+	/**
+	 * Stands in for the user interface while one question is answered, remembering whether answering failed.
+	 */
+	private final class BatchAsker implements Asker {
+
+		private AnalysisException problem;
+
+		public void answer(Question<?> question) { question.computeAnswer(); }
+		public Trace getTrace() { return trace; }
+		public void doneAnswering() {}
+		public void updateAnsweringStatus(Question<?> question, String status, double percentComplete) {}
+		public void problemAnswering(Question<?> question, AnalysisException e) { problem = e; }
+		public Scope getCurrentScope() { return scope; }
+		public void processing(boolean b) {}
+
+	}
+
+}
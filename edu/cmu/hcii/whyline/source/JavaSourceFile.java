@@ -23,7 +23,8 @@ public final class JavaSourceFile  implements FileInterface, Comparable<FileInte
 	private JavaParser parser;
 	private ParseException tokenizationProblem = null;
 
-	private final Set<Classfile> classfiles = new HashSet<Classfile>(1);
+	// Classfiles are linked lazily by query threads while others iterate, and there are only ever a few.
+	private final Set<Classfile> classfiles = new java.util.concurrent.CopyOnWriteArraySet<Classfile>();
 	
 	private final Map<Token, QualifiedClassName> classnamesByToken = new HashMap<Token,QualifiedClassName>();
 	private final Map<Token, Instruction> instructionsByToken = new HashMap<Token,Instruction>();
@@ -40,7 +41,8 @@ public final class JavaSourceFile  implements FileInterface, Comparable<FileInte
 
 	public boolean isFamiliar() { return isFamiliar; }
 	
-	private JavaParser getTokens() throws ParseException { 
+	// Synchronized so that searches tokenizing files in parallel don't tokenize the same file twice.
+	private synchronized JavaParser getTokens() throws ParseException { 
 
 		if(tokenizationProblem != null) {
 			tokenizationProblem.printStackTrace();
@@ -0,0 +1,352 @@
+package edu.cmu.hcii.whyline.source;
+
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import edu.cmu.hcii.whyline.util.IntegerVector;
+import edu.cmu.hcii.whyline.util.Util;
+import gnu.trove.TIntHashSet;
+import gnu.trove.TIntIntHashMap;
+import gnu.trove.TIntIterator;
+import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TIntObjectIterator;
+
+/**
+ * An index of the three character sequences in a set of source files, so that a text search only has to tokenize and
+ * search the files that contain every sequence in the query, rather than every file.
+ *
+ * Only sequences of printable, non-whitespace ASCII characters are indexed, because those are the only characters that
+ * appear in a file's tokens exactly as they appear in its bytes (tabs are expanded and unicode escapes are decoded). Files with
+ * unicode escapes are always searched, since an escape can produce any character.
+ *
+ * The index is saved to a file along with a signature of the files it indexes, so that it can be reused until they change. Only the table of
+ * sequences is read into memory; each sequence's files are read from disk as they're needed, stored as varint deltas between file numbers.
+ *
+ * @author Andrew J. Ko
+ *
+ */
+public final class SourceIndex {
+
+	// Change this when the way the index is saved changes, so that old indices are rebuilt.
+	private static final int FORMAT_VERSION = 1;
+
+	private static final int SEQUENCE_LENGTH = 3;
+
+	private final File file;
+	private final String[] names;
+	private final int[] filesAlwaysSearched;
+	private final TIntIntHashMap offsetsBySequence;
+	private final TIntIntHashMap lengthsBySequence;
+
+	/**
+	 * Returns the index saved in the given file if it has the given signature, or null if there isn't one or it can't be read.
+	 */
+	public static SourceIndex open(File file, String signature) {
+
+		if(!file.exists()) return null;
+		try {
+			DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				if(in.readInt() != FORMAT_VERSION) return null;
+				if(!in.readUTF().equals(signature)) return null;
+				return new SourceIndex(file, in);
+			} finally {
+				in.close();
+			}
+		} catch(IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+
+	}
+
+	private SourceIndex(File file, DataInputStream in) throws IOException {
+
+		this.file = file;
+
+		names = new String[in.readInt()];
+		for(int i = 0; i < names.length; i++)
+			names[i] = in.readUTF();
+
+		filesAlwaysSearched = new int[in.readInt()];
+		for(int i = 0; i < filesAlwaysSearched.length; i++)
+			filesAlwaysSearched[i] = in.readInt();
+
+		int numberOfSequences = in.readInt();
+		offsetsBySequence = new TIntIntHashMap(numberOfSequences);
+		lengthsBySequence = new TIntIntHashMap(numberOfSequences);
+		for(int i = 0; i < numberOfSequences; i++) {
+			int sequence = in.readInt();
+			offsetsBySequence.put(sequence, in.readInt());
+			lengthsBySequence.put(sequence, in.readInt());
+		}
+
+	}
+
+	public int getNumberOfFiles() { return names.length; }
+
+	/**
+	 * Returns the names of the files that might contain the given lowercase text, in the order they were added to the index.
+	 */
+	public List<String> getFilesThatMightContain(String lowercaseText) {
+
+		TIntHashSet sequences = new TIntHashSet();
+		addSequences(lowercaseText, sequences);
+
+		List<String> candidates = new ArrayList<String>();
+
+		// If there's nothing indexed in the text, any file might contain it.
+		if(sequences.isEmpty()) {
+			candidates.addAll(Arrays.asList(names));
+			return candidates;
+		}
+
+		// If some sequence isn't in any file, only the files that are always searched might contain the text.
+		int[] bySize = sequences.toArray();
+		boolean allIndexed = true;
+		for(int sequence : bySize)
+			if(!lengthsBySequence.containsKey(sequence)) allIndexed = false;
+
+		// Otherwise, intersect the files of each sequence, starting with the sequence in the fewest, so the intersection stays small.
+		int[] files = new int[0];
+		if(allIndexed) {
+			sortBySize(bySize);
+			try {
+				files = readFiles(bySize[0]);
+				for(int i = 1; i < bySize.length && files.length > 0; i++)
+					files = intersect(files, readFiles(bySize[i]));
+			} catch(IOException e) {
+				// If we can't read the index, we have to search everything.
+				e.printStackTrace();
+				candidates.addAll(Arrays.asList(names));
+				return candidates;
+			}
+		}
+
+		// Merge in the files that are always searched, keeping the files in order.
+		int i = 0, j = 0;
+		while(i < files.length || j < filesAlwaysSearched.length) {
+			int next;
+			if(j == filesAlwaysSearched.length || (i < files.length && files[i] < filesAlwaysSearched[j])) next = files[i++];
+			else if(i == files.length || filesAlwaysSearched[j] < files[i]) next = filesAlwaysSearched[j++];
+			else { next = files[i++]; j++; }
+			candidates.add(names[next]);
+		}
+		return candidates;
+
+	}
+
+	private void sortBySize(int[] sequences) {
+
+		// There are only ever as many sequences as characters in a query, so insertion sort is fine.
+		for(int i = 1; i < sequences.length; i++) {
+			int sequence = sequences[i];
+			int length = lengthsBySequence.get(sequence);
+			int j = i - 1;
+			while(j >= 0 && lengthsBySequence.get(sequences[j]) > length) {
+				sequences[j + 1] = sequences[j];
+				j--;
+			}
+			sequences[j + 1] = sequence;
+		}
+
+	}
+
+	private synchronized int[] readFiles(int sequence) throws IOException {
+
+		byte[] deltas = new byte[lengthsBySequence.get(sequence)];
+		RandomAccessFile in = new RandomAccessFile(file, "r");
+		try {
+			in.seek(offsetsBySequence.get(sequence));
+			in.readFully(deltas);
+		} finally {
+			in.close();
+		}
+
+		IntegerVector files = new IntegerVector(deltas.length);
+		int offset = 0;
+		int fileNumber = -1;
+		while(offset < deltas.length) {
+			int delta = 0;
+			int shift = 0;
+			byte b;
+			do {
+				b = deltas[offset++];
+				delta |= (b & 0x7F) << shift;
+				shift += 7;
+			} while(b < 0);
+			fileNumber += delta;
+			files.append(fileNumber);
+		}
+
+		int[] result = new int[files.size()];
+		for(int i = 0; i < result.length; i++)
+			result[i] = files.get(i);
+		return result;
+
+	}
+
+	private static int[] intersect(int[] one, int[] two) {
+
+		int[] result = new int[Math.min(one.length, two.length)];
+		int size = 0;
+		int i = 0, j = 0;
+		while(i < one.length && j < two.length) {
+			if(one[i] < two[j]) i++;
+			else if(one[i] > two[j]) j++;
+			else {
+				result[size++] = one[i];
+				i++;
+				j++;
+			}
+		}
+		int[] trimmed = new int[size];
+		System.arraycopy(result, 0, trimmed, 0, size);
+		return trimmed;
+
+	}
+
+	private static boolean isIndexed(int c) { return c > ' ' && c < 127 && c != '\\'; }
+
+	private static int toLowerCase(int c) { return c >= 'A' && c <= 'Z' ? c + ('a' - 'A') : c; }
+
+	private static int getSequence(int one, int two, int three) { return (one << 14) | (two << 7) | three; }
+
+	private static void addSequences(String text, TIntHashSet sequences) {
+
+		for(int i = 0; i + SEQUENCE_LENGTH <= text.length(); i++) {
+			char one = text.charAt(i), two = text.charAt(i + 1), three = text.charAt(i + 2);
+			if(isIndexed(one) && isIndexed(two) && isIndexed(three))
+				sequences.add(getSequence(toLowerCase(one), toLowerCase(two), toLowerCase(three)));
+		}
+
+	}
+
+	/**
+	 * Builds an index from the bytes of each file, then saves it. Files must be added in the order they should be searched in.
+	 */
+	public static final class Builder {
+
+		private final List<String> names = new ArrayList<String>();
+		private final IntegerVector filesAlwaysSearched = new IntegerVector(10);
+		private final TIntObjectHashMap<Files> filesBySequence = new TIntObjectHashMap<Files>();
+		private final TIntHashSet sequencesInFile = new TIntHashSet();
+
+		public Builder() {}
+
+		public void add(String name, byte[] bytes) {
+
+			int fileNumber = names.size();
+			names.add(name);
+
+			sequencesInFile.clear();
+			boolean hasUnicodeEscape = false;
+			for(int i = 0; i + SEQUENCE_LENGTH <= bytes.length; i++) {
+				int one = bytes[i] & 0xFF, two = bytes[i + 1] & 0xFF, three = bytes[i + 2] & 0xFF;
+				if(one == '\\' && two == 'u') hasUnicodeEscape = true;
+				if(isIndexed(one) && isIndexed(two) && isIndexed(three))
+					sequencesInFile.add(getSequence(toLowerCase(one), toLowerCase(two), toLowerCase(three)));
+			}
+
+			if(hasUnicodeEscape) filesAlwaysSearched.append(fileNumber);
+
+			TIntIterator sequences = sequencesInFile.iterator();
+			while(sequences.hasNext()) {
+				int sequence = sequences.next();
+				Files files = filesBySequence.get(sequence);
+				if(files == null) {
+					files = new Files();
+					filesBySequence.put(sequence, files);
+				}
+				files.add(fileNumber);
+			}
+
+		}
+
+		/**
+		 * Saves the index to the given file with the given signature and returns it.
+		 */
+		public SourceIndex save(File file, String signature) throws IOException {
+
+			// Write to a temporary file first, so that no one reads half of an index.
+			File temp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+			DataOutputStream out = Util.getWriterFor(temp);
+
+			out.writeInt(FORMAT_VERSION);
+			out.writeUTF(signature);
+
+			out.writeInt(names.size());
+			for(String name : names)
+				out.writeUTF(name);
+
+			out.writeInt(filesAlwaysSearched.size());
+			for(int i = 0; i < filesAlwaysSearched.size(); i++)
+				out.writeInt(filesAlwaysSearched.get(i));
+
+			out.writeInt(filesBySequence.size());
+			int offset = out.size() + filesBySequence.size() * 12;
+			TIntObjectIterator<Files> iterator = filesBySequence.iterator();
+			while(iterator.hasNext()) {
+				iterator.advance();
+				out.writeInt(iterator.key());
+				out.writeInt(offset);
+				out.writeInt(iterator.value().length);
+				offset += iterator.value().length;
+			}
+
+			// Trove iterates in the same order as long as the map doesn't change.
+			iterator = filesBySequence.iterator();
+			while(iterator.hasNext()) {
+				iterator.advance();
+				out.write(iterator.value().deltas, 0, iterator.value().length);
+			}
+			out.close();
+
+			if(!temp.renameTo(file)) {
+				file.delete();
+				if(!temp.renameTo(file)) {
+					temp.delete();
+					throw new IOException("Couldn't save source index to " + file);
+				}
+			}
+
+			SourceIndex index = open(file, signature);
+			if(index == null) throw new IOException("Couldn't read the source index just saved to " + file);
+			return index;
+
+		}
+
+	}
+
+	/**
+	 * The numbers of the files containing a sequence, as varint deltas from the previous file number.
+	 */
+	private static final class Files {
+
+		private byte[] deltas = new byte[2];
+		private int length = 0;
+		private int lastFileNumber = -1;
+
+		public void add(int fileNumber) {
+
+			if(length + 5 > deltas.length) {
+				byte[] newDeltas = new byte[Math.max(length + 5, deltas.length * 2)];
+				System.arraycopy(deltas, 0, newDeltas, 0, length);
+				deltas = newDeltas;
+			}
+
+			int delta = fileNumber - lastFileNumber;
+			while((delta & ~0x7F) != 0) {
+				deltas[length++] = (byte)((delta & 0x7F) | 0x80);
+				delta >>>= 7;
+			}
+			deltas[length++] = (byte)delta;
+			lastFileNumber = fileNumber;
+
+		}
+
+	}
+
+}
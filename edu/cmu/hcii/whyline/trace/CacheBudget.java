@@ -0,0 +1,126 @@
+package edu.cmu.hcii.whyline.trace;
+
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One memory budget shared by all of a trace's caches: the blocks of events loaded from disk, and the results of queries
+ * derived from them. Each cache charges the budget for what it adds and credits it for what it removes. When the caches
+ * together go over the budget, the one that went over asks the caches, in turn, to evict what they haven't used recently
+ * until they're back under it.
+ *
+ * Caches must never charge the budget while holding a lock that their own evict() needs, since charging may call it.
+ *
+ * @author Andrew J. Ko
+ *
+ */
+public final class CacheBudget {
+
+	/**
+	 * A cache that shares the budget.
+	 */
+	public static interface Member {
+
+		public String getName();
+
+		/**
+		 * Evicts entries that haven't been used recently, until about the given number of bytes are freed or there's nothing left that can be evicted.
+		 * Returns the number of bytes freed, having already credited them to the budget.
+		 */
+		public long evict(long bytes);
+
+		public long getBytes();
+		public long getHits();
+		public long getMisses();
+		public long getEvictions();
+
+	}
+
+	private final List<Member> members = new CopyOnWriteArrayList<Member>();
+	private final AtomicLong bytesUsed = new AtomicLong(0);
+	private volatile long limit = Long.MAX_VALUE;
+
+	// Only one thread trims at a time; the others carry on, since the trimming thread will get everyone back under budget.
+	// If they go over just as it finishes, the next charge trims again.
+	private final AtomicBoolean trimming = new AtomicBoolean(false);
+	private int nextMemberToTrim = 0;
+
+	public CacheBudget() {}
+
+	public void add(Member member) { members.add(member); }
+
+	public void remove(Member member) { members.remove(member); }
+
+	public long getLimit() { return limit; }
+
+	/**
+	 * Sets the number of bytes the caches can use together, trimming them if they're already using more.
+	 */
+	public void setLimit(long bytes) {
+
+		limit = bytes;
+		if(bytesUsed.get() > limit) trim();
+
+	}
+
+	public long getBytesUsed() { return bytesUsed.get(); }
+
+	public void charge(long bytes) {
+
+		if(bytesUsed.addAndGet(bytes) > limit) trim();
+
+	}
+
+	public void credit(long bytes) { bytesUsed.addAndGet(-bytes); }
+
+	private void trim() {
+
+		if(!trimming.compareAndSet(false, true)) return;
+		
+		try {
+
+			// Give up once every cache has had a turn without freeing anything, since then everything left is in use.
+			int turnsWithoutProgress = 0;
+			while(bytesUsed.get() > limit && turnsWithoutProgress < members.size()) {
+
+				int size = members.size();
+				if(size == 0) break;
+				nextMemberToTrim = (nextMemberToTrim + 1) % size;
+				Member member = members.get(nextMemberToTrim);
+				long freed = member.evict(bytesUsed.get() - limit);
+				turnsWithoutProgress = freed > 0 ? 0 : turnsWithoutProgress + 1;
+
+			}
+
+		}
+		finally {
+			trimming.set(false);
+		}
+
+	}
+
+	/**
+	 * Describes how much each cache holds and how often it's been useful, one cache per line.
+	 */
+	public String getStatistics() {
+
+		StringBuilder statistics = new StringBuilder();
+		statistics.append("caches: ").append(bytesUsed.get() / 1024).append(" of ").append(limit == Long.MAX_VALUE ? "unlimited" : Long.toString(limit / 1024)).append(" KB\n");
+		for(Member member : members) {
+			long hits = member.getHits();
+			long misses = member.getMisses();
+			long requests = hits + misses;
+			statistics.append(member.getName()).append(": ");
+			statistics.append(member.getBytes() / 1024).append(" KB, ");
+			statistics.append(hits).append(" hits, ");
+			statistics.append(misses).append(" misses");
+			if(requests > 0) statistics.append(" (").append((100 * hits) / requests).append("% hit)");
+			statistics.append(", ").append(member.getEvictions()).append(" evictions\n");
+		}
+		return statistics.toString();
+
+	}
+
+}
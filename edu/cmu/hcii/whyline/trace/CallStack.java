@@ -1,7 +1,9 @@
 package edu.cmu.hcii.whyline.trace;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Iterator;
+import java.util.List;
 
 import edu.cmu.hcii.whyline.bytecode.*;
 import edu.cmu.hcii.whyline.util.*;
@@ -24,12 +26,29 @@ public class CallStack implements Iterable<CallStackEntry> {
 
 	public CallStack(Trace trace, int threadID, int firstEventID, Listener listener) {
 
+		this(trace, threadID, firstEventID, null, listener);
+		
+	}
+
+	/**
+	 * @param methodsCalledBefore The methods of calls that started before the first event, but hadn't returned, from the bottom of the stack up,
+	 * or null if there were none. These frames have no start event, so the listener isn't told when they return.
+	 */
+	public CallStack(Trace trace, int threadID, int firstEventID, List<MethodInfo> methodsCalledBefore, Listener listener) {
+
 		this.eventIDLastExecuted = firstEventID;
 		this.trace = trace;
 		this.threadID = threadID;
 		this.startsWaitingForReturns = new IntegerVector(4);
 		this.listener = listener;
 		
+		if(methodsCalledBefore != null) {
+			for(MethodInfo method : methodsCalledBefore) {
+				callStack.add(new CallStackEntry(trace, method, -1, -1));
+				startsWaitingForReturns.push(-1);
+			}
+		}
+		
 		handleNextEventID(firstEventID);
 		
 	}
@@ -42,14 +61,21 @@ public class CallStack implements Iterable<CallStackEntry> {
 		this.startsWaitingForReturns = null;
 		this.listener = null;
 		
+		// If the thread's calls are indexed, each caller is the parent of the call in the tree, so we can walk up it rather than searching for each frame's start.
+		CallTree calls = trace.getCallTree(threadID);
+		int call = calls == null ? -1 : calls.getCallContaining(eventID);
+		
 		int event = eventID;
 		while(event >= 0) {
 			// Find the startID of the current event.
-			int startID = trace.getStartID(event);
+			int startID = call >= 0 ? calls.getStartID(call) : trace.getStartID(event);
 			int invocationID = startID >= 0 ? trace.getStartIDsInvocationID(startID) : -1; 
-			this.callStack.add(0, new CallStackEntry(trace, startID >= 0 ? trace.getInstruction(startID).getMethod() : null, invocationID, startID));
+			this.callStack.add(new CallStackEntry(trace, startID >= 0 ? trace.getInstruction(startID).getMethod() : null, invocationID, startID));
 			event = invocationID; 
+			if(call >= 0) call = calls.getParent(call);
 		}
+		// We found the frames from the top down, but the stack is stored from the bottom up.
+		Collections.reverse(this.callStack);
 		
 	}
 	
@@ -126,7 +152,7 @@ public class CallStack implements Iterable<CallStackEntry> {
 				MethodInfo methodReturning = trace.getInstruction(eventID).getMethod();
 				if(startsWaitingForReturns.size() > 0) {
 					int correspondingStartEventID = startsWaitingForReturns.pop();
-					if(listener != null)
+					if(listener != null && correspondingStartEventID >= 0)
 						listener.foundStartReturnOrCatchPair(correspondingStartEventID, eventID);
 					callStack.remove(callStack.size() - 1);
 				}
@@ -142,8 +168,9 @@ public class CallStack implements Iterable<CallStackEntry> {
 
 				while(!callStack.isEmpty() && callStack.get(callStack.size() - 1).getMethod() != methodWithException) {
 					callStack.remove(callStack.size() - 1);
-					if(listener != null)
-						listener.foundStartReturnOrCatchPair(startsWaitingForReturns.pop(), eventID);
+					int startID = startsWaitingForReturns.pop();
+					if(listener != null && startID >= 0)
+						listener.foundStartReturnOrCatchPair(startID, eventID);
 				}
 	
 				popInvocationsThatWereNotTraced();
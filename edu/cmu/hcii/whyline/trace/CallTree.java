@@ -0,0 +1,213 @@
+package edu.cmu.hcii.whyline.trace;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import edu.cmu.hcii.whyline.util.IntegerVector;
+import edu.cmu.hcii.whyline.util.Saveable;
+
+/**
+ * The calls in one thread, as a tree of nested intervals of event IDs. Each call is numbered in the order it started, which is a preorder
+ * walk of the tree, and its interval runs from its start event to its return or catch event, so a call encloses another exactly when its interval
+ * encloses the other's. Calls that never returned end at Integer.MAX_VALUE.
+ *
+ * Alongside the calls is a list of the events at which the thread moved from one call to another, so the call containing an event is a binary search,
+ * rather than a search back through earlier starts of the event's method. Everything is stored in int columns, so the tree is compact and quick to save.
+ *
+ * @author Andrew J. Ko
+ *
+ */
+public final class CallTree implements Saveable {
+
+	public static final int NOT_RETURNED = Integer.MAX_VALUE;
+
+	private int numberOfCalls = 0;
+	private int[] starts, ends, parents, depths;
+
+	// The event at which each change of call happened, in increasing order, and the call the thread was in from then on, or -1 if none.
+	private int numberOfTransitions = 0;
+	private int[] transitionEventIDs, transitionCalls;
+
+	// The calls that haven't returned yet, while the tree is being built.
+	private final IntegerVector openCalls = new IntegerVector(16);
+
+	public CallTree() {
+
+		starts = new int[16];
+		ends = new int[16];
+		parents = new int[16];
+		depths = new int[16];
+
+		transitionEventIDs = new int[32];
+		transitionCalls = new int[32];
+
+	}
+
+	/**
+	 * Adds a call that started at the given event, inside the innermost call that hasn't returned. Starts must be added in increasing order.
+	 */
+	public void enter(int startID) {
+
+		if(numberOfCalls == starts.length) {
+			starts = grow(starts);
+			ends = grow(ends);
+			parents = grow(parents);
+			depths = grow(depths);
+		}
+
+		int call = numberOfCalls++;
+		int parent = openCalls.isEmpty() ? -1 : openCalls.lastValue();
+		starts[call] = startID;
+		ends[call] = NOT_RETURNED;
+		parents[call] = parent;
+		depths[call] = parent < 0 ? 0 : depths[parent] + 1;
+
+		openCalls.push(call);
+		addTransition(startID, call);
+
+	}
+
+	/**
+	 * Ends the innermost call that hasn't returned, which should be the one started at the given event.
+	 *
+	 * @param endID The return or catch event.
+	 * @param caught True if the call ended because an exception was caught in a caller, in which case the end event belongs to the caller, rather than the call.
+	 */
+	public void exit(int startID, int endID, boolean caught) {
+
+		if(openCalls.isEmpty()) return;
+
+		int call = openCalls.pop();
+		assert starts[call] == startID : "Call tree expected call started at " + starts[call] + " to end, but " + startID + " ended.";
+		ends[call] = endID;
+		addTransition(caught ? endID : endID + 1, parents[call]);
+
+	}
+
+	private void addTransition(int eventID, int call) {
+
+		// Several calls can end at the same event when an exception unwinds them; only the last change at an event matters.
+		if(numberOfTransitions > 0 && transitionEventIDs[numberOfTransitions - 1] == eventID) {
+			transitionCalls[numberOfTransitions - 1] = call;
+			return;
+		}
+
+		if(numberOfTransitions == transitionEventIDs.length) {
+			transitionEventIDs = grow(transitionEventIDs);
+			transitionCalls = grow(transitionCalls);
+		}
+		transitionEventIDs[numberOfTransitions] = eventID;
+		transitionCalls[numberOfTransitions] = call;
+		numberOfTransitions++;
+
+	}
+
+	private static int[] grow(int[] column) {
+
+		int[] newColumn = new int[column.length * 2];
+		System.arraycopy(column, 0, newColumn, 0, column.length);
+		return newColumn;
+
+	}
+
+	private static int[] trim(int[] column, int size) {
+
+		int[] trimmed = new int[size];
+		System.arraycopy(column, 0, trimmed, 0, size);
+		return trimmed;
+
+	}
+
+	public void trimToSize() {
+
+		starts = trim(starts, numberOfCalls);
+		ends = trim(ends, numberOfCalls);
+		parents = trim(parents, numberOfCalls);
+		depths = trim(depths, numberOfCalls);
+		transitionEventIDs = trim(transitionEventIDs, numberOfTransitions);
+		transitionCalls = trim(transitionCalls, numberOfTransitions);
+
+	}
+
+	public int getNumberOfCalls() { return numberOfCalls; }
+
+	/**
+	 * Returns the innermost call executing the given event of this thread, or -1 if the event isn't in any call we know of.
+	 */
+	public int getCallContaining(int eventID) {
+
+		// Find the last transition at or before the event.
+		int low = 0, high = numberOfTransitions - 1;
+		while(low <= high) {
+			int middle = (low + high) >>> 1;
+			if(transitionEventIDs[middle] <= eventID) low = middle + 1;
+			else high = middle - 1;
+		}
+		return high < 0 ? -1 : transitionCalls[high];
+
+	}
+
+	public int getStartID(int call) { return starts[call]; }
+
+	/**
+	 * Returns the return or catch event that ended the call, or NOT_RETURNED.
+	 */
+	public int getEndID(int call) { return ends[call]; }
+
+	public int getParent(int call) { return parents[call]; }
+
+	public int getDepth(int call) { return depths[call]; }
+
+	/**
+	 * True if the given call is the other call or encloses it.
+	 */
+	public boolean isAncestorOf(int call, int descendant) {
+
+		return starts[call] <= starts[descendant] && ends[descendant] <= ends[call];
+
+	}
+
+	public void write(DataOutputStream out) throws IOException {
+
+		out.writeInt(numberOfCalls);
+		for(int call = 0; call < numberOfCalls; call++) {
+			out.writeInt(starts[call]);
+			out.writeInt(ends[call]);
+			out.writeInt(parents[call]);
+		}
+
+		out.writeInt(numberOfTransitions);
+		for(int i = 0; i < numberOfTransitions; i++) {
+			out.writeInt(transitionEventIDs[i]);
+			out.writeInt(transitionCalls[i]);
+		}
+
+	}
+
+	public void read(DataInputStream in) throws IOException {
+
+		numberOfCalls = in.readInt();
+		starts = new int[numberOfCalls];
+		ends = new int[numberOfCalls];
+		parents = new int[numberOfCalls];
+		depths = new int[numberOfCalls];
+		for(int call = 0; call < numberOfCalls; call++) {
+			starts[call] = in.readInt();
+			ends[call] = in.readInt();
+			parents[call] = in.readInt();
+			// Parents always start before their children, so their depths are already known.
+			depths[call] = parents[call] < 0 ? 0 : depths[parents[call]] + 1;
+		}
+
+		numberOfTransitions = in.readInt();
+		transitionEventIDs = new int[numberOfTransitions];
+		transitionCalls = new int[numberOfTransitions];
+		for(int i = 0; i < numberOfTransitions; i++) {
+			transitionEventIDs[i] = in.readInt();
+			transitionCalls[i] = in.readInt();
+		}
+
+	}
+
+}
@@ -0,0 +1,254 @@
+package edu.cmu.hcii.whyline.trace;
+
+import java.io.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+import edu.cmu.hcii.whyline.analysis.ControlDependencies;
+import edu.cmu.hcii.whyline.bytecode.Classfile;
+import edu.cmu.hcii.whyline.bytecode.MethodInfo;
+import edu.cmu.hcii.whyline.bytecode.StackDependencies;
+import edu.cmu.hcii.whyline.util.Util;
+import gnu.trove.TIntObjectHashMap;
+
+/**
+ * A cache of static analyses of classfiles, shared by every trace, so that loading another trace of the same program doesn't
+ * analyze the same methods again. Each classfile's analyses are saved in a folder named by a digest of the classfile's bytes, so a class
+ * that changes is just a different entry. Each method's stack and control dependencies are saved in their own files in that folder
+ * when they're first analyzed, so loading a trace analyzes nothing, and only the methods someone asks about are ever analyzed.
+ *
+ * Call graphs depend on every class in a trace, so they're saved by a digest of the IDs and digests of all of the classes.
+ *
+ * @author Andrew J. Ko
+ *
+ */
+public final class ClassAnalysisCache {
+
+	// Change this when the analyses or the way they're saved changes, so that old entries are ignored.
+	private static final int FORMAT_VERSION = 2;
+
+	// The suffixes of the files each method's analyses are saved in.
+	private static final String STACK_DEPENDENCIES = ".stack";
+	private static final String CONTROL_DEPENDENCIES = ".control";
+
+	private static final String CALL_GRAPH_PREFIX = "callgraph-";
+
+	private final File folder;
+
+	private final Map<Classfile,String> digestsByClassfile = new IdentityHashMap<Classfile,String>();
+
+	public ClassAnalysisCache(File folder) {
+
+		this.folder = folder;
+		folder.mkdirs();
+
+	}
+
+	/**
+	 * Remembers the digest of the given classfile's bytes, so that its methods' analyses can be found and saved later.
+	 * This doesn't analyze anything; methods are only analyzed, and saved, when something asks for their analyses.
+	 * Safe to call from several threads at once.
+	 */
+	public void add(Classfile classfile, byte[] bytes) {
+
+		String digest = getDigest(bytes);
+		synchronized(digestsByClassfile) { digestsByClassfile.put(classfile, digest); }
+
+	}
+
+	private String getDigestOf(Classfile classfile) {
+
+		synchronized(digestsByClassfile) { return digestsByClassfile.get(classfile); }
+
+	}
+
+	/**
+	 * Returns the file the given analysis of the given method is saved in, whether or not it exists yet, or null if its class wasn't added.
+	 */
+	private File getFileFor(MethodInfo method, String analysis) {
+
+		String digest = getDigestOf(method.getClassfile());
+		if(digest == null) return null;
+		return new File(new File(folder, digest), method.getDeclarationIndex() + analysis);
+
+	}
+
+	/**
+	 * Returns the saved analysis of the given kind for the given method, or null if there isn't one.
+	 */
+	private DataInputStream read(MethodInfo method, String analysis) {
+
+		File file = getFileFor(method, analysis);
+		if(file == null || !file.exists()) return null;
+
+		try {
+			byte[] bytes = new byte[(int)file.length()];
+			DataInputStream in = new DataInputStream(new FileInputStream(file));
+			try {
+				in.readFully(bytes);
+			} finally {
+				in.close();
+			}
+			DataInputStream analyses = new DataInputStream(new ByteArrayInputStream(bytes));
+			return analyses.readInt() == FORMAT_VERSION ? analyses : null;
+		} catch(IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+
+	}
+
+	/**
+	 * Saves an analysis of the given kind for the given method, unless its class wasn't added or it's already saved.
+	 */
+	private void save(MethodInfo method, String analysis, Analysis writer) {
+
+		File file = getFileFor(method, analysis);
+		if(file == null || file.exists()) return;
+
+		try {
+			file.getParentFile().mkdirs();
+
+			// Write to a temporary file first, so that no one reads half of an entry.
+			File temp = File.createTempFile(file.getName(), ".tmp", file.getParentFile());
+			DataOutputStream out = Util.getWriterFor(temp);
+			try {
+				out.writeInt(FORMAT_VERSION);
+				writer.write(out);
+			} finally {
+				out.close();
+			}
+
+			if(!temp.renameTo(file)) temp.delete();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+
+	}
+
+	private interface Analysis {
+
+		public void write(DataOutputStream out) throws IOException;
+
+	}
+
+	/**
+	 * Returns the given method's saved stack dependencies, or null if they weren't saved.
+	 */
+	public StackDependencies getStackDependenciesFor(MethodInfo method) {
+
+		DataInputStream in = read(method, STACK_DEPENDENCIES);
+		if(in == null) return null;
+		try {
+			return new StackDependencies(method.getCode(), in);
+		} catch(IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+
+	}
+
+	/**
+	 * Saves stack dependencies that were just analyzed, so that other traces of the same class don't analyze them again.
+	 */
+	public void saveStackDependencies(MethodInfo method, final StackDependencies dependencies) {
+
+		save(method, STACK_DEPENDENCIES, new Analysis() {
+			public void write(DataOutputStream out) throws IOException { dependencies.write(out); }
+		});
+
+	}
+
+	/**
+	 * Returns the given method's saved control dependencies, or null if they weren't saved.
+	 */
+	public ControlDependencies getControlDependenciesFor(MethodInfo method) {
+
+		DataInputStream in = read(method, CONTROL_DEPENDENCIES);
+		if(in == null) return null;
+		try {
+			return new ControlDependencies(method.getCode(), in);
+		} catch(IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+
+	}
+
+	/**
+	 * Saves control dependencies that were just analyzed, so that other traces of the same class don't analyze them again.
+	 */
+	public void saveControlDependencies(MethodInfo method, final ControlDependencies dependencies) {
+
+		save(method, CONTROL_DEPENDENCIES, new Analysis() {
+			public void write(DataOutputStream out) throws IOException { dependencies.write(out); }
+		});
+
+	}
+
+	/**
+	 * Returns the file where the call graph of the given classes is saved, whether or not it exists yet, or null if some of the classes weren't added.
+	 *
+	 * @param callGraphFormat Identifies how the call graph refers to instructions, since it differs between versions of the trace format.
+	 */
+	public File getCallGraphFile(TIntObjectHashMap<Classfile> classfilesByID, int callGraphFormat) {
+
+		int[] classIDs = classfilesByID.keys();
+		Arrays.sort(classIDs);
+
+		try {
+			ByteArrayOutputStream bytes = new ByteArrayOutputStream(classIDs.length * 48);
+			DataOutputStream out = new DataOutputStream(bytes);
+			out.writeInt(FORMAT_VERSION);
+			out.writeInt(callGraphFormat);
+			for(int classID : classIDs) {
+				String digest = getDigestOf(classfilesByID.get(classID));
+				if(digest == null) return null;
+				out.writeInt(classID);
+				out.writeUTF(digest);
+			}
+			out.flush();
+			return new File(folder, CALL_GRAPH_PREFIX + getDigest(bytes.toByteArray()));
+		} catch(IOException e) {
+			e.printStackTrace();
+			return null;
+		}
+
+	}
+
+	/**
+	 * Copies a trace's call graph to the given shared file, so that other traces of the same classes can use it.
+	 */
+	public void saveCallGraph(File callGraph, File sharedCallGraph) {
+
+		try {
+			File temp = File.createTempFile(sharedCallGraph.getName(), ".tmp", folder);
+			Util.copyFile(callGraph, temp);
+			if(!temp.renameTo(sharedCallGraph)) temp.delete();
+		} catch(IOException e) {
+			e.printStackTrace();
+		}
+
+	}
+
+	public static String getDigest(byte[] bytes) {
+
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(bytes);
+			StringBuilder hex = new StringBuilder(digest.length * 2);
+			for(byte b : digest) {
+				hex.append(Character.forDigit((b >> 4) & 0xF, 16));
+				hex.append(Character.forDigit(b & 0xF, 16));
+			}
+			return hex.toString();
+		} catch(NoSuchAlgorithmException e) {
+			// Every Java platform is required to support SHA-1.
+			throw new RuntimeException(e);
+		}
+
+	}
+
+}
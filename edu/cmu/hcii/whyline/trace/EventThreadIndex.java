@@ -0,0 +1,64 @@
+package edu.cmu.hcii.whyline.trace;
+
+/**
+ * Maps event IDs to the IDs of the threads that executed them. The trace is stored as runs of consecutive events in the same thread,
+ * sorted by the first event of each run, along with a directory that says which run each bucket of events starts in.
+ * Finding an event's thread is a read of the directory and usually one or two comparisons, rather than a search through every thread's ranges.
+ *
+ * @author Andrew J. Ko
+ *
+ */
+public final class EventThreadIndex {
+
+	private static final int EVENTS_PER_BUCKET_BITS = 10;
+
+	private final int[] runStarts;
+	private final short[] runThreadIDs;
+
+	// The index of the run containing the first event of each bucket.
+	private final int[] firstRunInBucket;
+
+	/**
+	 * @param runStarts The first event ID of each run, in increasing order, starting with 0.
+	 * @param runThreadIDs The thread of each run.
+	 */
+	public EventThreadIndex(int numberOfEvents, int[] runStarts, short[] runThreadIDs) {
+
+		assert runStarts.length == runThreadIDs.length;
+
+		this.runStarts = runStarts;
+		this.runThreadIDs = runThreadIDs;
+
+		int numberOfBuckets = (numberOfEvents >>> EVENTS_PER_BUCKET_BITS) + 1;
+		firstRunInBucket = new int[numberOfBuckets];
+		int run = 0;
+		for(int bucket = 0; bucket < numberOfBuckets; bucket++) {
+			int firstEventInBucket = bucket << EVENTS_PER_BUCKET_BITS;
+			while(run + 1 < runStarts.length && runStarts[run + 1] <= firstEventInBucket)
+				run++;
+			firstRunInBucket[bucket] = run;
+		}
+
+	}
+
+	public int getNumberOfRuns() { return runStarts.length; }
+
+	public int getThreadID(int eventID) {
+
+		int bucket = eventID >>> EVENTS_PER_BUCKET_BITS;
+
+		// The run is somewhere between the run this bucket starts in and the run the next bucket starts in.
+		int low = firstRunInBucket[bucket];
+		int high = bucket + 1 < firstRunInBucket.length ? firstRunInBucket[bucket + 1] : runStarts.length - 1;
+
+		// Find the last run that starts at or before the event.
+		while(low < high) {
+			int middle = (low + high + 1) >>> 1;
+			if(runStarts[middle] <= eventID) low = middle;
+			else high = middle - 1;
+		}
+		return runThreadIDs[low];
+
+	}
+
+}
@@ -0,0 +1,286 @@
+package edu.cmu.hcii.whyline.trace;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+import edu.cmu.hcii.whyline.util.Saveable;
+import gnu.trove.TIntObjectHashMap;
+import gnu.trove.TIntObjectIterator;
+
+/**
+ * An inverted index from class and instruction IDs to the IDs of the events that executed them, so that finding
+ * the nearest execution of an instruction before or after some event is a binary search instead of a scan through every event in between.
+ *
+ * Each instruction's event IDs are stored in increasing order as varint deltas from the previous ID, which usually takes a byte or two per event.
+ * Every so many events we remember the event ID and where its deltas start, so that a search only has to decode one short run of deltas.
+ *
+ * Events have to be added in increasing order, which is the order the loader reads them in.
+ *
+ * @author Andrew J. Ko
+ *
+ */
+public final class ExecutionIndex implements Saveable {
+
+	private static final int EVENTS_PER_CHECKPOINT = 64;
+
+	private final TIntObjectHashMap<Executions> executionsByInstructionID = new TIntObjectHashMap<Executions>();
+
+	public ExecutionIndex() {}
+
+	public void add(int instructionID, int eventID) {
+
+		Executions executions = executionsByInstructionID.get(instructionID);
+		if(executions == null) {
+			executions = new Executions();
+			executionsByInstructionID.put(instructionID, executions);
+		}
+		executions.add(eventID);
+
+	}
+
+	public int getNumberOfExecutions(int instructionID) {
+
+		Executions executions = executionsByInstructionID.get(instructionID);
+		return executions == null ? 0 : executions.count;
+
+	}
+
+	/**
+	 * Returns the latest execution of the given instruction before the given event ID, or -1 if there isn't one.
+	 */
+	public int getExecutionBefore(int instructionID, int beforeID) {
+
+		Executions executions = executionsByInstructionID.get(instructionID);
+		return executions == null ? -1 : executions.getExecutionBefore(beforeID);
+
+	}
+
+	/**
+	 * Returns the earliest execution of the given instruction after the given event ID, or -1 if there isn't one.
+	 */
+	public int getExecutionAfter(int instructionID, int afterID) {
+
+		Executions executions = executionsByInstructionID.get(instructionID);
+		return executions == null ? -1 : executions.getExecutionAfter(afterID);
+
+	}
+
+	public void trimToSize() {
+
+		TIntObjectIterator<Executions> iterator = executionsByInstructionID.iterator();
+		while(iterator.hasNext()) {
+			iterator.advance();
+			iterator.value().trimToSize();
+		}
+		executionsByInstructionID.trimToSize();
+
+	}
+
+	public void write(DataOutputStream out) throws IOException {
+
+		out.writeInt(executionsByInstructionID.size());
+		TIntObjectIterator<Executions> iterator = executionsByInstructionID.iterator();
+		while(iterator.hasNext()) {
+			iterator.advance();
+			out.writeInt(iterator.key());
+			iterator.value().write(out);
+		}
+
+	}
+
+	public void read(DataInputStream in) throws IOException {
+
+		int size = in.readInt();
+		executionsByInstructionID.ensureCapacity(size);
+		for(int i = 0; i < size; i++) {
+			int instructionID = in.readInt();
+			Executions executions = new Executions();
+			executions.read(in);
+			executionsByInstructionID.put(instructionID, executions);
+		}
+
+	}
+
+	private static final class Executions {
+
+		private int count = 0;
+		private int lastEventID = -1;
+
+		private byte[] deltas = new byte[4];
+		private int length = 0;
+
+		// The ID of every EVENTS_PER_CHECKPOINT'th event, and the offset of the delta of the event after it.
+		private int[] checkpointEventIDs = new int[1];
+		private int[] checkpointOffsets = new int[1];
+
+		public void add(int eventID) {
+
+			assert eventID > lastEventID : "Executions must be added in increasing order, but " + eventID + " came after " + lastEventID;
+
+			if(count % EVENTS_PER_CHECKPOINT == 0) {
+
+				int checkpoint = count / EVENTS_PER_CHECKPOINT;
+				if(checkpoint == checkpointEventIDs.length) {
+					int[] newEventIDs = new int[Math.max(1, checkpointEventIDs.length * 2)];
+					int[] newOffsets = new int[Math.max(1, checkpointOffsets.length * 2)];
+					System.arraycopy(checkpointEventIDs, 0, newEventIDs, 0, checkpoint);
+					System.arraycopy(checkpointOffsets, 0, newOffsets, 0, checkpoint);
+					checkpointEventIDs = newEventIDs;
+					checkpointOffsets = newOffsets;
+				}
+				checkpointEventIDs[checkpoint] = eventID;
+				checkpointOffsets[checkpoint] = length;
+
+			}
+			else {
+
+				// Make sure there's room for the largest varint.
+				if(length + 5 > deltas.length) {
+					byte[] newDeltas = new byte[Math.max(length + 5, deltas.length * 2)];
+					System.arraycopy(deltas, 0, newDeltas, 0, length);
+					deltas = newDeltas;
+				}
+
+				int delta = eventID - lastEventID;
+				while((delta & ~0x7F) != 0) {
+					deltas[length++] = (byte)((delta & 0x7F) | 0x80);
+					delta >>>= 7;
+				}
+				deltas[length++] = (byte)delta;
+
+			}
+
+			lastEventID = eventID;
+			count++;
+
+		}
+
+		private int getNumberOfCheckpoints() { return (count + EVENTS_PER_CHECKPOINT - 1) / EVENTS_PER_CHECKPOINT; }
+
+		/**
+		 * Returns the index of the last checkpoint whose event ID is less than or equal to the given ID, or -1 if the first is greater.
+		 */
+		private int getCheckpointAtOrBefore(int eventID) {
+
+			int low = 0;
+			int high = getNumberOfCheckpoints() - 1;
+			int result = -1;
+			while(low <= high) {
+				int middle = (low + high) >>> 1;
+				if(checkpointEventIDs[middle] <= eventID) {
+					result = middle;
+					low = middle + 1;
+				}
+				else high = middle - 1;
+			}
+			return result;
+
+		}
+
+		public int getExecutionBefore(int beforeID) {
+
+			if(count == 0 || beforeID <= checkpointEventIDs[0]) return -1;
+			if(lastEventID < beforeID) return lastEventID;
+
+			int checkpoint = getCheckpointAtOrBefore(beforeID - 1);
+
+			// Decode forward from the checkpoint until we pass the bound. The next checkpoint is at or after the bound, so this stays in this run of deltas.
+			int eventID = checkpointEventIDs[checkpoint];
+			int offset = checkpointOffsets[checkpoint];
+			int remaining = Math.min(EVENTS_PER_CHECKPOINT, count - checkpoint * EVENTS_PER_CHECKPOINT) - 1;
+			while(remaining > 0) {
+				int delta = 0;
+				int shift = 0;
+				byte b;
+				do {
+					b = deltas[offset++];
+					delta |= (b & 0x7F) << shift;
+					shift += 7;
+				} while(b < 0);
+				if(eventID + delta >= beforeID) break;
+				eventID += delta;
+				remaining--;
+			}
+			return eventID;
+
+		}
+
+		public int getExecutionAfter(int afterID) {
+
+			if(count == 0 || lastEventID <= afterID) return -1;
+
+			int checkpoint = getCheckpointAtOrBefore(afterID);
+			if(checkpoint < 0) return checkpointEventIDs[0];
+
+			// Decode forward from the checkpoint until we pass the bound. If the run ends first, the next checkpoint is the answer.
+			int eventID = checkpointEventIDs[checkpoint];
+			int offset = checkpointOffsets[checkpoint];
+			int remaining = Math.min(EVENTS_PER_CHECKPOINT, count - checkpoint * EVENTS_PER_CHECKPOINT) - 1;
+			while(remaining > 0) {
+				int delta = 0;
+				int shift = 0;
+				byte b;
+				do {
+					b = deltas[offset++];
+					delta |= (b & 0x7F) << shift;
+					shift += 7;
+				} while(b < 0);
+				eventID += delta;
+				if(eventID > afterID) return eventID;
+				remaining--;
+			}
+			return checkpointEventIDs[checkpoint + 1];
+
+		}
+
+		public void trimToSize() {
+
+			byte[] newDeltas = new byte[length];
+			System.arraycopy(deltas, 0, newDeltas, 0, length);
+			deltas = newDeltas;
+
+			int checkpoints = getNumberOfCheckpoints();
+			int[] newEventIDs = new int[checkpoints];
+			int[] newOffsets = new int[checkpoints];
+			System.arraycopy(checkpointEventIDs, 0, newEventIDs, 0, checkpoints);
+			System.arraycopy(checkpointOffsets, 0, newOffsets, 0, checkpoints);
+			checkpointEventIDs = newEventIDs;
+			checkpointOffsets = newOffsets;
+
+		}
+
+		public void write(DataOutputStream out) throws IOException {
+
+			out.writeInt(count);
+			out.writeInt(lastEventID);
+			out.writeInt(length);
+			out.write(deltas, 0, length);
+			int checkpoints = getNumberOfCheckpoints();
+			for(int i = 0; i < checkpoints; i++) {
+				out.writeInt(checkpointEventIDs[i]);
+				out.writeInt(checkpointOffsets[i]);
+			}
+
+		}
+
+		public void read(DataInputStream in) throws IOException {
+
+			count = in.readInt();
+			lastEventID = in.readInt();
+			length = in.readInt();
+			deltas = new byte[length];
+			in.readFully(deltas);
+			int checkpoints = getNumberOfCheckpoints();
+			checkpointEventIDs = new int[checkpoints];
+			checkpointOffsets = new int[checkpoints];
+			for(int i = 0; i < checkpoints; i++) {
+				checkpointEventIDs[i] = in.readInt();
+				checkpointOffsets[i] = in.readInt();
+			}
+
+		}
+
+	}
+
+}
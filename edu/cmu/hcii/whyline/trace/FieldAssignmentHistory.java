@@ -4,28 +4,55 @@ import java.io.DataInputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 
 import edu.cmu.hcii.whyline.bytecode.FieldrefContainer;
 import edu.cmu.hcii.whyline.util.IntegerVector;
 import edu.cmu.hcii.whyline.util.Saveable;
-import gnu.trove.TIntLongHashMap;
+import gnu.trove.TLongObjectHashMap;
+import gnu.trove.TLongObjectIterator;
 
 /**
  * Represents all field assignment events.
+ * 
+ * Assignments are recorded by unqualified field name as they're loaded. The object assigned isn't known until
+ * the trace is loaded, so the first question about a field name after loading resolves the object of every assignment
+ * to that name once, and indexes the assignments by object ID. Questions about a particular object's field are then
+ * a binary search through just that object's assignments. The indices built are saved with the history.
+ * 
+ * The indices share the trace's cache budget. When it's full, the indices of the names least recently asked about are
+ * forgotten, and built again if they're asked about again. Indices are built outside of this history's lock, since
+ * building one charges the budget for the objects it resolves; a question about a name whose index is already being
+ * built waits for that build instead of starting another.
  *  
  * @author Andrew J. Ko
  *
  */ 
-public class FieldAssignmentHistory implements Saveable {
+public class FieldAssignmentHistory implements Saveable, CacheBudget.Member {
+
+	// Rough sizes of an index's entries, for charging the cache budget.
+	private static final int BYTES_PER_OBJECT = 64;
+	private static final int BYTES_PER_ASSIGNMENT = 4;
 
 	private final Trace trace;
 
 	private final HashMap<String,IntegerVector> fieldAssignmentsByName = new HashMap<String,IntegerVector>(100);
-	private final TIntLongHashMap objectIDsByAssignmentID = new TIntLongHashMap(100);
+	private final StripedIntLongCache objectIDsByAssignmentID;
+	
+	// In the order they were last used, so that the least recently used are evicted first.
+	private final LinkedHashMap<String,TLongObjectHashMap<IntegerVector>> fieldAssignmentsByObjectIDByName = new LinkedHashMap<String,TLongObjectHashMap<IntegerVector>>(100, .75f, true);
+	private final HashMap<String,FutureTask<TLongObjectHashMap<IntegerVector>>> indicesBeingBuilt = new HashMap<String,FutureTask<TLongObjectHashMap<IntegerVector>>>();
+	private long bytesIndexed, hits, misses, evictions;
 	
 	public FieldAssignmentHistory(Trace trace) {
 
 		this.trace = trace;
+		this.objectIDsByAssignmentID = new StripedIntLongCache("objects assigned", trace.getCacheBudget());
+		trace.getCacheBudget().add(this);
 	
 	}
 
@@ -47,11 +74,11 @@ public class FieldAssignmentHistory implements Saveable {
 	
 	private long getObjectIDAssigned(int assignmentID){
 
-		if(objectIDsByAssignmentID.containsKey(assignmentID))
-			return objectIDsByAssignmentID.get(assignmentID);
+		long objectID = objectIDsByAssignmentID.get(assignmentID, Long.MIN_VALUE);
+		if(objectID != Long.MIN_VALUE) return objectID;
 		
 		try {
-			long objectID = trace.getPutFieldObjectIDAssigned(assignmentID);
+			objectID = trace.getPutFieldObjectIDAssigned(assignmentID);
 			objectIDsByAssignmentID.put(assignmentID, objectID);
 			return objectID;
 		} catch (NoValueException e) {
@@ -60,8 +87,154 @@ public class FieldAssignmentHistory implements Saveable {
 		
 	}
 	
+	/**
+	 * Returns the assignments to fields of the given name, indexed by the ID of the object assigned, or null if
+	 * the trace isn't done loading, since until then we may not be able to resolve the objects assigned.
+	 */
+	private TLongObjectHashMap<IntegerVector> getFieldAssignmentsByObjectID(String unqualifiedFieldName) {
+		
+		FutureTask<TLongObjectHashMap<IntegerVector>> build;
+		boolean building = false;
+		synchronized(this) {
+
+			TLongObjectHashMap<IntegerVector> assignmentsByObjectID = fieldAssignmentsByObjectIDByName.get(unqualifiedFieldName);
+			if(assignmentsByObjectID != null) {
+				hits++;
+				return assignmentsByObjectID;
+			}
+			if(!trace.isDoneLoading()) return null;
+
+			build = indicesBeingBuilt.get(unqualifiedFieldName);
+			if(build == null) {
+				misses++;
+				final IntegerVector assignments = fieldAssignmentsByName.get(unqualifiedFieldName);
+				build = new FutureTask<TLongObjectHashMap<IntegerVector>>(new Callable<TLongObjectHashMap<IntegerVector>>() {
+					public TLongObjectHashMap<IntegerVector> call() { return buildIndex(assignments); }
+				});
+				indicesBeingBuilt.put(unqualifiedFieldName, build);
+				building = true;
+			}
+			
+		}
+
+		TLongObjectHashMap<IntegerVector> assignmentsByObjectID = null;
+		try {
+
+			if(building) build.run();
+			assignmentsByObjectID = build.get();
+
+		} catch(InterruptedException e) {
+			// Let the caller fall back to searching the assignments to the name.
+			Thread.currentThread().interrupt();
+		} catch(ExecutionException e) {
+			e.printStackTrace();
+		}
+		finally {
+			if(building) {
+				long bytes = 0;
+				synchronized(this) {
+					indicesBeingBuilt.remove(unqualifiedFieldName);
+					if(assignmentsByObjectID != null) {
+						fieldAssignmentsByObjectIDByName.put(unqualifiedFieldName, assignmentsByObjectID);
+						bytes = getBytes(assignmentsByObjectID);
+						bytesIndexed += bytes;
+					}
+				}
+				// Charge for the index once we've let go of the lock, since making space may mean evicting some of our own indices.
+				trace.getCacheBudget().charge(bytes);
+			}
+		}
+		return assignmentsByObjectID;
+		
+	}
+
+	/**
+	 * Resolves the object of each of the given assignments, without holding this history's lock, since resolving
+	 * them may charge the cache budget.
+	 */
+	private TLongObjectHashMap<IntegerVector> buildIndex(IntegerVector assignments) {
+		
+		TLongObjectHashMap<IntegerVector> assignmentsByObjectID = new TLongObjectHashMap<IntegerVector>();
+		if(assignments == null) return assignmentsByObjectID;
+			
+		// The assignments are in increasing order, so each object's assignments will be too.
+		for(int i = 0; i < assignments.size(); i++) {
+			int eventID = assignments.get(i);
+			long objectID = getObjectIDAssigned(eventID);
+			IntegerVector objectAssignments = assignmentsByObjectID.get(objectID);
+			if(objectAssignments == null) {
+				objectAssignments = new IntegerVector(2);
+				assignmentsByObjectID.put(objectID, objectAssignments);
+			}
+			objectAssignments.append(eventID);
+			// We don't need to cache these anymore.
+			objectIDsByAssignmentID.remove(eventID);
+		}
+		trimToSize(assignmentsByObjectID);
+		return assignmentsByObjectID;
+		
+	}
+	
+	private static long getBytes(TLongObjectHashMap<IntegerVector> assignmentsByObjectID) {
+		
+		long bytes = (long)BYTES_PER_OBJECT * assignmentsByObjectID.size();
+		TLongObjectIterator<IntegerVector> iterator = assignmentsByObjectID.iterator();
+		while(iterator.hasNext()) {
+			iterator.advance();
+			bytes += BYTES_PER_ASSIGNMENT * iterator.value().size();
+		}
+		return bytes;
+		
+	}
+
+	public String getName() { return "field assignments by object"; }
+
+	public long evict(long bytes) {
+		
+		long freed = 0;
+		synchronized(this) {
+			Iterator<TLongObjectHashMap<IntegerVector>> indices = fieldAssignmentsByObjectIDByName.values().iterator();
+			while(freed < bytes && indices.hasNext()) {
+				freed += getBytes(indices.next());
+				indices.remove();
+				evictions++;
+			}
+			bytesIndexed -= freed;
+		}
+		trace.getCacheBudget().credit(freed);
+		return freed;
+		
+	}
+
+	public synchronized long getBytes() { return bytesIndexed; }
+
+	public synchronized long getHits() { return hits; }
+
+	public synchronized long getMisses() { return misses; }
+
+	public synchronized long getEvictions() { return evictions; }
+	
+	private static void trimToSize(TLongObjectHashMap<IntegerVector> assignmentsByObjectID) {
+		
+		TLongObjectIterator<IntegerVector> iterator = assignmentsByObjectID.iterator();
+		while(iterator.hasNext()) {
+			iterator.advance();
+			iterator.value().trimToSize();
+		}
+		assignmentsByObjectID.trimToSize();
+		
+	}
+	
 	public int getDefinitionOfFieldBefore(long objectID, String unqualifiedFieldName, int eventIDBefore) {
 
+		TLongObjectHashMap<IntegerVector> assignmentsByObjectID = getFieldAssignmentsByObjectID(unqualifiedFieldName);
+		if(assignmentsByObjectID != null) {
+			IntegerVector assignments = assignmentsByObjectID.get(objectID);
+			if(assignments == null) return -1;
+			int index = assignments.getIndexOfLargestValueLessThanOrEqualTo(eventIDBefore);
+			return index < 0 ? -1 : assignments.get(index);
+		}
+
 		IntegerVector objectFieldAssignments = fieldAssignmentsByName.get(unqualifiedFieldName);
 		
 		// No assignments to fields of this name...
@@ -83,6 +256,14 @@ public class FieldAssignmentHistory implements Saveable {
 	
 	public int getDefinitionOfFieldAfter(long objectID, String unqualifiedFieldName, int afterID) {
 
+		TLongObjectHashMap<IntegerVector> assignmentsByObjectID = getFieldAssignmentsByObjectID(unqualifiedFieldName);
+		if(assignmentsByObjectID != null) {
+			IntegerVector objectAssignments = assignmentsByObjectID.get(objectID);
+			if(objectAssignments == null) return -1;
+			int index = objectAssignments.getIndexOfLargestValueLessThanOrEqualTo(afterID) + 1;
+			return index < objectAssignments.size() ? objectAssignments.get(index) : -1;
+		}
+
 		IntegerVector assignments = fieldAssignmentsByName.get(unqualifiedFieldName);
 
 		// No assignments to fields of this name...
@@ -106,6 +287,18 @@ public class FieldAssignmentHistory implements Saveable {
 
 		IntegerVector definitions = new IntegerVector(2);
 		
+		TLongObjectHashMap<IntegerVector> assignmentsByObjectID = getFieldAssignmentsByObjectID(unqualifiedFieldName);
+		if(assignmentsByObjectID != null) {
+			IntegerVector objectAssignments = assignmentsByObjectID.get(objectID);
+			if(objectAssignments != null) {
+				// Find the first assignment at or after the given event.
+				int index = objectAssignments.getIndexOfLargestValueLessThanOrEqualTo(eventIDAfter - 1) + 1;
+				for(int i = index; i < objectAssignments.size(); i++)
+					definitions.append(objectAssignments.get(i));
+			}
+			return definitions;
+		}
+		
 		IntegerVector definitionIDs = fieldAssignmentsByName.get(unqualifiedFieldName);
 
 		if(definitionIDs != null) {
@@ -144,6 +337,21 @@ public class FieldAssignmentHistory implements Saveable {
 			fieldAssignmentsByName.get(unqualifiedName).write(out);
 		}		
 
+		synchronized(this) {
+			out.writeInt(fieldAssignmentsByObjectIDByName.size());
+			for(String unqualifiedName : fieldAssignmentsByObjectIDByName.keySet()) {
+				out.writeUTF(unqualifiedName);
+				TLongObjectHashMap<IntegerVector> assignmentsByObjectID = fieldAssignmentsByObjectIDByName.get(unqualifiedName);
+				out.writeInt(assignmentsByObjectID.size());
+				TLongObjectIterator<IntegerVector> iterator = assignmentsByObjectID.iterator();
+				while(iterator.hasNext()) {
+					iterator.advance();
+					out.writeLong(iterator.key());
+					iterator.value().write(out);
+				}
+			}
+		}
+
 	}
 
 	public void read(DataInputStream in) throws IOException {
@@ -151,6 +359,28 @@ public class FieldAssignmentHistory implements Saveable {
 		int size = in.readInt();
 		for(int i = 0; i < size; i++)
 			fieldAssignmentsByName.put(in.readUTF(), new IntegerVector(in));		
+
+		// Histories saved before the object index end here.
+		if(in.available() > 0) {
+			long bytes = 0;
+			int numberOfNames = in.readInt();
+			for(int i = 0; i < numberOfNames; i++) {
+				String unqualifiedName = in.readUTF();
+				int numberOfObjects = in.readInt();
+				TLongObjectHashMap<IntegerVector> assignmentsByObjectID = new TLongObjectHashMap<IntegerVector>(numberOfObjects);
+				for(int j = 0; j < numberOfObjects; j++) {
+					long objectID = in.readLong();
+					assignmentsByObjectID.put(objectID, new IntegerVector(in));
+				}
+				long indexBytes = getBytes(assignmentsByObjectID);
+				synchronized(this) { 
+					fieldAssignmentsByObjectIDByName.put(unqualifiedName, assignmentsByObjectID);
+					bytesIndexed += indexBytes;
+				}
+				bytes += indexBytes;
+			}
+			trace.getCacheBudget().charge(bytes);
+		}
 		
 	}
 	
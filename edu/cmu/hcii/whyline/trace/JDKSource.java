@@ -9,6 +9,7 @@ import java.util.zip.ZipEntry;
 import edu.cmu.hcii.whyline.Whyline;
 import edu.cmu.hcii.whyline.bytecode.Classfile;
 import edu.cmu.hcii.whyline.source.JavaSourceFile;
+import edu.cmu.hcii.whyline.source.SourceIndex;
 
 /**
  * Represents the source files stored in "src.jar", which comes with a standard install of a Java SDK.
@@ -25,6 +26,10 @@ public class JDKSource {
 
 	private static Set<String> knownSourceFileNames;
 	private static String lastPathIndexed = null;
+
+	// Read without locking once it's built, and built while holding only textIndexLock.
+	private static volatile SourceIndex textIndex;
+	private static final Object textIndexLock = new Object();
 	
 	private static Set<String> getSourceFileNames() {
 		
@@ -45,15 +50,17 @@ public class JDKSource {
 		
 	}
 
-	private static void indexSource() {
+	private static synchronized void indexSource() {
 
 		try {
 
 			String sourcePath = Whyline.getJDKSourcePath();
 
 			// If the path changed since we last indexed, then we will reindex using the new path.
-			if(lastPathIndexed != null && sourcePath != null && !lastPathIndexed.equals(sourcePath))
+			if(lastPathIndexed != null && sourcePath != null && !lastPathIndexed.equals(sourcePath)) {
 				knownSourceFileNames = null;
+				textIndex = null;
+			}
 			else
 				lastPathIndexed = sourcePath;
 			
@@ -92,7 +99,7 @@ public class JDKSource {
 		
 	}
 	
-	public static JavaSourceFile getSourceForQualifiedName(String qualifiedSourcefileName) {
+	public static synchronized JavaSourceFile getSourceForQualifiedName(String qualifiedSourcefileName) {
 		
 		JavaSourceFile source = sourceByName.get(qualifiedSourcefileName);
 		
@@ -104,7 +111,71 @@ public class JDKSource {
 	
 	public static int getNumberOfSourceFilesKnown() { return getSourceFileNames().size(); }
 	
-	public static Collection<JavaSourceFile> getAllSource() { 
+	/**
+	 * Returns an index of the text of all of the JDK's source, building and saving it in the Whyline folder if it hasn't been
+	 * built for this source yet, or null if there's no source or it couldn't be indexed. Building it reads every source file, but doesn't load any.
+	 * Only one thread builds the index, but it doesn't hold the class's lock while it does, so finding source files doesn't wait for it.
+	 */
+	public static SourceIndex getTextIndex() {
+		
+		indexSource();
+
+		SourceIndex index = textIndex;
+		if(index != null) return index;
+
+		synchronized(textIndexLock) {
+
+			index = textIndex;
+			if(index != null) return index;
+
+			JarFile jar;
+			Set<String> names;
+			synchronized(JDKSource.class) {
+				jar = sourceJAR;
+				names = knownSourceFileNames == null ? null : new TreeSet<String>(knownSourceFileNames);
+			}
+			if(jar == null || names == null) return null;
+
+			File sourceJARFile = new File(jar.getName());
+			String signature = sourceJARFile.getAbsolutePath() + ":" + sourceJARFile.length() + ":" + sourceJARFile.lastModified();
+			File indexFile = new File(Whyline.getSourceIndexFolder(), "jdk-" + ClassAnalysisCache.getDigest(sourceJARFile.getAbsolutePath().getBytes()));
+	
+			index = SourceIndex.open(indexFile, signature);
+			if(index == null) {
+				
+				try {
+		
+					indexFile.getParentFile().mkdirs();
+					SourceIndex.Builder builder = new SourceIndex.Builder();
+					for(String name : names) {
+						ZipEntry entry = jar.getEntry("src/" + name);
+						DataInputStream stream = new DataInputStream(jar.getInputStream(entry));
+						byte[] bytes = new byte[(int)entry.getSize()];
+						stream.readFully(bytes);
+						stream.close();
+						builder.add(name, bytes);
+					}
+					index = builder.save(indexFile, signature);
+					
+				} catch(IOException e) {
+					
+					e.printStackTrace();
+					
+				}
+				
+			}
+
+			// Only publish the index if the source path didn't change while we were building it.
+			synchronized(JDKSource.class) {
+				if(jar == sourceJAR) textIndex = index;
+			}
+			return index;
+			
+		}
+		
+	}
+	
+	public static synchronized Collection<JavaSourceFile> getAllSource() { 
 		
 		for(String name : getSourceFileNames())
 			findAndLoadSource(name);
@@ -113,7 +184,7 @@ public class JDKSource {
 		
 	}
 	
-	public static JavaSourceFile findAndLoadSource(String qualifiedName) {
+	public static synchronized JavaSourceFile findAndLoadSource(String qualifiedName) {
 
 		if(sourceJAR == null) return null;
 
@@ -0,0 +1,29 @@
+package edu.cmu.hcii.whyline.trace;
+
+/**
+ * The ways the Tracer can encode the events in each thread's serial trace. The Tracer records the one it used
+ * at the end of the meta file; meta files that don't say were written with STANDARD.
+ *
+ * STANDARD writes a kind byte, a four byte event ID after thread switches, a four byte class and instruction ID, and raw values.
+ *
+ * COMPACT writes the same kind byte, but writes event IDs as varints, class and instruction IDs as zig-zag varint deltas
+ * from the previous event in the same thread (usually in the same method, so usually a byte or two), and
+ * integer, short, long and object ID values as zig-zag varints, and characters as plain varints. Bytes, booleans, floats and doubles, and the
+ * arguments of I/O events, are written as they are in STANDARD.
+ *
+ * @author Andrew J. Ko
+ *
+ */
+public enum SerialEncoding {
+
+	STANDARD,
+	COMPACT;
+
+	/**
+	 * Maps signed values to unsigned ones so that values near zero, positive or negative, have short varints.
+	 */
+	public static long zigZag(long value) { return (value << 1) ^ (value >> 63); }
+
+	public static long unZigZag(long value) { return (value >>> 1) ^ -(value & 1); }
+
+}
@@ -0,0 +1,236 @@
+package edu.cmu.hcii.whyline.trace;
+
+import edu.cmu.hcii.whyline.util.IntegerVector;
+import gnu.trove.TIntIntHashMap;
+
+/**
+ * A cache keyed by event IDs that several threads can query and fill at once, and that's bounded by a {@link CacheBudget}.
+ * The cache is split into stripes by a hash of the key, each with its own lock, so threads only wait for each other when they
+ * happen to touch the same stripe.
+ *
+ * Entries are evicted with the CLOCK policy: each stripe's entries are in a ring, and each entry has a bit that's set whenever it's used.
+ * To evict, a hand sweeps the ring, clearing set bits and evicting entries whose bits are already clear, so entries used since the hand last
+ * passed survive. Values are kept either as objects or as longs, so that caches of numbers don't box them.
+ *
+ * @author Andrew J. Ko
+ *
+ */
+abstract class StripedClockCache implements CacheBudget.Member {
+
+	static final int STRIPES = 32;
+
+	private final String name;
+	protected final CacheBudget budget;
+	private final Stripe[] stripes;
+
+	private int nextStripeToEvict = 0;
+
+	protected StripedClockCache(String name, CacheBudget budget, boolean numeric) {
+
+		this.name = name;
+		this.budget = budget;
+
+		stripes = new Stripe[STRIPES];
+		for(int i = 0; i < STRIPES; i++)
+			stripes[i] = new Stripe(numeric);
+
+		budget.add(this);
+
+	}
+
+	protected final Stripe getStripe(int key) {
+
+		// Spread the bits, since event IDs near each other are usually asked for together.
+		int hash = key * 0x9E3779B9;
+		return stripes[(hash >>> 27) & (STRIPES - 1)];
+
+	}
+
+	public final String getName() { return name; }
+
+	public final long getBytes() {
+
+		long bytes = 0;
+		for(Stripe stripe : stripes)
+			synchronized(stripe) { bytes += stripe.bytes; }
+		return bytes;
+
+	}
+
+	public final long getHits() {
+
+		long hits = 0;
+		for(Stripe stripe : stripes)
+			synchronized(stripe) { hits += stripe.hits; }
+		return hits;
+
+	}
+
+	public final long getMisses() {
+
+		long misses = 0;
+		for(Stripe stripe : stripes)
+			synchronized(stripe) { misses += stripe.misses; }
+		return misses;
+
+	}
+
+	public final long getEvictions() {
+
+		long evictions = 0;
+		for(Stripe stripe : stripes)
+			synchronized(stripe) { evictions += stripe.evictions; }
+		return evictions;
+
+	}
+
+	public final long evict(long bytes) {
+
+		long freed = 0;
+		int first;
+		synchronized(this) { first = nextStripeToEvict++; }
+		// Start with a different stripe each time, so that no stripe bears all of the evictions.
+		for(int i = 0; i < STRIPES && freed < bytes; i++) {
+			Stripe stripe = stripes[(first + i) & (STRIPES - 1)];
+			synchronized(stripe) { freed += stripe.evict(bytes - freed); }
+		}
+		budget.credit(freed);
+		return freed;
+
+	}
+
+	/**
+	 * One stripe's entries, in slots of a ring. A slot with no bytes is free. Callers must hold the stripe's lock.
+	 */
+	protected static final class Stripe {
+
+		// Slot numbers are stored plus one, since a missing key has the value 0.
+		private final TIntIntHashMap slotsByKey = new TIntIntHashMap();
+		private int[] keys = new int[8];
+		private boolean[] referenced = new boolean[8];
+		private int[] sizes = new int[8];
+		protected Object[] objects;
+		protected long[] numbers;
+
+		private final IntegerVector freeSlots = new IntegerVector(4);
+		private int slotsUsed = 0;
+		private int hand = 0;
+
+		private long bytes, hits, misses, evictions;
+
+		private Stripe(boolean numeric) {
+
+			if(numeric) numbers = new long[8];
+			else objects = new Object[8];
+
+		}
+
+		/**
+		 * Returns the slot of the key, marking it used, or -1 if it's not cached.
+		 */
+		protected int find(int key) {
+
+			int slot = slotsByKey.get(key) - 1;
+			if(slot < 0) misses++;
+			else {
+				hits++;
+				referenced[slot] = true;
+			}
+			return slot;
+
+		}
+
+		/**
+		 * Returns a slot for the key, which must not already be cached, to be filled by the caller. The caller must charge the budget for the bytes afterwards, once it's released the lock.
+		 */
+		protected int add(int key, int entryBytes) {
+
+			int slot;
+			if(!freeSlots.isEmpty()) slot = freeSlots.pop();
+			else {
+				if(slotsUsed == keys.length) grow();
+				slot = slotsUsed++;
+			}
+			keys[slot] = key;
+			sizes[slot] = entryBytes;
+			// New entries start unreferenced, so that an entry used only once is the first to go.
+			referenced[slot] = false;
+			slotsByKey.put(key, slot + 1);
+			bytes += entryBytes;
+			return slot;
+
+		}
+
+		/**
+		 * Removes the key if it's cached, and returns the number of bytes freed, which the caller must credit to the budget.
+		 */
+		protected int remove(int key) {
+
+			int slot = slotsByKey.get(key) - 1;
+			return slot < 0 ? 0 : free(slot);
+
+		}
+
+		private int free(int slot) {
+
+			int entryBytes = sizes[slot];
+			slotsByKey.remove(keys[slot]);
+			sizes[slot] = 0;
+			if(objects != null) objects[slot] = null;
+			freeSlots.push(slot);
+			bytes -= entryBytes;
+			return entryBytes;
+
+		}
+
+		private void grow() {
+
+			int capacity = keys.length * 2;
+
+			int[] newKeys = new int[capacity];
+			System.arraycopy(keys, 0, newKeys, 0, slotsUsed);
+			keys = newKeys;
+
+			boolean[] newReferenced = new boolean[capacity];
+			System.arraycopy(referenced, 0, newReferenced, 0, slotsUsed);
+			referenced = newReferenced;
+
+			int[] newSizes = new int[capacity];
+			System.arraycopy(sizes, 0, newSizes, 0, slotsUsed);
+			sizes = newSizes;
+
+			if(objects != null) {
+				Object[] newObjects = new Object[capacity];
+				System.arraycopy(objects, 0, newObjects, 0, slotsUsed);
+				objects = newObjects;
+			}
+			else {
+				long[] newNumbers = new long[capacity];
+				System.arraycopy(numbers, 0, newNumbers, 0, slotsUsed);
+				numbers = newNumbers;
+			}
+
+		}
+
+		private long evict(long bytesWanted) {
+
+			long freed = 0;
+			// Two sweeps is enough to clear every bit and then evict everything, if it comes to that.
+			int steps = 2 * slotsUsed;
+			while(freed < bytesWanted && bytes > 0 && steps-- > 0) {
+				int slot = hand;
+				hand = (hand + 1) % slotsUsed;
+				if(sizes[slot] == 0) continue;
+				if(referenced[slot]) referenced[slot] = false;
+				else {
+					freed += free(slot);
+					evictions++;
+				}
+			}
+			return freed;
+
+		}
+
+	}
+
+}
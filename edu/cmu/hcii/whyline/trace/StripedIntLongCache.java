@@ -0,0 +1,65 @@
+package edu.cmu.hcii.whyline.trace;
+
+/**
+ * A {@link StripedClockCache} of numbers, which are kept unboxed.
+ *
+ * @author Andrew J. Ko
+ *
+ */
+final class StripedIntLongCache extends StripedClockCache {
+
+	// The key, the value, and the cache's bookkeeping for them.
+	private static final int BYTES_PER_ENTRY = 40;
+
+	public StripedIntLongCache(String name, CacheBudget budget) {
+
+		super(name, budget, true);
+
+	}
+
+	public boolean containsKey(int key) { 
+
+		Stripe stripe = getStripe(key);
+		synchronized(stripe) { return stripe.find(key) >= 0; }
+
+	}
+
+	/**
+	 * Returns the value of the key, or the given value if it's not cached.
+	 */
+	public long get(int key, long missing) {
+
+		Stripe stripe = getStripe(key);
+		synchronized(stripe) {
+			int slot = stripe.find(key);
+			return slot < 0 ? missing : stripe.numbers[slot];
+		}
+
+	}
+
+	public void put(int key, long value) {
+
+		boolean added = false;
+		Stripe stripe = getStripe(key);
+		synchronized(stripe) {
+			int slot = stripe.find(key);
+			if(slot < 0) {
+				slot = stripe.add(key, BYTES_PER_ENTRY);
+				added = true;
+			}
+			stripe.numbers[slot] = value;
+		}
+		if(added) budget.charge(BYTES_PER_ENTRY);
+
+	}
+
+	public void remove(int key) {
+
+		int freed;
+		Stripe stripe = getStripe(key);
+		synchronized(stripe) { freed = stripe.remove(key); }
+		budget.credit(freed);
+
+	}
+
+}
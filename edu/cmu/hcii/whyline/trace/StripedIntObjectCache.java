@@ -0,0 +1,47 @@
+package edu.cmu.hcii.whyline.trace;
+
+/**
+ * A {@link StripedClockCache} of objects.
+ *
+ * @author Andrew J. Ko
+ *
+ */
+final class StripedIntObjectCache<T> extends StripedClockCache {
+
+	public StripedIntObjectCache(String name, CacheBudget budget) {
+
+		super(name, budget, false);
+
+	}
+
+	@SuppressWarnings("unchecked")
+	public T get(int key) {
+
+		Stripe stripe = getStripe(key);
+		synchronized(stripe) { 
+			int slot = stripe.find(key);
+			return slot < 0 ? null : (T)stripe.objects[slot];
+		}
+
+	}
+
+	/**
+	 * Puts the value if there isn't one for the key already, and returns whichever is in the cache afterwards.
+	 * The given number of bytes is an estimate of how much memory the value takes.
+	 */
+	@SuppressWarnings("unchecked")
+	public T putIfAbsent(int key, T value, int bytes) {
+
+		Stripe stripe = getStripe(key);
+		synchronized(stripe) {
+			int slot = stripe.find(key);
+			if(slot >= 0) return (T)stripe.objects[slot];
+			slot = stripe.add(key, bytes);
+			stripe.objects[slot] = value;
+		}
+		budget.charge(bytes);
+		return value;
+
+	}
+
+}
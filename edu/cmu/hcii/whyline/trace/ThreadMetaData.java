@@ -13,22 +13,57 @@ public class ThreadMetaData {
 	public final String name;
 	public final int threadID; 
 	public final long objectID;
+	/**
+	 * The number of this thread's events in the segment being loaded. If the thread's events straddle the segment, this is
+	 * the span of its first and last events clipped to the segment, which may include other threads' events, so it is an upper bound. 
+	 */
 	public final int numberOfEventsInThread;
 	/**
 	 * This CANNOT be trusted. I haven't recorded this in a thread safe manner, so other threads can proceed while the thread
 	 * tracer is initialized at record time.
+	 * 
+	 * These are relative to the start of the segment of the trace being loaded, and the last is before the first if the thread has no events in the segment. 
 	 */
 	public final int firstEventID;
 	public final int lastEventID;
 
-	public ThreadMetaData(DataInputStream data) throws IOException {
+	/**
+	 * The same IDs, in the whole trace.
+	 */
+	public final long firstEventIDInTrace;
+	public final long lastEventIDInTrace;
+
+	/**
+	 * @param longEventIDs True if the meta file has 64-bit event IDs.
+	 * @param firstEventIDInSegment The event ID in the trace of the first event in the segment being loaded.
+	 * @param numberOfEventsInSegment The number of events in the segment being loaded.
+	 */
+	public ThreadMetaData(DataInputStream data, boolean longEventIDs, long firstEventIDInSegment, int numberOfEventsInSegment) throws IOException {
 		
 		this.name = data.readUTF();
 		this.threadID = data.readInt();
 		this.objectID = data.readLong();
-		this.numberOfEventsInThread = data.readInt();
-		this.firstEventID = data.readInt();
-		this.lastEventID = data.readInt();
+		long numberOfEventsInTrace = longEventIDs ? data.readLong() : data.readInt();
+		this.firstEventIDInTrace = longEventIDs ? data.readLong() : data.readInt();
+		this.lastEventIDInTrace = longEventIDs ? data.readLong() : data.readInt();
+		
+		long lastEventIDInSegment = firstEventIDInSegment + numberOfEventsInSegment - 1;
+		if(lastEventIDInTrace < firstEventIDInTrace || lastEventIDInTrace < firstEventIDInSegment || firstEventIDInTrace > lastEventIDInSegment) {
+			this.firstEventID = 0;
+			this.lastEventID = lastEventIDInTrace < firstEventIDInTrace ? (int)lastEventIDInTrace : -1;
+		}
+		else {
+			this.firstEventID = (int)(Math.max(firstEventIDInTrace, firstEventIDInSegment) - firstEventIDInSegment);
+			this.lastEventID = (int)(Math.min(lastEventIDInTrace, lastEventIDInSegment) - firstEventIDInSegment);
+		}
+
+		boolean inSegment = firstEventIDInTrace >= firstEventIDInSegment && lastEventIDInTrace <= lastEventIDInSegment;
+		if(inSegment || lastEventIDInTrace < firstEventIDInTrace)
+			this.numberOfEventsInThread = (int)Math.min(numberOfEventsInTrace, numberOfEventsInSegment);
+		else if(lastEventID < firstEventID)
+			this.numberOfEventsInThread = 0;
+		else
+			this.numberOfEventsInThread = (int)Math.min(numberOfEventsInTrace, lastEventID - firstEventID + 1);
 		
 	}
 	
@@ -2,6 +2,26 @@ package edu.cmu.hcii.whyline.trace;
 
 import java.io.*;
 import java.util.*;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.DoubleBuffer;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.nio.LongBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.ShortBuffer;
+import java.nio.channels.FileChannel;
 import java.util.jar.JarFile;
 import java.util.zip.ZipEntry;
 
@@ -38,8 +58,10 @@ public final class Trace {
 	private static final int EVENTS_PER_BLOCK = 4096; 
 	private static final int STACK_DEPENDENCIES_CACHE_SIZE = 8192;
 	private static final int BYTES_PER_EVENT = 7;
-	private static final double FRACTION_OF_MEMORY_FOR_BLOCKS = .25;
-	private static final int THREAD_ID_CACHE_SIZE = Short.MAX_VALUE;
+	private static final double FRACTION_OF_MEMORY_FOR_CACHES = .3;
+	// Estimates of the memory taken by cached analyses, for the cache budget. 
+	private static final int BYTES_PER_ARGUMENTS = 48;
+	private static final int BYTES_PER_ARGUMENT = 32;
 
 	//////////////////////////////////////////////////////////////////////////////////////////
 	// LOCATIONS
@@ -75,6 +97,9 @@ public final class Trace {
 
 	private TraceMetaData metadata;
 
+	// The segment of events to load, if not the one in the user's preferences.
+	private int segmentToLoad = -1;
+
 	//////////////////////////////////////////////////////////////////////////////////////////
 	// REPRESENTATIONS OF STATIC TRACE DATA
 	//////////////////////////////////////////////////////////////////////////////////////////
@@ -88,10 +113,13 @@ public final class Trace {
 	private final HashSet<String> familiarFields = new HashSet<String>();
 	private final HashSet<QualifiedClassName> familiarClasses = new HashSet<QualifiedClassName>();
 	private final SortedSet<String> userSourceFiles = new TreeSet<String>();
+	private SourceIndex userSourceIndex;
 
 	private final Map<String, MethodInfo[]> methodsByQualifiedSignature = new HashMap<String,MethodInfo[]>();
+	// Source is loaded lazily by whichever query thread asks for it first, so these two are guarded by sourceLock.
 	private final Map<String,JavaSourceFile> sourceByQualifiedName = new TreeMap<String,JavaSourceFile>();
 	private final Map<String,Set<Classfile>> classesWaitingForSourceByQualifiedSourceFileName = new HashMap<String,Set<Classfile>>();
+	private final Object sourceLock = new Object();
 
 	//////////////////////////////////////////////////////////////////////////////////////////
 	// REPRESENTATIONS OF DYNAMIC TRACE DATA
@@ -100,8 +128,15 @@ public final class Trace {
 	private ThreadTrace[] threads;
 	
 	private Blocks<IDBlock> idBlocks;
+	
+	// If non-null, the event kinds and instruction IDs are here rather than in idBlocks.
+	private MappedIDColumns mappedIDs;
 	private Blocks<ValueBlock> valueBlocks;
 	private Blocks<CallsBlock> callBlocks;
+
+	// Shared by the blocks and the analysis caches, so that together they stay within the memory we have.
+	// This has to be declared before the histories, since some of them cache things too.
+	private final CacheBudget cacheBudget = new CacheBudget();
 	
 	private final TLongObjectHashMap<ImageData> imageData = new TLongObjectHashMap<ImageData>();
 	private final TIntObjectHashMap<KeyArguments> keyArguments = new TIntObjectHashMap<KeyArguments>();
@@ -152,20 +187,28 @@ public final class Trace {
 	private IOHistory<GraphicalOutputEvent> graphicsHistory = new IOHistory<GraphicalOutputEvent>(outputHistory, this);
 	private IOHistory<RenderEvent> renderHistory = new IOHistory<RenderEvent>(graphicsHistory, this);
 	private IOHistory<TextualOutputEvent> printsHistory = new IOHistory<TextualOutputEvent>(outputHistory, this);
-	private IOHistory<MouseStateInputEvent> mouseHistory = new IOHistory<MouseStateInputEvent>(inputHistory, this);
-	private IOHistory<KeyStateInputEvent> keyHistory = new IOHistory<KeyStateInputEvent>(inputHistory, this);
+	private IOHistory<MouseStateInputEvent> mouseHistory = new IOHistory<MouseStateInputEvent>(inputHistory, this, new IOHistory.EventFactory<MouseStateInputEvent>() {
+		public MouseStateInputEvent create(int eventID) { return new MouseStateInputEvent(Trace.this, eventID); }
+	});
+	private IOHistory<KeyStateInputEvent> keyHistory = new IOHistory<KeyStateInputEvent>(inputHistory, this, new IOHistory.EventFactory<KeyStateInputEvent>() {
+		public KeyStateInputEvent create(int eventID) { return new KeyStateInputEvent(Trace.this, eventID); }
+	});
 	private IOHistory<WindowVisibilityOutputEvent> windowHistory = new IOHistory<WindowVisibilityOutputEvent>(outputHistory, this);
 	private List<WindowState> windows = new ArrayList<WindowState>(3);
 
 	//////////////////////////////////////////////////////////////////////////////////////////
 	// ANALYSIS CACHES
+	//
+	// These are filled in by queries, which may come from several threads at once (the slicer's workers, 
+	// questions being answered, and the UI), so each is either striped, per-thread, or synchronized.
+	// The ones that grow with the number of events queried are charged to the cache budget, which evicts from them when it's full.
 	//////////////////////////////////////////////////////////////////////////////////////////
 
 	/**
 	 * Control dependencies. A hash of eventIDs by eventIDs. Give an eventID and get the eventID representing its dynamic control dependency.
 	 * This is cached and determined on demand. 
 	 */
-	private final TIntIntHashMap controlIDs = new TIntIntHashMap();
+	private final StripedIntLongCache controlIDs = new StripedIntLongCache("control dependencies", cacheBudget);
 
 	/**
 	 * This is a list of arrays of argument producers for each event in the trace.
@@ -174,16 +217,30 @@ public final class Trace {
 	 * in the list is the first popped off the stack. This mimics the order of the list of argument producers 
 	 * noted in by the corresponding Instruction.
 	 */
-	private final TIntObjectHashMap<Value[]> arguments = new TIntObjectHashMap<Value[]>(1000);
+	private final StripedIntObjectCache<Value[]> arguments = new StripedIntObjectCache<Value[]>("arguments", cacheBudget);
 	
-	private IntegerVector[] previousLocalAssignmentCache = null;
-	private int previousLocalAssignmentCacheStartID = -1;
-	private int lastEventIDCachedForLocalAssignment = -1;
+	// Each thread querying the trace remembers the local assignments of the last method it asked about, so that
+	// threads asking about different methods don't keep replacing each other's.
+	private final ThreadLocal<LocalAssignmentCache> localAssignmentCaches = new ThreadLocal<LocalAssignmentCache>() {
+		protected LocalAssignmentCache initialValue() { return new LocalAssignmentCache(); }
+	};
 
-	private TIntIntHashMap threadIDCache = new TIntIntHashMap(1024);
+	// Built once the threads' event ranges are known. Until then, getThreadID() searches the ranges.
+	private EventThreadIndex threadIndex;
+
+	// Each thread's call tree is built as events are loaded, and only used once all of them are. Until then, and for
+	// traces saved without call trees, getStartID() searches the starts of the event's method.
+	private volatile boolean callTreesIndexed = false;
+
+	// Built as events are loaded, and only used once all of them are. Until then, searches for executions of instructions scan the events.
+	private ExecutionIndex executionIndex;
+
+	// Analyses of classfiles shared with other traces.
+	private final ClassAnalysisCache analysisCache = new ClassAnalysisCache(Whyline.getAnalysisCacheFolder());
 
 	/**
-	 * Ensures that only a fixed number of stack dependencies are held in memory. 
+	 * Ensures that only a fixed number of stack dependencies are held in memory. Those that aren't are read from the
+	 * shared analysis cache if they're there, and analyzed otherwise.
 	 */
 	private final StackDependenciesCache stackDependenciesCache = new StackDependenciesCache() {
 		private final LinkedList<MethodInfo> recent = new LinkedList<MethodInfo>();
@@ -196,9 +253,21 @@ public final class Trace {
 			recent.add(method);
 			StackDependencies dependencies = cache.get(method);
 			if(dependencies == null && method.getCode() != null) {
-				dependencies = new StackDependencies(method.getCode());
+				dependencies = analysisCache.getStackDependenciesFor(method);
+				if(dependencies == null) {
+					dependencies = new StackDependencies(method.getCode());
+					dependencies.analyze();
+					analysisCache.saveStackDependencies(method, dependencies);
+				}
 				cache.put(method, dependencies);
-				dependencies.analyze();
+			}
+			return dependencies;
+		}
+		public ControlDependencies getControlDependenciesFor(MethodInfo method) {
+			ControlDependencies dependencies = analysisCache.getControlDependenciesFor(method);
+			if(dependencies == null) {
+				dependencies = new ControlDependencies(method.getCode());
+				analysisCache.saveControlDependencies(method, dependencies);
 			}
 			return dependencies;
 		}
@@ -275,6 +344,43 @@ public final class Trace {
 	
 	public int getNumberOfEvents() { return metadata == null ? 0 : metadata.getNumberOfEvents(); }
 
+	/**
+	 * Event IDs are offsets into the segment of the trace loaded, which is all of it unless the trace was recorded with 64-bit event IDs.
+	 */
+	public long getEventIDInTrace(int eventID) { return metadata.getFirstEventIDInSegment() + eventID; }
+
+	public long getNumberOfEventsInTrace() { return metadata == null ? 0 : metadata.getNumberOfEventsInTrace(); }
+
+	public int getSegment() { return metadata == null ? 0 : metadata.getSegment(); }
+
+	public int getNumberOfSegments() { return metadata == null ? 1 : metadata.getNumberOfSegments(); }
+
+	/**
+	 * Loads the given segment of a trace too long for 32-bit event IDs instead of the one chosen in the Whyline's preferences.
+	 * Must be called before load(). Saved traces always load the segment they were saved with.
+	 */
+	public void setSegmentToLoad(int segment) { segmentToLoad = segment; }
+
+	/**
+	 * True if the trace had too many events to load at once and only one segment of them was loaded.
+	 */
+	public boolean isTruncated() { return getNumberOfSegments() > 1; }
+
+	/**
+	 * Describes which of the trace's events were loaded, for telling the user when the trace was truncated.
+	 */
+	public String getSegmentDescription() {
+		
+		if(!isTruncated())
+			return "all " + Util.commas(getNumberOfEvents()) + " events";
+		
+		return 
+			"segment " + (getSegment() + 1) + " of " + getNumberOfSegments() + ", events " + 
+			Util.commas(getEventIDInTrace(0)) + " to " + Util.commas(getEventIDInTrace(getNumberOfEvents() - 1)) + 
+			" of " + Util.commas(getNumberOfEventsInTrace());
+		
+	}
+
 	/////////////////////////////////////////////////////
 	// CLASS, method and field info
 	
@@ -419,7 +525,8 @@ public final class Trace {
 	public MethodInfo[] getMethodsFromReference(Invoke invoke) {
 
 		String qualifedSignature = invoke.getMethodInvoked().getQualfiedNameAndDescriptor();
-		MethodInfo[] cachedMethods = methodsByQualifiedSignature.get(qualifedSignature);
+		MethodInfo[] cachedMethods;
+		synchronized(methodsByQualifiedSignature) { cachedMethods = methodsByQualifiedSignature.get(qualifedSignature); }
 		if(cachedMethods != null) return cachedMethods;
 		
 		MethodrefInfo methodref = invoke.getMethodInvoked();
@@ -547,7 +654,7 @@ public final class Trace {
 		
 		cachedMethods = new MethodInfo[methods.size()];
 		methods.toArray(cachedMethods);
-		methodsByQualifiedSignature.put(qualifedSignature, cachedMethods);
+		synchronized(methodsByQualifiedSignature) { methodsByQualifiedSignature.put(qualifedSignature, cachedMethods); }
 		
 		return cachedMethods;
 		
@@ -626,7 +733,9 @@ public final class Trace {
 		for(String name : userSourceFiles)
 			getSourceByQualifiedName(name);
 		
-		return sourceByQualifiedName.values(); 
+		synchronized(sourceLock) {
+			return new ArrayList<JavaSourceFile>(sourceByQualifiedName.values());
+		}
 		
 	}
 
@@ -657,9 +766,11 @@ public final class Trace {
 		
 		if(name == null) return null;
 		
-		JavaSourceFile source = sourceByQualifiedName.get(name);
-		
-		if(source == null) {
+		JavaSourceFile source;
+		synchronized(sourceLock) {
+
+			source = sourceByQualifiedName.get(name);
+			if(source != null) return source;
 
 			File sourceFile = new File(SOURCE_FOLDER.getAbsolutePath(), name.replace('/', File.separatorChar));
 			if(sourceFile.exists()) {
@@ -680,23 +791,22 @@ public final class Trace {
 			if(source == null && searchJDK)
 				source = JDKSource.getSourceForQualifiedName(name);
 
-			if(source != null) {
+			if(source == null) return null;
 
-				sourceByQualifiedName.put(name, source);
-
-				// Associate all of the class files that refer to this source.
-				Set<Classfile> unassociatedClasses = classesWaitingForSourceByQualifiedSourceFileName.get(name);
-				if(unassociatedClasses != null) {
-					for(Classfile c : unassociatedClasses)
-						source.linkClassfile(c);
-					classesWaitingForSourceByQualifiedSourceFileName.remove(name);
-				}				
+			sourceByQualifiedName.put(name, source);
 
-				listener.additionalSourceLoaded(source);
-				
-			}
+			// Associate all of the class files that refer to this source.
+			Set<Classfile> unassociatedClasses = classesWaitingForSourceByQualifiedSourceFileName.get(name);
+			if(unassociatedClasses != null) {
+				for(Classfile c : unassociatedClasses)
+					source.linkClassfile(c);
+				classesWaitingForSourceByQualifiedSourceFileName.remove(name);
+			}				
 
 		}
+
+		// Tell the listener once we've let go of the lock, since it may ask for more source.
+		listener.additionalSourceLoaded(source);
 		return source;
 		
 	}
@@ -705,6 +815,50 @@ public final class Trace {
 
 	public int getNumberOfUserSourceFiles() { return userSourceFiles.size(); }
 
+	/**
+	 * Returns an index of the text of the user's source, building and saving it with the trace if it hasn't been built for this source yet,
+	 * or null if it couldn't be built.
+	 */
+	public synchronized SourceIndex getUserSourceIndex() {
+		
+		if(userSourceIndex != null) return userSourceIndex;
+		
+		// The index is valid as long as the same files with the same lengths and modification times are in the source folder.
+		StringBuilder signature = new StringBuilder();
+		for(String name : userSourceFiles) {
+			File sourceFile = new File(SOURCE_FOLDER.getAbsolutePath(), name.replace('/', File.separatorChar));
+			signature.append(name).append(':').append(sourceFile.length()).append(':').append(sourceFile.lastModified()).append(';');
+		}
+		String digest = ClassAnalysisCache.getDigest(signature.toString().getBytes());
+		
+		File indexFile = new File(TRACE_FOLDER, Whyline.SOURCE_INDEX_PATH);
+		userSourceIndex = SourceIndex.open(indexFile, digest);
+		if(userSourceIndex != null) return userSourceIndex;
+		
+		try {
+			
+			SourceIndex.Builder builder = new SourceIndex.Builder();
+			for(String name : userSourceFiles) {
+				File sourceFile = new File(SOURCE_FOLDER.getAbsolutePath(), name.replace('/', File.separatorChar));
+				DataInputStream data = Util.getReaderFor(sourceFile);
+				byte[] bytes = new byte[(int)sourceFile.length()];
+				data.readFully(bytes);
+				data.close();
+				builder.add(name, bytes);
+			}
+			indexFile.getParentFile().mkdirs();
+			userSourceIndex = builder.save(indexFile, digest);
+			
+		} catch(IOException e) {
+			
+			e.printStackTrace();
+			
+		}
+		
+		return userSourceIndex;
+		
+	}
+
 	/////////////////////////////////////////////////////
 	// IO
 
@@ -850,12 +1004,15 @@ public final class Trace {
 	
 	public List<Instantiation> getInstantiationsOf(QualifiedClassName classname) { 
 		
-		List<Instantiation> allocations = allocationsByClass.get(classname);
-		if(allocations == null) {
-			allocations = new ArrayList<Instantiation>(0);
-			allocationsByClass.put(classname, allocations);
+		// Queries on several threads can ask for classes that weren't instantiated at once, so the map is locked.
+		synchronized(allocationsByClass) {
+			List<Instantiation> allocations = allocationsByClass.get(classname);
+			if(allocations == null) {
+				allocations = new ArrayList<Instantiation>(0);
+				allocationsByClass.put(classname, allocations);
+			}
+			return allocations;
 		}
-		return allocations;
 		
 	}
 	
@@ -887,21 +1044,60 @@ public final class Trace {
 		
 	}		
 
+	/**
+	 * The local assignments of the method a thread last asked about. See getDefinitionOfLocalIDBefore().
+	 */
+	private static final class LocalAssignmentCache {
+		
+		private IntegerVector[] assignmentIDsByLocalID = null;
+		private int startID = -1;
+		private int lastEventIDCached = -1;
+		
+	}
+
 	private IDBlock getIDBlock(int eventID) { return idBlocks.getBlockContaining(eventID); }
 	private ValueBlock getValueBlock(int eventID) { return valueBlocks.getBlockContaining(eventID); }
 	private CallsBlock getCallsBlock(int eventID) { return callBlocks.getBlockContaining(eventID); }
 
 	/**
-	 * Returns a global ID for this instruction, comprised of the instruction's global class ID and its instruction ID (index in the class, as opposed to index in the method).
+	 * Returns the ID of this instruction in this trace's events, comprised of the instruction's class ID in the trace and its instruction ID (index in the class, as opposed to index in the method).
+	 * If the instruction's class never executed, its class ID is 0, which no event has.
 	 */
 	public int getInstructionIDFor(Instruction inst) {
 		
-		int classID = classIDs.getIDOfClassname(inst.getClassfile().getInternalName());
+		int classID = metadata.getTraceClassIDOfClassID(classIDs.getIDOfClassname(inst.getClassfile().getInternalName()));
 		int instructionID = inst.getMethod().getFirstInstructionID() + inst.getIndex();
 		return (classID << MethodInstrumenter.INSTRUCTION_ID_BIT_SIZE) | instructionID;
 		
 	}
 
+	/**
+	 * The caches of static analyses include instructions that may not have executed, so they identify them by their global class ID. 
+	 * Traces with only global class IDs wrote these in the same packed form as their events.
+	 */
+	private void writeInstruction(DataOutputStream out, Instruction inst) throws IOException {
+		
+		int classID = classIDs.getIDOfClassname(inst.getClassfile().getInternalName());
+		int instructionID = inst.getMethod().getFirstInstructionID() + inst.getIndex();
+		if(metadata.hasTraceClassIDs()) {
+			out.writeInt(classID);
+			out.writeInt(instructionID);
+		}
+		else out.writeInt((classID << MethodInstrumenter.INSTRUCTION_ID_BIT_SIZE) | instructionID);
+		
+	}
+	
+	private Instruction readInstruction(DataInputStream in) throws IOException {
+		
+		if(metadata.hasTraceClassIDs()) {
+			Classfile classfile = getClassfileByID(in.readInt());
+			int instructionID = in.readInt();
+			return classfile == null ? null : classfile.getInstructionByID(instructionID);
+		}
+		else return getInstructionWithID(in.readInt());
+		
+	}
+
 	public Instruction getInstruction(int eventID) {
 		
 		return eventID < 0 ? null : getInstructionWithID(getInstructionID(eventID));
@@ -910,7 +1106,7 @@ public final class Trace {
 	
 	public Instruction getInstructionWithID(int classAndInstructionID) { 
 
-		int classID = classAndInstructionID >>> MethodInstrumenter.INSTRUCTION_ID_BIT_SIZE;
+		int classID = metadata.getClassIDOfTraceClassID(classAndInstructionID >>> MethodInstrumenter.INSTRUCTION_ID_BIT_SIZE);
 		int instructionID = (classAndInstructionID << MethodInstrumenter.CLASS_ID_BIT_SIZE) >>> MethodInstrumenter.CLASS_ID_BIT_SIZE;
 		Classfile classfile = getClassfileByID(classID);
 		return classfile == null ? null : classfile.getInstructionByID(instructionID);
@@ -923,17 +1119,18 @@ public final class Trace {
 		
 		assert startID >= 0 : "Why couldn't we find a start ID for " + eventToString(eventID);
 
-		boolean cached = startID == previousLocalAssignmentCacheStartID;
+		LocalAssignmentCache cache = localAssignmentCaches.get();
+		boolean cached = startID == cache.startID;
 				
-		if(cached && eventID < lastEventIDCachedForLocalAssignment) {
+		if(cached && eventID < cache.lastEventIDCached) {
 	
-			IntegerVector assignmentIDs = previousLocalAssignmentCache[localID];
+			IntegerVector assignmentIDs = cache.assignmentIDsByLocalID[localID];
 			return assignmentIDs.getLargestValueLessThanOrEqualTo(eventID);
 			
 		}
 		else {
 			
-			previousLocalAssignmentCacheStartID = startID;
+			cache.startID = startID;
 			
 			Instruction inst = getInstruction(eventID);
 			MethodInfo method = inst.getMethod();
@@ -941,15 +1138,15 @@ public final class Trace {
 			// If we're continuing to fill a cache
 			IntegerVector[] assignmentIDsByLocalID = 
 				cached ?
-					previousLocalAssignmentCache :
+					cache.assignmentIDsByLocalID :
 					new IntegerVector[method.getCode().getMaxLocals()];
 
-			if(lastEventIDCachedForLocalAssignment < 0) lastEventIDCachedForLocalAssignment = startID; 
+			if(cache.lastEventIDCached < 0) cache.lastEventIDCached = startID; 
 			// Build the local assignment history for this method.
-			ThreadIterator iterator = new ThreadIterator(cached ? lastEventIDCachedForLocalAssignment : startID);
+			ThreadIterator iterator = new ThreadIterator(cached ? cache.lastEventIDCached : startID);
 			while(iterator.hasNextInMethod()) {
 				int nextID = iterator.nextInMethod();
-				lastEventIDCachedForLocalAssignment = nextID;
+				cache.lastEventIDCached = nextID;
 				EventKind kind = getKind(nextID);
 				int localIDSet = -1;
 				if(kind == SETLOCAL || kind == IINC) localIDSet = ((SetLocal)getInstruction(nextID)).getLocalID();
@@ -966,7 +1163,7 @@ public final class Trace {
 				}
 			}
 			
-			previousLocalAssignmentCache = assignmentIDsByLocalID;
+			cache.assignmentIDsByLocalID = assignmentIDsByLocalID;
 			return assignmentIDsByLocalID[localID].getLargestValueLessThanOrEqualTo(eventID);
 			
 		}
@@ -982,16 +1179,23 @@ public final class Trace {
 		Value[] productionEvents = arguments.get(eventID);
 		// Create a container to hold these results for future callers.
 		if(productionEvents == null) {
-			productionEvents = new Value[getInstruction(eventID).getNumberOfArgumentProducers()];
-			arguments.put(eventID, productionEvents);
+			int numberOfArguments = getInstruction(eventID).getNumberOfArgumentProducers();
+			productionEvents = arguments.putIfAbsent(eventID, new Value[numberOfArguments], BYTES_PER_ARGUMENTS + numberOfArguments * BYTES_PER_ARGUMENT);
 		}
 		assert argument < productionEvents.length : "Sent illegal argument " + argument + " to  instruction with " + getInstruction(eventID).getNumberOfArgumentProducers() + " arguments:\n\n" + getInstruction(eventID);
-		if(productionEvents[argument] == null) {
-			Value value = getOperandStackValueHelper(eventID, argument);
-			productionEvents[argument] = value;
+
+		Value value;
+		synchronized(productionEvents) { value = productionEvents[argument]; }
+		if(value == null) {
+			// Two threads may both find the value, but only the first one found is kept, so everyone gets the same value.
+			value = getOperandStackValueHelper(eventID, argument);
+			synchronized(productionEvents) {
+				if(productionEvents[argument] == null) productionEvents[argument] = value;
+				else value = productionEvents[argument];
+			}
 		}
 		
-		return productionEvents[argument];
+		return value;
 		
 	}
 
@@ -1284,13 +1488,13 @@ public final class Trace {
 	public List<Value> getOperandStackDependencies(int eventID) { 
 
 		int numberOfArguments = getInstruction(eventID).getNumberOfArgumentProducers();
+		if(numberOfArguments == 0) return Collections.<Value>emptyList();
+
+		Value[] producers = new Value[numberOfArguments];
 		for(int i = 0; i < numberOfArguments; i++)
-			getOperandStackValue(eventID, i);
+			producers[i] = getOperandStackValue(eventID, i);
 		
-		Value[] producers = arguments.get(eventID);
-		
-		if(producers == null) return Collections.<Value>emptyList();
-		else return Collections.<Value>unmodifiableList(Arrays.<Value>asList(producers));
+		return Collections.<Value>unmodifiableList(Arrays.<Value>asList(producers));
 		
 	}
 		
@@ -1405,10 +1609,22 @@ public final class Trace {
 	
 	public int getStartID(int eventID) { 
 		
-		return eventID < 0 ? -1 : getInvocationHistory().determineStartMethodIDOf(eventID); 
+		if(eventID < 0) return -1;
+
+		CallTree calls = getCallTree(getThreadID(eventID));
+		int call = calls == null ? -1 : calls.getCallContaining(eventID);
+		if(call >= 0) return calls.getStartID(call);
+		
+		// Events before the first call we saw in a thread aren't in the tree.
+		return getInvocationHistory().determineStartMethodIDOf(eventID); 
 		
 	}
 
+	/**
+	 * Returns the given thread's calls, or null if they aren't indexed, either because the trace is still loading or because it was saved without them.
+	 */
+	public CallTree getCallTree(int threadID) { return callTreesIndexed ? threads[threadID].calls : null; }
+
 	/**
 	 * Finds the heap or stack frame dependency for this instruction, if any. Operand stack dependencies are dealt with separately.
 	 */
@@ -1637,13 +1853,18 @@ public final class Trace {
 		
 	}
 	
+	/**
+	 * The memory budget shared by the trace's blocks and analysis caches, which describes how well each cache is doing.
+	 */
+	public CacheBudget getCacheBudget() { return cacheBudget; }
+
 	public int getControlID(int eventID) { 
 	
-		int controlID = controlIDs.get(eventID);
-		if(controlID == 0) {
-			controlID = determineControlID(eventID);
-			controlIDs.put(eventID, controlID);
-		}
+		long cachedControlID = controlIDs.get(eventID, Long.MIN_VALUE);
+		if(cachedControlID != Long.MIN_VALUE) return (int)cachedControlID;
+
+		int controlID = determineControlID(eventID);
+		controlIDs.put(eventID, controlID);
 		return controlID;
 		
 	}
@@ -1758,7 +1979,9 @@ public final class Trace {
 	// I tried caching this, but it really didn't help. It misses too much to be worth the cost of keeping the cache.
 	private int getInstructionID(int eventID) { 
 
-		IDBlock block = idBlocks.blocks[eventID / EVENTS_PER_BLOCK];
+		if(mappedIDs != null) return mappedIDs.getInstructionID(eventID);
+		
+		IDBlock block = idBlocks.getBlockIfLoaded(eventID / EVENTS_PER_BLOCK);
 		if(block == null) block = getIDBlock(eventID);
 		return block.instructionIDs[eventID - block.firstEventID];
 		
@@ -1766,7 +1989,9 @@ public final class Trace {
 
 	public EventKind getKind(int eventID) { 
 
-		IDBlock block = idBlocks.blocks[eventID / EVENTS_PER_BLOCK];
+		if(mappedIDs != null) return EventKind.intToEvent(mappedIDs.getKindID(eventID));
+		
+		IDBlock block = idBlocks.getBlockIfLoaded(eventID / EVENTS_PER_BLOCK);
 
 		if(block == null) block = getIDBlock(eventID);
 		byte kindID = block.kindIDs[eventID - block.firstEventID]; 
@@ -1776,17 +2001,44 @@ public final class Trace {
 	
 	public int getThreadID(int eventID) { 
 
-		if(threadIDCache.containsKey(eventID))
-			return threadIDCache.get(eventID);
+		if(threadIndex != null)
+			return threadIndex.getThreadID(eventID);
 
 		int threadID = findThreadID(eventID); 
 		if(threadID < 0) throw new RuntimeException("Couldn't find threadID for event " + eventID);
-		if(threadIDCache.size() > THREAD_ID_CACHE_SIZE) threadIDCache.clear();
-		threadIDCache.put(eventID, threadID);
 		return threadID;
 		
 	}
 	
+	/**
+	 * Gathers every thread's ranges of events into one index of runs, sorted by their first event.
+	 */
+	private void indexThreadIDs() {
+		
+		int numberOfRuns = 0;
+		for(ThreadTrace thread : threads)
+			for(int range = 0; thread.eventIDs.hasRange(range); range++)
+				numberOfRuns++;
+
+		// Pack each run's first event and thread into a long, so sorting the longs sorts the runs by first event.
+		long[] runs = new long[numberOfRuns];
+		int run = 0;
+		for(ThreadTrace thread : threads)
+			for(int range = 0; thread.eventIDs.hasRange(range); range++)
+				runs[run++] = ((long)thread.eventIDs.getLowerBoundOfRange(range) << 16) | thread.getThreadID();
+		Arrays.sort(runs);
+		
+		int[] runStarts = new int[numberOfRuns];
+		short[] runThreadIDs = new short[numberOfRuns];
+		for(run = 0; run < numberOfRuns; run++) {
+			runStarts[run] = (int)(runs[run] >>> 16);
+			runThreadIDs[run] = (short)(runs[run] & 0xFFFF);
+		}
+		
+		threadIndex = new EventThreadIndex(getNumberOfEvents(), runStarts, runThreadIDs);
+		
+	}
+	
 	private int findThreadID(int eventID) {
 		
 		// Go through each thread, searching for the trace that contains the given ID
@@ -1821,7 +2073,8 @@ public final class Trace {
 	
 	public boolean getBooleanProduced(int booleanID) throws NoValueException { 
 		
-		if(getBooleansProduced(booleanID).containsKey(booleanID)) return getBooleansProduced(booleanID).get(booleanID) > 0;
+		ValueBlock values = getValueBlock(booleanID);
+		if(values.getType(booleanID) == ValueBlock.BOOLEAN) return values.getByte(booleanID) > 0;
 		else if(getKind(booleanID).isConstantProduced) return (Boolean)((PushConstant<?>)getInstruction(booleanID)).getConstant();
 		else throw new NoValueException(this, booleanID, "didn't produce an boolean."); 
 		
@@ -1829,9 +2082,11 @@ public final class Trace {
 		
 	public int getIntegerProduced(int eventID) throws NoValueException { 
 		
-		if(getShortsProduced(eventID).containsKey(eventID)) return getShortsProduced(eventID).get(eventID);
-		else if(getIntegersProduced(eventID).containsKey(eventID)) return getIntegersProduced(eventID).get(eventID);
-		else if(getBooleansProduced(eventID).containsKey(eventID)) return getBooleansProduced(eventID).get(eventID);
+		ValueBlock values = getValueBlock(eventID);
+		byte type = values.getType(eventID);
+		if(type == ValueBlock.SHORT) return values.getShort(eventID);
+		else if(type == ValueBlock.INTEGER) return values.getInteger(eventID);
+		else if(type == ValueBlock.BOOLEAN) return values.getByte(eventID);
 		else if(getKind(eventID).isConstantProduced) return (Integer)((PushConstant<?>)getInstruction(eventID)).getConstant();
 		else throw new NoValueException(this, eventID, "didn't produce an integer."); 
 			
@@ -1841,9 +2096,11 @@ public final class Trace {
 
 	public long getLongProduced(int eventID) { 
 
-		if(getShortsProduced(eventID).containsKey(eventID)) return getShortsProduced(eventID).get(eventID);
-		else if(getIntegersProduced(eventID).containsKey(eventID)) return getIntegersProduced(eventID).get(eventID);
-		else if(getLongsProduced(eventID).containsKey(eventID)) return getLongsProduced(eventID).get(eventID);
+		ValueBlock values = getValueBlock(eventID);
+		byte type = values.getType(eventID);
+		if(type == ValueBlock.SHORT) return values.getShort(eventID);
+		else if(type == ValueBlock.INTEGER) return values.getInteger(eventID);
+		else if(type == ValueBlock.LONG) return values.getLong(eventID);
 		else if(getKind(eventID).isConstantProduced) {
 			Object val = ((PushConstant<?>)getInstruction(eventID)).getConstant();
 			if(val == null) return 0;
@@ -1856,7 +2113,8 @@ public final class Trace {
 
 	public float getFloatProduced(int eventID) throws NoValueException { 
 		
-		if(getFloatsProduced(eventID).containsKey(eventID)) return getFloatsProduced(eventID).get(eventID);
+		ValueBlock values = getValueBlock(eventID);
+		if(values.getType(eventID) == ValueBlock.FLOAT) return values.getFloat(eventID);
 		else if(getKind(eventID).isConstantProduced) return (Float)((PushConstant<?>)getInstruction(eventID)).getConstant();
 		else throw new NoValueException(this, eventID, "didn't produce a float."); 
 		
@@ -1864,7 +2122,8 @@ public final class Trace {
 	
 	public double getDoubleProduced(int eventID) throws NoValueException { 
 		
-		if(getDoublesProduced(eventID).containsKey(eventID)) return getDoublesProduced(eventID).get(eventID);
+		ValueBlock values = getValueBlock(eventID);
+		if(values.getType(eventID) == ValueBlock.DOUBLE) return values.getDouble(eventID);
 		else if(getKind(eventID).isConstantProduced) return (Double)((PushConstant<?>)getInstruction(eventID)).getConstant();
 		else throw new NoValueException(this, eventID, "didn't produce a double."); 
 		
@@ -1872,7 +2131,8 @@ public final class Trace {
 
 	public char getCharacterProduced(int eventID) throws NoValueException { 
 		
-		if(getCharactersProduced(eventID).containsKey(eventID)) return (char)getCharactersProduced(eventID).get(eventID); 
+		ValueBlock values = getValueBlock(eventID);
+		if(values.getType(eventID) == ValueBlock.CHARACTER) return values.getCharacter(eventID);
 		else if(getKind(eventID).isConstantProduced) return (Character)((PushConstant<?>)getInstruction(eventID)).getConstant();
 		else throw new NoValueException(this, eventID, "didn't produce a character."); 
 
@@ -1880,7 +2140,8 @@ public final class Trace {
 	
 	public byte getByteProduced(int eventID) throws NoValueException {
 		
-		if(getBytesProduced(eventID).containsKey(eventID)) return getBytesProduced(eventID).get(eventID); 
+		ValueBlock values = getValueBlock(eventID);
+		if(values.getType(eventID) == ValueBlock.BYTE) return values.getByte(eventID); 
 		else if(getKind(eventID).isConstantProduced) return (Byte)((PushConstant<?>)getInstruction(eventID)).getConstant();
 		else throw new NoValueException(this, eventID, "didn't produce a byte."); 
 
@@ -1888,7 +2149,8 @@ public final class Trace {
 	
 	public short getShortProduced(int eventID) throws NoValueException { 
 		
-		if(getShortsProduced(eventID).containsKey(eventID)) return getShortsProduced(eventID).get(eventID); 
+		ValueBlock values = getValueBlock(eventID);
+		if(values.getType(eventID) == ValueBlock.SHORT) return values.getShort(eventID); 
 		else if(getKind(eventID).isConstantProduced) return (Short)((PushConstant<?>)getInstruction(eventID)).getConstant();
 		else throw new NoValueException(this, eventID, "didn't produce a short."); 
 
@@ -1955,7 +2217,8 @@ public final class Trace {
 		if(inst instanceof INVOKESTATIC) return 0;
 
 		// First check the table...
-		long instanceID = invocationInstanceIDByInvocation.get(invocationID);
+		long instanceID;
+		synchronized(invocationInstanceIDByInvocation) { instanceID = invocationInstanceIDByInvocation.get(invocationID); }
 		if(instanceID <= 0) {
 
 			// If we instrumented this call, it will be much faster to look for the argument event for the instance.
@@ -1967,12 +2230,10 @@ public final class Trace {
 			}
 
 			// If we couldn't find the start of the method, find the stack value (which is slower).
-			if(instanceID < 0) {
+			if(instanceID < 0)
 				instanceID = getOperandStackValue(invocationID, 0).getLong();
-				invocationInstanceIDByInvocation.put(invocationID, instanceID);
-			}
 			
-			invocationInstanceIDByInvocation.put(invocationID, instanceID);
+			synchronized(invocationInstanceIDByInvocation) { invocationInstanceIDByInvocation.put(invocationID, instanceID); }
 			
 		}
 		return instanceID;		
@@ -2084,7 +2345,8 @@ public final class Trace {
 		
 	public int getIncrementValue(int incrementID) throws NoValueException { 
 	
-		if(getValuesByIncrementID(incrementID).containsKey(incrementID)) return getValuesByIncrementID(incrementID).get(incrementID);
+		ValueBlock values = getValueBlock(incrementID);
+		if(values.getType(incrementID) == ValueBlock.INCREMENT) return values.getInteger(incrementID);
 		else throw new NoValueException(this, incrementID, "not an increment.");
 		
 	}
@@ -2312,6 +2574,9 @@ public final class Trace {
 		
 	public int findExecutionOfInstructionPriorTo(final Instruction inst, int eventID) {
 		
+		if(executionIndex != null)
+			return executionIndex.getExecutionBefore(getInstructionIDFor(inst), eventID);
+		
 		return findEventBetween(0, eventID, new SearchCriteria() {
 			public boolean matches(int eventID) {
 				return getInstruction(eventID) == inst;
@@ -2322,17 +2587,13 @@ public final class Trace {
 
 	public int findExecutionOfInstructionInThreadAfter(final Instruction inst, int eventID) {
 
-		int threadID = getThreadID(eventID);
-		eventID++;
-		
-		while(eventID < getNumberOfEvents()) {
+		// Walk the thread's ranges of events after the given event, rather than checking the thread of every event.
+		IntegerRange eventIDs = threads[getThreadID(eventID)].eventIDs;
+		for(int range = eventIDs.getRangeIndexContaining(eventID); eventIDs.hasRange(range); range++) {
 
-			if(getThreadID(eventID) != threadID)
-				continue;
-			
-			if(getInstruction(eventID) == inst && !(inst instanceof Invoke && getKind(eventID).isInvocation)) return eventID; 
-			
-			eventID++;
+			int upper = eventIDs.getUpperBoundOfRange(range);
+			for(int id = Math.max(eventID + 1, eventIDs.getLowerBoundOfRange(range)); id <= upper; id++)
+				if(getInstruction(id) == inst && !(inst instanceof Invoke && getKind(id).isInvocation)) return id; 
 			
 		}
 		return -1;
@@ -2341,6 +2602,9 @@ public final class Trace {
 	
 	public int findExecutionOfInstructionAfter(Instruction inst, int afterID) {
 		
+		if(executionIndex != null)
+			return executionIndex.getExecutionAfter(getInstructionIDFor(inst), afterID);
+
 		MethodInfo method = inst.getMethod();
 		
 		int currentStartID = getStartID(afterID);
@@ -2421,6 +2685,7 @@ public final class Trace {
 				if(inst == null) inst = instruction.getCode().getFirstInstruction();
 			}
 			final Instruction instructionToSearchFor = inst;
+			int instructionIDToSearchFor = executionIndex == null ? -1 : getInstructionIDFor(instructionToSearchFor);
 			
 			// Find executions of the instruction in each method execution.
 			for(int i = 0; i < starts.size(); i++) {
@@ -2428,7 +2693,13 @@ public final class Trace {
 				int startID = starts.get(i);
 				int returnID = getStartIDsReturnOrCatchID(startID);
 
-				int executionID = 
+				int executionID;
+				if(executionIndex != null) {
+					int endID = returnID < 0 ? getNumberOfEvents() - 1 : returnID;
+					executionID = executionIndex.getExecutionBefore(instructionIDToSearchFor, endID);
+					if(executionID < startID) executionID = -1;
+				}
+				else executionID = 
 					findEventBetween(
 						startID, 
 						returnID < 0 ? getNumberOfEvents() - 1 : returnID, 
@@ -2570,22 +2841,85 @@ public final class Trace {
 		
 	}
 
-	private TIntIntHashMap getIntegersProduced(int eventID) { return getValueBlock(eventID).integersProduced; }
-	private TIntLongHashMap getLongsProduced(int eventID) { return getValueBlock(eventID).longsProduced; }
-	private TIntFloatHashMap getFloatsProduced(int eventID) { return getValueBlock(eventID).floatsProduced; }
-	private TIntDoubleHashMap getDoublesProduced(int eventID) {return getValueBlock(eventID).doublesProduced; }
-	private TIntIntHashMap getCharactersProduced(int eventID) { return getValueBlock(eventID).charactersProduced; }
-	private TIntByteHashMap getBytesProduced(int eventID) { return getValueBlock(eventID).bytesProduced; }
-	private TIntShortHashMap getShortsProduced(int eventID) { return getValueBlock(eventID).shortsProduced; }
-	private TIntByteHashMap getBooleansProduced(int eventID) { return getValueBlock(eventID).booleansProduced; }
-	private TIntIntHashMap getValuesByIncrementID(int eventID) { return getValueBlock(eventID).valuesByIncrementID; }
 	
 	private TIntIntHashMap getStartByReturnTable(int eventID) { return getCallsBlock(eventID).startIDByReturnID; }
 	private TIntIntHashMap getStartByInvocationTable(int eventID) { return getCallsBlock(eventID).startIDByInvocationID; }
 	private TIntIntHashMap getInvocationByStartTable(int eventID) { return getCallsBlock(eventID).invocationIDByStartID; }
 	private TIntIntHashMap getReturnByStartTable(int eventID) { return getCallsBlock(eventID).returnIDByStartID; }
 	private TIntIntHashMap getInitializationByInstantiationTable(int newID) { return getCallsBlock(newID).initIDByNewID; }
+
+	// The loader's pairs go in blocks that other threads may be unloading, so each block is pinned until its pair is in it.
+	private void rememberInvocationStartPair(int invocationID, int startID) {
+
+		CallsBlock startBlock = callBlocks.pinBlockContaining(startID);
+		try {
+
+			startBlock.invocationIDByStartID.put(startID, invocationID);
+
+		}
+		finally { callBlocks.unpinBlockContaining(startID); }
+
+		CallsBlock invocationBlock = callBlocks.pinBlockContaining(invocationID);
+		try {
+
+			invocationBlock.startIDByInvocationID.put(invocationID, startID);
+
+		}
+		finally { callBlocks.unpinBlockContaining(invocationID); }
+
+	}
+
+	private void rememberStartReturnOrCatchPair(int startID, int returnOrCatchID) {
+
+		CallsBlock startBlock = callBlocks.pinBlockContaining(startID);
+		try {
+
+			startBlock.returnIDByStartID.put(startID, returnOrCatchID);
+
+		}
+		finally { callBlocks.unpinBlockContaining(startID); }
+
+		CallsBlock returnBlock = callBlocks.pinBlockContaining(returnOrCatchID);
+		try {
+
+			returnBlock.startIDByReturnID.put(returnOrCatchID, startID);
+
+		}
+		finally { callBlocks.unpinBlockContaining(returnOrCatchID); }
+
+	}
+
+	private void rememberInitializationOf(int newID, int initID) {
+
+		CallsBlock newBlock = callBlocks.pinBlockContaining(newID);
+		try {
+
+			newBlock.initIDByNewID.put(newID, initID);
+
+		}
+		finally { callBlocks.unpinBlockContaining(newID); }
+
+	}
 	
+	public static final String SAVED_BY_OLDER_VERSION_MESSAGE = 
+		"This trace was saved by an older version of the Whyline, which stored its values in a way this version can't read. Record the program again to analyze it.";
+
+	/**
+	 * True if the trace in the given folder was saved by a version of the Whyline whose values this one can't read.
+	 * Traces that haven't been saved are always readable, since their values are read from the recording.
+	 */
+	public static boolean wasSavedByOlderVersion(File traceDirectory) {
+
+		if(new File(traceDirectory, Whyline.SERIAL_PATH).exists()) return false;
+		try {
+			return !ValueBlock.isCurrentFormat(new File(traceDirectory, Whyline.VALUES_PATH), 0);
+		} catch(IOException e) {
+			e.printStackTrace();
+			return true;
+		}
+
+	}
+
 	public static TraceMetaData getMetaDataFrom(File traceDirectory) {
 
 		try {
@@ -2600,30 +2934,34 @@ public final class Trace {
 	public FieldState getFieldNode(long objectID, FieldInfo field) {
 		
 		assert objectID > 0;
-		Map<String,FieldState> map = fields.get(objectID);
-		if(map == null) {
-			map = new HashMap<String,FieldState>();
-			fields.put(objectID, map);
-		}
-		FieldState node = map.get(field.getDisplayName(true, -1));
-		if(node == null) {
-			node = new FieldState(this, objectID, field);
-			map.put(field.getDisplayName(true, -1), node);
+		synchronized(fields) {
+			Map<String,FieldState> map = fields.get(objectID);
+			if(map == null) {
+				map = new HashMap<String,FieldState>();
+				fields.put(objectID, map);
+			}
+			FieldState node = map.get(field.getDisplayName(true, -1));
+			if(node == null) {
+				node = new FieldState(this, objectID, field);
+				map.put(field.getDisplayName(true, -1), node);
+			}
+			return node;
 		}
-		return node;
 		
 	}
 
 	public ObjectState getObjectNode(long objectID) {
 
-		ObjectState obj = objects.get(objectID);
-		if(obj == null) {
-			
-			obj = new ObjectState(this, objectID);
-			objects.put(objectID, obj);
-
+		synchronized(objects) {
+			ObjectState obj = objects.get(objectID);
+			if(obj == null) {
+				
+				obj = new ObjectState(this, objectID);
+				objects.put(objectID, obj);
+	
+			}
+			return obj;
 		}
-		return obj;
 		
 	}
 	
@@ -2669,7 +3007,7 @@ public final class Trace {
 			this.source = getPath();
 			this.destination = getSaveLocation(name);
 			
-			totalBlocks = callBlocks.getNumberOfBlocks() + valueBlocks.getNumberOfBlocks() + idBlocks.getNumberOfBlocks();
+			totalBlocks = callBlocks.getNumberOfBlocks() + valueBlocks.getNumberOfBlocks() + (mappedIDs == null ? idBlocks.getNumberOfBlocks() : 0);
 			totalClasses = classfilesByID.size();
 
 		}
@@ -2704,6 +3042,10 @@ public final class Trace {
 
 			listener.notice("Copying folder...");
 			
+			// If the ids are mapped, they're saved when we copy the folder, so make sure they're all there first.
+			if(mappedIDs != null)
+				mappedIDs.force();
+			
 			// Copy all of the files in the recent trace folder to the new trace folder.
 			Util.copyFolder(source, destination, new Util.ProgressListener() {
 				public void progress(double percent) { 
@@ -2724,11 +3066,12 @@ public final class Trace {
 			
 			// Save all of the blocks for later use (in the recent trace directory)
 			ids.mkdirs();
-			for(int i = 0; i < idBlocks.getNumberOfBlocks(); i++) {
-				idBlocks.getBlock(i).writeToDisk(ids);
-				blocksWritten++;
-				updateProgress(false);
-			}
+			if(mappedIDs == null)
+				for(int i = 0; i < idBlocks.getNumberOfBlocks(); i++) {
+					idBlocks.getBlock(i).writeToDisk(ids);
+					blocksWritten++;
+					updateProgress(false);
+				}
 			calls.mkdirs();
 			for(int i = 0; i < callBlocks.getNumberOfBlocks(); i++) {
 				callBlocks.getBlock(i).writeToDisk(calls);
@@ -2761,6 +3104,12 @@ public final class Trace {
 			for(ThreadTrace t : threads)
 				t.writeToDisk(rangesFolder);
 
+			File callTreesFolder = new File(destination, Whyline.CALL_TREES_PATH);
+			callTreesFolder.mkdir();
+			for(ThreadTrace t : threads)
+				if(t.calls != null)
+					Util.save(t.calls, new File(callTreesFolder, t.getName()));
+
 			percentOfOtherDataWritten = .2;
 			updateProgress(true);
 
@@ -2786,12 +3135,21 @@ public final class Trace {
 			listener.notice("Saving runs...");
 			Util.save(runHistory, new File(destination, Whyline.RUNS_PATH));
 
+			{
+				DataOutputStream io = Util.getWriterFor(new File(destination, Whyline.SEGMENT_PATH));
+				io.writeInt(metadata.getSegment());
+				io.close();
+			}
+
 			percentOfOtherDataWritten = .4;
 			updateProgress(true);
 
 			listener.notice("Saving invocations...");
 			Util.save(invocationHistory, new File(destination, Whyline.INVOCATIONS_PATH));
 
+			listener.notice("Saving executions...");
+			Util.save(executionIndex, new File(destination, Whyline.EXECUTIONS_PATH));
+
 			percentOfOtherDataWritten = .7;
 			updateProgress(true);
 
@@ -3100,6 +3458,10 @@ public final class Trace {
 	
 	private final class Loader extends Thread {
 
+		// How many classfiles to slice ahead of the ones being added, and how many signatures each call resolution task resolves.
+		private static final int CLASSFILES_PARSED_AHEAD = 256;
+		private static final int INVOCATIONS_PER_TASK = 256;
+		
 		private int millisecondsBetweenNotification = 200;
 
 		private Map<String,File[]> cachedPaths = new HashMap<String,File[]>();
@@ -3264,16 +3626,32 @@ public final class Trace {
 				long maxMemory = Runtime.getRuntime().maxMemory();
 				long memoryFreeForBlocksEtc = maxMemory - memoryInUse;
 				
-				int bytesPerBlock = 16 * EVENTS_PER_BLOCK;
-				int maxBlocksInMemory = (int) ((memoryFreeForBlocksEtc / bytesPerBlock) * FRACTION_OF_MEMORY_FOR_BLOCKS);
+				cacheBudget.setLimit((long)(memoryFreeForBlocksEtc * FRACTION_OF_MEMORY_FOR_CACHES));
 				
-				idBlocks = new IDBlocks(Trace.this, IDS_FOLDER, numberOfBlocks, maxBlocksInMemory);
-				valueBlocks = new ValueBlocks(Trace.this, VALUES_FOLDER, numberOfBlocks, maxBlocksInMemory);
-				callBlocks = new CallBlocks(Trace.this, CALLS_FOLDER, numberOfBlocks, maxBlocksInMemory);
+				idBlocks = new IDBlocks(Trace.this, IDS_FOLDER, numberOfBlocks);
+				valueBlocks = new ValueBlocks(Trace.this, VALUES_FOLDER, numberOfBlocks);
+				callBlocks = new CallBlocks(Trace.this, CALLS_FOLDER, numberOfBlocks);
 
 				long beforeLoadingEvents = System.nanoTime();
 
 				File serialHistory = new File(getPath(), Whyline.SERIAL_PATH);
+
+				// Blocks left on disk by an earlier load of this trace may be of another segment, and blocks on disk are never rewritten, so start fresh.
+				if(serialHistory.exists()) {
+					for(File folder : new File[] { IDS_FOLDER, VALUES_FOLDER, CALLS_FOLDER }) {
+						File[] blocks = folder.listFiles();
+						if(blocks != null)
+							for(File block : blocks) block.delete();
+					}
+				}
+
+				// Fresh traces use the mapped ids if the user has asked for them; saved traces use them if they were saved with them.
+				File mappedIDsFile = new File(IDS_FOLDER, Whyline.MAPPED_IDS_NAME);
+				if(serialHistory.exists() ? Whyline.isMappingEventIDs() : mappedIDsFile.exists())
+					mappedIDs = new MappedIDColumns(mappedIDsFile, getNumberOfEvents(), serialHistory.exists());
+				else if(serialHistory.exists())
+					mappedIDsFile.delete();
+				
 				if(serialHistory.exists())
 					loadSerialAccessHistory();
 				else
@@ -3429,9 +3807,25 @@ public final class Trace {
 		
 		private void loadMeta() throws AnalysisException {
 			
+			// Say so before we've done anything else, rather than fail once we get to the values.
+			if(wasSavedByOlderVersion(getPath()))
+				throw new AnalysisException(SAVED_BY_OLDER_VERSION_MESSAGE);
+			
 			try {
 
-				metadata = new TraceMetaData(META);
+				// Saved traces say which segment of events they saved. Otherwise, load the preferred one.
+				File segmentFile = new File(getPath(), Whyline.SEGMENT_PATH);
+				int segment = segmentToLoad >= 0 ? segmentToLoad : Whyline.getEventSegment();
+				if(segmentFile.exists()) {
+					DataInputStream segmentData = Util.getReaderFor(segmentFile);
+					segment = segmentData.readInt();
+					segmentData.close();
+				}
+
+				metadata = new TraceMetaData(META, segment);
+				
+				if(isTruncated())
+					status = "Loading " + getSegmentDescription();
 								
 				if(metadata.getNumberOfObjects() > Integer.MAX_VALUE)
 					throw new AnalysisException("" + metadata.getNumberOfObjects() + " objects is too many objects for the Whyline to handle with a Java array.");
@@ -3478,12 +3872,20 @@ public final class Trace {
 				
 			}
 			
+			// Traces of the same classes have the same call graph, so another trace may have already resolved it.
+			File sharedCallGraph = analysisCache.getCallGraphFile(classfilesByID, metadata.getFormatVersion());
+			boolean callGraphIsCached = Trace.this.callGraphIsCached;
+			if(!callGraphIsCached && sharedCallGraph != null && sharedCallGraph.exists()) {
+				Util.copyFile(sharedCallGraph, CALL_GRAPH);
+				callGraphIsCached = true;
+			}
+			
 			if(callGraphIsCached) {
 
 				DataInputStream in = Util.getReaderFor(CALL_GRAPH);
 				int numberOfInvocations = in.readInt();
 				for(int i = 0; i < numberOfInvocations; i++) {
-					Invoke invoke = (Invoke) getInstructionWithID(in.readInt());
+					Invoke invoke = (Invoke) readInstruction(in);
 					int numberOfMethods = in.readInt();
 					for(int j = 0; j < numberOfMethods; j++) {
 						Classfile c = getClassfileByID(in.readInt());
@@ -3509,8 +3911,8 @@ public final class Trace {
 				
 				int invocationsRemaining = invocations.size();
 	
-				// Cache these so that we don't have to recreate them.
-				HashMap<String, MethodInfo[]> methodsByQualifiedSignature = new HashMap<String,MethodInfo[]>(1000);
+				// Resolve each signature once, in parallel, so that we don't have to recreate them.
+				HashMap<String, MethodInfo[]> methodsByQualifiedSignature = resolveInvocations();
 				
 				out.writeInt(invocations.size());
 				
@@ -3518,15 +3920,10 @@ public final class Trace {
 				// Then, using this knowledge, associate methods with callers. 
 				for(Invoke invoke : invocations) {
 	
-					String qualifiedSignature = invoke.getMethodInvoked().getQualfiedNameAndDescriptor();
-					MethodInfo[] methods = methodsByQualifiedSignature.get(qualifiedSignature);
-					if(methods == null) {
-						methods = getMethodsFromReference(invoke);
-						methodsByQualifiedSignature.put(qualifiedSignature, methods);
-					}
+					MethodInfo[] methods = methodsByQualifiedSignature.get(invoke.getMethodInvoked().getQualfiedNameAndDescriptor());
 
 					// Cache the calls to disk, writing the invoke's ID, the number of resolved methods, and each method's index.
-					out.writeInt(getInstructionIDFor(invoke));
+					writeInstruction(out, invoke);
 					out.writeInt(methods.length);
 					for(MethodInfo method : methods) {
 						out.writeInt(classIDs.getIDOfClassname(method.getClassfile().getInternalName()));
@@ -3546,10 +3943,93 @@ public final class Trace {
 				
 				out.close();
 				
+				if(sharedCallGraph != null)
+					analysisCache.saveCallGraph(CALL_GRAPH, sharedCallGraph);
+				
 			}			
 			
 		}
 		
+		/**
+		 * Resolves the methods that each qualified signature invoked might call. Each signature is resolved with the first invocation of it,
+		 * just as it would be if we resolved them one at a time in order, so the call graph is the same no matter how the work is divided.
+		 */
+		private HashMap<String, MethodInfo[]> resolveInvocations() throws IOException {
+			
+			final ArrayList<Invoke> firstInvocations = new ArrayList<Invoke>(1000);
+			HashSet<String> signatures = new HashSet<String>(1000);
+			for(Invoke invoke : invocations)
+				if(signatures.add(invoke.getMethodInvoked().getQualfiedNameAndDescriptor()))
+					firstInvocations.add(invoke);
+			
+			ExecutorService resolvers = createWorkers("Whyline call resolver");
+			
+			try {
+				
+				// Split the signatures into runs, so that each task does a decent amount of work.
+				ArrayList<Future<MethodInfo[][]>> resolving = new ArrayList<Future<MethodInfo[][]>>(firstInvocations.size() / INVOCATIONS_PER_TASK + 1);
+				for(int start = 0; start < firstInvocations.size(); start += INVOCATIONS_PER_TASK) {
+					final int first = start;
+					final int last = Math.min(start + INVOCATIONS_PER_TASK, firstInvocations.size());
+					resolving.add(resolvers.submit(new Callable<MethodInfo[][]>() {
+						public MethodInfo[][] call() {
+							MethodInfo[][] methods = new MethodInfo[last - first][];
+							for(int i = first; i < last; i++)
+								methods[i - first] = getMethodsFromReference(firstInvocations.get(i));
+							return methods;
+						}
+					}));
+				}
+				
+				HashMap<String, MethodInfo[]> methodsByQualifiedSignature = new HashMap<String,MethodInfo[]>(firstInvocations.size() * 2);
+				int resolved = 0;
+				for(Future<MethodInfo[][]> future : resolving) {
+					for(MethodInfo[] methods : getResult(future)) {
+						methodsByQualifiedSignature.put(firstInvocations.get(resolved).getMethodInvoked().getQualfiedNameAndDescriptor(), methods);
+						resolved++;
+					}
+					status = "Resolving calls (" + Util.commas(firstInvocations.size() - resolved) + " remaining)";
+				}
+				return methodsByQualifiedSignature;
+				
+			}
+			finally {
+				resolvers.shutdownNow();
+			}
+			
+		}
+		
+		/**
+		 * Waits for the given task, rethrowing any unchecked exceptions and I/O errors it threw.
+		 */
+		private <T> T getResult(Future<T> future) throws IOException {
+			
+			try {
+				return future.get();
+			} catch(InterruptedException e) {
+				throw new IOException("Interrupted while loading");
+			} catch(ExecutionException e) {
+				Throwable cause = e.getCause();
+				if(cause instanceof IOException) throw (IOException)cause;
+				else if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+				else if(cause instanceof Error) throw (Error)cause;
+				else throw new RuntimeException(cause);
+			}
+			
+		}
+		
+		private ExecutorService createWorkers(final String name) {
+			
+			return Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(), new ThreadFactory() {
+				public Thread newThread(Runnable runnable) {
+					Thread worker = new Thread(runnable, name);
+					worker.setDaemon(true);
+					return worker;
+				}
+			});
+			
+		}
+
 		private void markOutput() throws IOException { 
 			
 			if(outputIsCached) {
@@ -3559,11 +4039,11 @@ public final class Trace {
 				// Read output instructions
 				int numberOfGraphical = in.readInt();
 				for(int i = 0; i < numberOfGraphical; i++)
-					graphicalOutput.add(getInstructionWithID(in.readInt()));
+					graphicalOutput.add(readInstruction(in));
 
 				int numberOfTextual = in.readInt();
 				for(int i = 0; i < numberOfTextual; i++)
-					textualOutput.add(getInstructionWithID(in.readInt()));
+					textualOutput.add(readInstruction(in));
 
 				// Read output affecting fields and methods
 				int numberOfOutputAffectingFields = in.readInt();
@@ -3599,11 +4079,11 @@ public final class Trace {
 				// Write all of the output instruction indices
 				out.writeInt(graphicalOutput.size());
 				for(Instruction inst : graphicalOutput)
-					out.writeInt(getInstructionIDFor(inst));				
+					writeInstruction(out, inst);				
 
 				out.writeInt(textualOutput.size());
 				for(Instruction inst : textualOutput)
-					out.writeInt(getInstructionIDFor(inst));	
+					writeInstruction(out, inst);	
 
 				// Write all of the output affecting fields and methods.
 				out.writeInt(outputAffectingFields.size());
@@ -3752,25 +4232,13 @@ public final class Trace {
 			// Now actually find all of the class files.				
 			File classesFile = new File(TRACE_FOLDER, Whyline.CLASSES_PATH);
 			if(classesFile.exists()) {
-				DataInputStream in = Util.getReaderFor(classesFile);
-				int classCount = in.readInt();
-				int count = 0;
-				for(int i = 0; i < classCount; i++) {
-					try {
-						loadClassfile(in);
-					} catch (AnalysisException e) {
-						e.printStackTrace();
-					} catch (JavaSpecificationViolation e) {
-						e.printStackTrace();
-					}
-					numberOfClassesRead++;
-					count++;
-					if(count > Byte.MAX_VALUE) {
-						count = 0;
-						status = "Loading classes (" + Util.commas(getNumberOfClasses() - numberOfClassesRead) + " remaining)";
-					}
+				ExecutorService parsers = createWorkers("Whyline classfile parser");
+				try {
+					parseClassfiles(classesFile, parsers);
+				}
+				finally {
+					parsers.shutdownNow();
 				}
-				in.close();
 			}
 			else {
 				int count = 0;
@@ -3797,23 +4265,87 @@ public final class Trace {
 
 		}
 		
-		private Classfile loadClassfile(DataInputStream stream) throws IOException, AnalysisException, JavaSpecificationViolation {
-
-			Classfile classfile = new Classfile(stream, Trace.this);
+		/**
+		 * This thread slices the saved classes into each classfile's bytes, a pool of parsers parses them, and this thread adds
+		 * them to the trace in the order they were saved, so the result is the same as parsing them one at a time.
+		 */
+		private void parseClassfiles(File classesFile, ExecutorService parsers) throws IOException {
+			
+			DataInputStream in = Util.getReaderFor(classesFile);
+			int classCount = in.readInt();
+			
+			// Only slice so far ahead of the classes being added, so that we don't hold every classfile's bytes at once.
+			LinkedList<Future<Classfile>> parsing = new LinkedList<Future<Classfile>>();
+			for(int i = 0; i < classCount; i++) {
+				if(parsing.size() >= CLASSFILES_PARSED_AHEAD)
+					addParsedClassfile(parsing.removeFirst());
+				final byte[] bytes = Classfile.readBytes(in);
+				parsing.add(parsers.submit(new Callable<Classfile>() {
+					public Classfile call() throws Exception {
+						Classfile classfile = new Classfile(new DataInputStream(new ByteArrayInputStream(bytes)), Trace.this);
+						analysisCache.add(classfile, bytes);
+						return classfile;
+					}
+				}));
+			}
+			in.close();
 			
-			classfile.setStackDependenciesCache(stackDependenciesCache);
+			while(!parsing.isEmpty())
+				addParsedClassfile(parsing.removeFirst());
 			
-			// Add the source file if we have it.
-	        if(classfile.hasSourceFileAttribute()) {
-	        	
-	        	Set<Classfile> unassociatedClasses = classesWaitingForSourceByQualifiedSourceFileName.get(classfile.getQualifiedSourceFileName());
-	        	if(unassociatedClasses == null) {
-	        		unassociatedClasses = new HashSet<Classfile>();
-	        		classesWaitingForSourceByQualifiedSourceFileName.put(classfile.getQualifiedSourceFileName(), unassociatedClasses);
-	        	}
-	        	unassociatedClasses.add(classfile);
-	        	
-	        	// If we do have the source, add the classes referenced by the source as classes the user is "familiar" with.
+		}
+		
+		private void addParsedClassfile(Future<Classfile> parsed) throws IOException {
+			
+			try {
+				addClassfile(parsed.get());
+			} catch(InterruptedException e) {
+				throw new IOException("Interrupted while loading classes");
+			} catch(ExecutionException e) {
+				Throwable cause = e.getCause();
+				if(cause instanceof AnalysisException || cause instanceof JavaSpecificationViolation) cause.printStackTrace();
+				else if(cause instanceof IOException) throw (IOException)cause;
+				else if(cause instanceof RuntimeException) throw (RuntimeException)cause;
+				else if(cause instanceof Error) throw (Error)cause;
+				else throw new RuntimeException(cause);
+			} catch (AnalysisException e) {
+				e.printStackTrace();
+			} catch (JavaSpecificationViolation e) {
+				e.printStackTrace();
+			}
+			
+			numberOfClassesRead++;
+			if(numberOfClassesRead % Byte.MAX_VALUE == 0)
+				status = "Loading classes (" + Util.commas(getNumberOfClasses() - numberOfClassesRead) + " remaining)";
+			
+		}
+		
+		private Classfile loadClassfile(DataInputStream stream) throws IOException, AnalysisException, JavaSpecificationViolation {
+
+			byte[] bytes = Classfile.readBytes(stream);
+			Classfile classfile = new Classfile(new DataInputStream(new ByteArrayInputStream(bytes)), Trace.this);
+			analysisCache.add(classfile, bytes);
+			return addClassfile(classfile);
+			
+		}
+		
+		private Classfile addClassfile(Classfile classfile) throws IOException, AnalysisException, JavaSpecificationViolation {
+
+			classfile.setStackDependenciesCache(stackDependenciesCache);
+			
+			// Add the source file if we have it.
+	        if(classfile.hasSourceFileAttribute()) {
+	        	
+	        	synchronized(sourceLock) {
+		        	Set<Classfile> unassociatedClasses = classesWaitingForSourceByQualifiedSourceFileName.get(classfile.getQualifiedSourceFileName());
+		        	if(unassociatedClasses == null) {
+		        		unassociatedClasses = new HashSet<Classfile>();
+		        		classesWaitingForSourceByQualifiedSourceFileName.put(classfile.getQualifiedSourceFileName(), unassociatedClasses);
+		        	}
+		        	unassociatedClasses.add(classfile);
+	        	}
+	        	
+	        	// If we do have the source, add the classes referenced by the source as classes the user is "familiar" with.
 	        	if(classfile.hasSourceFileAttribute() && userSourceFiles.contains(classfile.getQualifiedSourceFileName())) {
 
 	    	        for(ConstantPoolInfo info : classfile.getConstantPool().getItems()) {
@@ -3866,12 +4398,14 @@ public final class Trace {
 		        			
 		        			QualifiedClassName classname = ((Instantiation)inst).getClassnameOfTypeProduced(); 
 		        			
-		        			List<Instantiation> allocations = allocationsByClass.get(classname);
-		        			if(allocations == null) {
-		        				allocations = new ArrayList<Instantiation>(5);
-		        				allocationsByClass.put(classname, allocations);
+		        			synchronized(allocationsByClass) {
+			        			List<Instantiation> allocations = allocationsByClass.get(classname);
+			        			if(allocations == null) {
+			        				allocations = new ArrayList<Instantiation>(5);
+			        				allocationsByClass.put(classname, allocations);
+			        			}
+			        			allocations.add((Instantiation)inst);
 		        			}
-		        			allocations.add((Instantiation)inst);	        			
 
 		        		}
 
@@ -3945,21 +4479,41 @@ public final class Trace {
 
 			isLoadingSerial = true;
 			
-			// Make some data structures to hold thread loading state. This will represent the active
-			// threads; we'll recreate the array when a thread finishes in order to stop checking it.
+			// Decode the threads' serial traces in parallel, a few batches ahead of the merge below.
+			ExecutorService decoders = createWorkers("Whyline serial trace decoder");
+			
+			try {
+				mergeSerialAccessHistory(decoders);
+			}
+			finally {
+				decoders.shutdownNow();
+			}
+			
+		}
+		
+		private void mergeSerialAccessHistory(Executor decoders) throws IOException {
+			
+			// Make some data structures to hold thread loading state. The queue holds the threads that aren't
+			// done, other than the current one, ordered by the ID of their next event.
 			ThreadLoader[] loaders = new ThreadLoader[threads.length];
-			for(int i =0; i < threads.length; i++)
+			for(int i =0; i < threads.length; i++) {
 				loaders[i] = new ThreadLoader(Trace.this, threads[i]);
+				loaders[i].decodeAhead(decoders);
+			}
+
+			PriorityQueue<ThreadLoader> waiting = new PriorityQueue<ThreadLoader>(Math.max(1, loaders.length), new Comparator<ThreadLoader>() {
+				public int compare(ThreadLoader one, ThreadLoader two) { return one.getNextEventID() - two.getNextEventID(); }
+			});
+			for(ThreadLoader loader : loaders) {
+				loader.start(decoders);
+				if(!loader.isDone())
+					waiting.add(loader);
+			}
 			
 			// Find the thread that starts with eventID 0.
-			ThreadLoader thread = null;
-			for(ThreadLoader loader : loaders)
-				if(loader.getNextEventID() == 0) {
-					thread = loader;
-					break;
-				}
+			ThreadLoader thread = waiting.poll();
 			
-			assert thread != null : "No thread with eventID 0? What's the deal?";
+			assert thread != null && thread.getNextEventID() == 0 : "No thread with eventID 0? What's the deal?";
 			
 			// Used to update progress every so many events 
 			int count = 0;
@@ -3967,28 +4521,32 @@ public final class Trace {
 			// To avoid the call to getNumberOfEvents() every loop
 			int numberOfEvents = getNumberOfEvents();
 			
+			ExecutionIndex executions = new ExecutionIndex();
+			
 			for(int eventID = 0; eventID < numberOfEvents; eventID++) {
 	
-				// If the current thread's next event ID is not the ID we expect, find the thread whose next ID is the expected ID.
-				if(thread.getNextEventID() != eventID) {
+				// If the current thread's next event ID is not the ID we expect, switch to the thread with the lowest next ID, which should be the expected ID.
+				if(thread.isDone() || thread.getNextEventID() != eventID) {
 
-					thread = null;
-					for(ThreadLoader loader : loaders)
-						if(loader.getNextEventID() == eventID) {
-							thread = loader;
-							break;
-						}
+					if(!thread.isDone())
+						waiting.add(thread);
+					thread = waiting.poll();
 
-					assert thread != null : "Looked for thread that contained event " + eventID + " but couldn't find it. Number of events = " + numberOfEvents;
+					assert thread != null && thread.getNextEventID() == eventID : "Looked for thread that contained event " + eventID + " but couldn't find it. Number of events = " + numberOfEvents;
 
 				}				
 
 				if(eventID % EVENTS_PER_BLOCK == 0) {
 					int blockID = eventID / EVENTS_PER_BLOCK;
-					//  Unlock the previous block so it can be cached, and lock the current block.
-					if(blockID > 0) idBlocks.unlock(blockID - 1);
-					idBlocks.lock(blockID);
-					currentIDBlock = getIDBlock(eventID);
+					//  Unpin the previous block so it can be cached, and pin the current block.
+					if(mappedIDs == null) {
+						if(blockID > 0) idBlocks.unpin(blockID - 1);
+						idBlocks.pin(blockID);
+						currentIDBlock = getIDBlock(eventID);
+					}
+					// Value blocks are only written once, so the one we're filling can't be unloaded until it's full.
+					if(blockID > 0) valueBlocks.unpin(blockID - 1);
+					valueBlocks.pin(blockID);
 					currentValueBlock = getValueBlock(eventID);
 				}
 				
@@ -3998,12 +4556,11 @@ public final class Trace {
 				////////////////////////////////////////////////////////////////////////////////////////////
 				// Parse the event, updating all relevant data structures based on its kind.
 				
-				DataInputStream traceData = thread.data;
-				int nextKindFlags = thread.nextKindFlags;
+				int nextKindFlags = thread.getKindFlags();
 				int threadID = thread.threadID;
 				
 				// Read the event ID
-				assert eventID == thread.nextEventID;
+				assert eventID == thread.getNextEventID();
 				
 				// Shift away the isIO and thread switch flags.
 				int kindID = nextKindFlags >>> 2;
@@ -4012,11 +4569,16 @@ public final class Trace {
 				boolean isIO = (nextKindFlags << 30) >>> 31 == 1;
 				
 				// Then read the 32 bits representing the class and instruction identifiers
-				int instructionID = traceData.readInt();
+				int instructionID = thread.getInstructionID();
 
-				int index = eventID - currentIDBlock.firstEventID;
-				currentIDBlock.instructionIDs[index] = instructionID;
-				currentIDBlock.kindIDs[index] = (byte)kindID;
+				if(mappedIDs != null)
+					mappedIDs.set(eventID, (byte)kindID, instructionID);
+				else {
+					int index = eventID - currentIDBlock.firstEventID;
+					currentIDBlock.instructionIDs[index] = instructionID;
+					currentIDBlock.kindIDs[index] = (byte)kindID;
+				}
+				executions.add(instructionID, eventID);
 				
 				// First read the event type
 				EventKind kind = EventKind.intToEvent(kindID);
@@ -4038,6 +4600,7 @@ public final class Trace {
 							initializationHistory.addClassInitializationEvent(start.getClassfile().getInternalName(), eventID);
 						
 						invocationHistory.addStartID(eventID, threadID);
+						thread.thread.calls.enter(eventID);
 						
 						break;
 
@@ -4071,14 +4634,9 @@ public final class Trace {
 						
 						INVOKESPECIAL invoke = ((INVOKESPECIAL)getInstruction(eventID));
 						
-						// Track <init>s that consume NEWs. Check this by finding the producer of the <init>'s instance, passing through duplication instuctions.
-						if(invoke.isInstanceInitializer()) {
-							StackDependencies.Producers instanceProducers  = invoke.getProducersOfArgument(0);
-							while(instanceProducers.getNumberOfProducers() == 1 && instanceProducers.getFirstProducer() instanceof Duplication)
-								instanceProducers = instanceProducers.getFirstProducer().getProducersOfArgument(0);
-							if(instanceProducers.getNumberOfProducers() == 1 && instanceProducers.getFirstProducer() instanceof NEW)
-								thread.initIDsWaitingForNewIDs.push(eventID);
-						}
+						// Track <init>s that consume NEWs.
+						if(initializesNewObject(invoke))
+							thread.initIDsWaitingForNewIDs.push(eventID);
 						
 						break;
 
@@ -4093,125 +4651,110 @@ public final class Trace {
 
 					case NEW_OBJECT :
 						// Read and store the captured ID
-						long objectID = traceData.readLong();
+						long objectID = thread.getValue();
 						instantiationHistory.addObjectInstantiationID(eventID, objectID); 
-						getValueBlock(eventID).longsProduced.put(eventID, objectID);
+						currentValueBlock.putLong(eventID, objectID);
 
-						QualifiedClassName classInstantiated = null;
-						QualifiedClassName classInitialized = null;
+						QualifiedClassName classInstantiated = ((NEW)getInstruction(eventID)).getClassInstantiated().getName();
 						int initID = -1;
 						
 						// Associate this instantiation with the prior initialization. We loop 
 						// because <init> calls can fail and throw exceptions, and never result in a NEW event.
 						// This way, we pop <init> calls that didn't succeed because of exceptions.
-						do {
-							initID = thread.initIDsWaitingForNewIDs.pop();
-							classInstantiated = ((NEW)getInstruction(eventID)).getClassInstantiated().getName();
-							classInitialized = ((INVOKESPECIAL)getInstruction(initID)).getMethodInvoked().getClassName();
-						} while(classInitialized != classInstantiated);
+						while(initID < 0 && !thread.initIDsWaitingForNewIDs.isEmpty()) {
+							int waitingID = thread.initIDsWaitingForNewIDs.pop();
+							if(((INVOKESPECIAL)getInstruction(waitingID)).getMethodInvoked().getClassName() == classInstantiated)
+								initID = waitingID;
+						}
 						
-						// Remember the association.
-						getInitializationByInstantiationTable(eventID).put(eventID, initID);
+						// Remember the association. If none of the segment's <init>s matched, the <init> was before the segment, so there's no event to remember.
+						if(initID >= 0) rememberInitializationOf(eventID, initID);
+						else thread.popInitBeforeSegment(classInstantiated);
 						break;
 
 					case NEW_ARRAY :
-						long arrayID = traceData.readLong();
-						currentValueBlock.longsProduced.put(eventID, arrayID);
+						long arrayID = thread.getValue();
+						currentValueBlock.putLong(eventID, arrayID);
 						instantiationHistory.addArrayInstantiationID(eventID, arrayID); 
 						break;
 					
 					// Read the value argument and store it in the table.
 					case IINC : 
-						getValuesByIncrementID(eventID).put(eventID, traceData.readInt()); 
+						currentValueBlock.putIncrement(eventID, (int)thread.getValue()); 
 						break;
 					
 					case GETGRAPHICS :
-						repaintArguments.put(eventID, 
-								new RepaintArguments(
-										traceData.readBoolean(), // represents window 
-										traceData.readLong(), // object ID 
-										traceData.readLong(), // graphicsID 
-										traceData.readShort(), traceData.readShort(), // width, height 
-										traceData.readShort(), traceData.readShort(), // translateX, translateY
-										traceData.readLong(), // windowX, windowY
-										traceData.readShort(), traceData.readShort() // windowX, windowY
-								));
+						repaintArguments.put(eventID, (RepaintArguments)thread.getArguments());
 						break;
 						
 					case CREATEGRAPHICS : 
-						createGraphicsArguments.put(eventID,
-								new CreateGraphicsArguments(traceData.readLong(), traceData.readLong())); 
+						createGraphicsArguments.put(eventID, (CreateGraphicsArguments)thread.getArguments()); 
 						break;
 						
 					case MOUSE_EVENT :
-						mouseArguments.put(eventID, 
-								new MouseArguments(traceData.readLong(), traceData.readInt(), traceData.readInt(), traceData.readInt(), traceData.readInt())); 
+						mouseArguments.put(eventID, (MouseArguments)thread.getArguments()); 
 						break;
 						
 					case KEY_EVENT :
-						keyArguments.put(eventID, 
-								new KeyArguments(traceData.readLong(), traceData.readInt(), traceData.readInt(), traceData.readInt(), traceData.readChar(), traceData.readInt())); 
+						keyArguments.put(eventID, (KeyArguments)thread.getArguments()); 
 						break;
 						
-					case WINDOW :
-						traceData.readLong(); 
-						break;
-					
 					case IMAGE_SIZE :
-						long imageID = traceData.readLong();
+						long imageID = thread.getValue();
 						ImageData data = imageData.get(imageID);
 						if(data == null) {
 							data = new ImageData(imageID);
 							imageData.put(imageID, data);
 						}
-						data.addSize(eventID, traceData.readInt(), traceData.readInt());
+						int[] size = (int[])thread.getArguments();
+						data.addSize(eventID, size[0], size[1]);
 						break;
 						
 					case INTEGER_PRODUCED :
 					case INTEGER_ARG :
-						int integerValue = traceData.readInt();
-						if(integerValue <= Short.MAX_VALUE && integerValue >= Short.MIN_VALUE) currentValueBlock.shortsProduced.put(eventID, (short)integerValue);
-						else currentValueBlock.integersProduced.put(eventID, integerValue);
+						int integerValue = (int)thread.getValue();
+						if(integerValue <= Short.MAX_VALUE && integerValue >= Short.MIN_VALUE) currentValueBlock.putShort(eventID, (short)integerValue);
+						else currentValueBlock.putInteger(eventID, integerValue);
 						break;
 						
 					case SHORT_PRODUCED :
 					case SHORT_ARG :
-						currentValueBlock.shortsProduced.put(eventID, traceData.readShort());
+						currentValueBlock.putShort(eventID, (short)thread.getValue());
 						break;
 
 					case BYTE_PRODUCED :
 					case BYTE_ARG :
-						currentValueBlock.bytesProduced.put(eventID, traceData.readByte());
+						currentValueBlock.putByte(eventID, (byte)thread.getValue());
 						break;
 
 					case FLOAT_PRODUCED :
 					case FLOAT_ARG :
-						currentValueBlock.floatsProduced.put(eventID, traceData.readFloat());
+						currentValueBlock.putFloat(eventID, Float.intBitsToFloat((int)thread.getValue()));
 						break;
 
 					case BOOLEAN_PRODUCED :
 					case BOOLEAN_ARG :
-						currentValueBlock.booleansProduced.put(eventID, (byte)(traceData.readBoolean() ? 1 : 0));
+						currentValueBlock.putBoolean(eventID, thread.getValue() != 0);
 						break;
 
 					case CHARACTER_PRODUCED :
 					case CHARACTER_ARG :
-						currentValueBlock.charactersProduced.put(eventID, traceData.readChar());
+						currentValueBlock.putCharacter(eventID, (char)thread.getValue());
 						break;
 
 					case DOUBLE_PRODUCED :
 					case DOUBLE_ARG :
-						currentValueBlock.doublesProduced.put(eventID, traceData.readDouble());
+						currentValueBlock.putDouble(eventID, Double.longBitsToDouble(thread.getValue()));
 						break;
 
 					case LONG_PRODUCED :
 					case LONG_ARG :
 					case OBJECT_PRODUCED :
 					case OBJECT_ARG :
-						long longValue = traceData.readLong();
-						if(longValue <= Short.MAX_VALUE && longValue  >= Short.MIN_VALUE) currentValueBlock.shortsProduced.put(eventID, (short)longValue);
-						else if(longValue <= Integer.MAX_VALUE && longValue >= Integer.MIN_VALUE) currentValueBlock.integersProduced.put(eventID, (int)longValue);
-						else currentValueBlock.longsProduced.put(eventID, longValue);
+						long longValue = thread.getValue();
+						if(longValue <= Short.MAX_VALUE && longValue  >= Short.MIN_VALUE) currentValueBlock.putShort(eventID, (short)longValue);
+						else if(longValue <= Integer.MAX_VALUE && longValue >= Integer.MIN_VALUE) currentValueBlock.putInteger(eventID, (int)longValue);
+						else currentValueBlock.putLong(eventID, longValue);
 						
 						if(kind == OBJECT_PRODUCED) {
 							Instruction inst = getInstruction(eventID);
@@ -4231,18 +4774,20 @@ public final class Trace {
 				// If this is the kind of event we need to load immediately, we handle the call stacks for it.
 				if(loadImmediately) {
 
-					if(thread.callStack == null) 
+					if(thread.callStack == null) {
+						final CallTree calls = thread.thread.calls;
 						// Create a call stack with a listener that updates associated events.
-						thread.callStack = new CallStack(Trace.this, threadID, eventID, new CallStack.Listener() {
+						// Calls that started before the segment, and so aren't loaded, are still on the stack.
+						thread.callStack = new CallStack(Trace.this, threadID, eventID, thread.methodsCalledBeforeSegment, new CallStack.Listener() {
 							public void foundInvocationStartPair(int invocationID, int startID) {
-								getInvocationByStartTable(startID).put(startID, invocationID);
-								getStartByInvocationTable(invocationID).put(invocationID, startID);
+								rememberInvocationStartPair(invocationID, startID);
 							}
 							public void foundStartReturnOrCatchPair(int startID, int returnOrCatchID) {
-								getReturnByStartTable(startID).put(startID, returnOrCatchID);
-								getStartByReturnTable(returnOrCatchID).put(returnOrCatchID, startID);
+								rememberStartReturnOrCatchPair(startID, returnOrCatchID);
+								calls.exit(startID, returnOrCatchID, getKind(returnOrCatchID) == EXCEPTION_CAUGHT);
 							}
 						});
+					}
 					else thread.callStack.handleNextEventID(eventID);
 					
 				}
@@ -4252,31 +4797,15 @@ public final class Trace {
 
 				numberOfEventsRead++;
 				
+				// Move to the thread's next event. If the thread is done, we'll drop it when we look for the next event's thread.
 				if(eventID == thread.lastEventID)
 					thread.nextEventID = -1;
 				else
-					thread.nextEventID();
+					thread.advance(decoders);
 
-				
 				//////////////////////////////////////////////////////////////////////////////////////////////
 				
 				
-				// Is the thread now done? Remove it from the active thread list.
-				if(thread.isDone()) {
-					
-					// Release the file.
-					thread.data.close();
-
-					// Make a new array without the finished thread loading state.
-					ThreadLoader[] newLoaders = new ThreadLoader[loaders.length - 1];
-					int newIndexI = 0;
-					for(ThreadLoader loader : loaders)
-						if(loader != thread)
-							newLoaders[newIndexI++] = loader;
-					loaders = newLoaders;
-					
-				}
-				
 				// Update the loading status if the count has reached the limit
 				if(++count == Short.MAX_VALUE) {
 					count = 0;
@@ -4287,8 +4816,10 @@ public final class Trace {
 				
 			}
 
-			//  Unlock the last block so it can be cached.
-			idBlocks.unlock((getNumberOfEvents() - 1) / EVENTS_PER_BLOCK);
+			//  Unpin the last block so it can be cached.
+			if(mappedIDs == null)
+				idBlocks.unpin((getNumberOfEvents() - 1) / EVENTS_PER_BLOCK);
+			valueBlocks.unpin((getNumberOfEvents() - 1) / EVENTS_PER_BLOCK);
 			
 			// Save some space by trimming the io histories.
 			ioHistory.trimToSize();
@@ -4308,11 +4839,17 @@ public final class Trace {
 			for(ThreadTrace t : threads)
 				t.trimToSize();
 
+			indexThreadIDs();
+			callTreesIndexed = true;
+
+			executions.trimToSize();
+			executionIndex = executions;
+			
 			isLoadingSerial = false;
 			
 		}
 
-		private void loadRandomAccessHistory() throws IOException {
+		private void loadRandomAccessHistory() throws IOException, AnalysisException {
 			
 			isLoadingSerial = false;
 			
@@ -4329,6 +4866,16 @@ public final class Trace {
 				status = "Reading " + t.getName() + "...";
 				t.readFromDisk(ranges);
 			}
+			indexThreadIDs();
+
+			// Traces saved before there were call trees fall back to searching for starts.
+			File callTrees = new File(path, Whyline.CALL_TREES_PATH);
+			for(ThreadTrace t : threads) {
+				File calls = new File(callTrees, t.getName());
+				if(calls.exists()) Util.load(t.calls, calls);
+				else t.calls = null;
+			}
+			callTreesIndexed = true;
 
 			numberOfEventsRead = (int) (.1 * getNumberOfEvents());
 			status = "Reading exceptions...";
@@ -4362,6 +4909,9 @@ public final class Trace {
 			status = "Reading invocations...";
 			Util.load(invocationHistory, new File(path, Whyline.INVOCATIONS_PATH));
 
+			status = "Reading executions...";
+			indexExecutions(new File(path, Whyline.EXECUTIONS_PATH));
+
 			numberOfEventsRead = (int) (.3 * getNumberOfEvents());
 
 			{
@@ -4429,6 +4979,24 @@ public final class Trace {
 			
 		}
 
+		/**
+		 * Traces saved before there was an execution index don't have one, so we build it from the events.
+		 */
+		private void indexExecutions(File file) throws IOException {
+
+			ExecutionIndex executions = new ExecutionIndex();
+			if(file.exists())
+				Util.load(executions, file);
+			else {
+				int numberOfEvents = getNumberOfEvents();
+				for(int eventID = 0; eventID < numberOfEvents; eventID++)
+					executions.add(getInstructionID(eventID), eventID);
+				executions.trimToSize();
+			}
+			executionIndex = executions;
+
+		}
+
 		private void handleIOEvent(int eventID) {
 			
 			// Mark the instruction as I/O (as opposed to the event, which would waste space).
@@ -4454,8 +5022,56 @@ public final class Trace {
 
 	}
 
+	/**
+	 * A batch of events decoded from one thread's serial trace, in the order they occurred in that thread.
+	 * Each event's value is stored in a long: ints, shorts, bytes, characters, and booleans directly, floats and doubles as
+	 * their raw bits, and object IDs as themselves. I/O events with several arguments store them in arguments.
+	 */
+	private static final class DecodedEvents {
+
+		public static final int CAPACITY = 1024;
+
+		public final int[] eventIDs = new int[CAPACITY];
+		public final byte[] kindFlags = new byte[CAPACITY];
+		public final int[] instructionIDs = new int[CAPACITY];
+		public final long[] values = new long[CAPACITY];
+		public final Object[] arguments = new Object[CAPACITY];
+		public int size = 0;
+
+		// Set on the last batch of a thread, which may be empty.
+		public boolean last = false;
+
+		// Set if decoding failed; the merge rethrows it.
+		public IOException failure;
+
+		public boolean isFull() { return size == CAPACITY; }
+
+	}
+
+	/**
+	 * Reads a thread's serial trace. Decoding happens on a pool of decoder threads, a batch at a time, a few batches
+	 * ahead of loadSerialAccessHistory(), which merges the threads' events in event ID order.
+	 * Only one batch of a thread is ever being decoded at a time, so the decoding state below is only touched by one decoder at a time.
+	 */
+	/**
+	 * True if the given invocation initializes an object made by a NEW, rather than calling a superclass's or another constructor. 
+	 * We check this by finding the producer of the <init>'s instance, passing through duplication instructions.
+	 */
+	private static boolean initializesNewObject(INVOKESPECIAL invoke) {
+		
+		if(!invoke.isInstanceInitializer()) return false;
+		StackDependencies.Producers instanceProducers  = invoke.getProducersOfArgument(0);
+		while(instanceProducers.getNumberOfProducers() == 1 && instanceProducers.getFirstProducer() instanceof Duplication)
+			instanceProducers = instanceProducers.getFirstProducer().getProducersOfArgument(0);
+		return instanceProducers.getNumberOfProducers() == 1 && instanceProducers.getFirstProducer() instanceof NEW;
+		
+	}
+	
 	private static class ThreadLoader {
 
+		// How many decoded batches we let pile up before we wait for the merge to catch up.
+		private static final int BATCHES_AHEAD = 4;
+
 		private final Trace trace;
 		private final ThreadTrace thread;
 		private final int threadID;
@@ -4463,11 +5079,31 @@ public final class Trace {
 		
 		private final DataInputStream data;
 
-		// These can't really be interpreted without the help of loadSerialHistory() because we're compressing eventIDs.
-		// We only write a full eventID every 256 events.
-		private int nextKindFlags = -1;
+		// True if this thread's serial trace was written with SerialEncoding.COMPACT.
+		private final boolean compact;
+		
+		// In the compact encoding, each class and instruction ID is a delta from the previous one.
+		private long previousInstructionID = 0;
+
+		// The ID of the last event decoded. These can't really be interpreted without the help of the kind flags, because we're compressing eventIDs.
+		// We only write a full eventID after switching back to this thread. This is the ID in the whole trace, not the segment.
+		private long decodedEventID = -1;
+		private final boolean longEventIDs;
+		private final long lastEventIDInTrace;
+
+		// The events in the segment being loaded, in the whole trace; the end is exclusive. Events outside of it are decoded, then skipped.
+		private final long firstEventIDInSegment, endOfSegment;
+		private final boolean hasEvents;
+		private boolean moreToDecode;
+
+		private final BlockingQueue<DecodedEvents> decoded = new LinkedBlockingQueue<DecodedEvents>();
+		private boolean decoding = false;
+		
+		// The batch being merged and the index of the next event in it.
+		private DecodedEvents batch;
+		private int index = 0;
+		
 		private int nextEventID = -1;
-		private boolean threadSwitch;
 		public final int lastEventID;
 
 		private CallStack callStack;
@@ -4475,6 +5111,11 @@ public final class Trace {
 		private IntegerVector newIDsWaitingForObjectIDs = new IntegerVector(20);
 		private IntegerVector initIDsWaitingForNewIDs = new IntegerVector(20);
 
+		// The calls and <init>s that the events before the segment left waiting. Those events aren't loaded, but the segment's events
+		// finish them, so we replay the prefix as we decode it. Only the decoder touches these until it hands off the first batch.
+		private final ArrayList<MethodInfo> methodsCalledBeforeSegment = new ArrayList<MethodInfo>(8);
+		private final ArrayList<INVOKESPECIAL> initsBeforeSegment = new ArrayList<INVOKESPECIAL>(4);
+
 		public ThreadLoader(Trace trace, ThreadTrace thread) throws IOException {
 
 			this.trace = trace;
@@ -4482,40 +5123,324 @@ public final class Trace {
 			threadID = thread.getThreadID();
 			lastEventID = thread.getLastEventID();
 			name = thread.getName();
+			compact = trace.metadata.getSerialEncoding() == SerialEncoding.COMPACT;
+			longEventIDs = trace.metadata.hasLongEventIDs();
+			lastEventIDInTrace = thread.metadata.lastEventIDInTrace;
+			firstEventIDInSegment = trace.metadata.getFirstEventIDInSegment();
+			endOfSegment = firstEventIDInSegment + trace.metadata.getNumberOfEvents();
 			
 			data = 
 				new DataInputStream(
 					new BufferedInputStream(
 							new FileInputStream(thread.getSerialFile()), 65536));
 
-			// Start on the first event, unless the last event is before the first, which means there were no events.
-			// If there's data in the serial trace file (it could be empty), read the first event.
-			if(data.available() > 0) nextEventID();			
-			if(thread.metadata.lastEventID < thread.metadata.firstEventID) nextEventID = -1;
+			// If there's data in the serial trace file (it could be empty), there's something to read, 
+			// unless the last event is before the first, which means there were no events.
+			hasEvents = data.available() > 0 && thread.metadata.lastEventID >= thread.metadata.firstEventID;
+			moreToDecode = hasEvents;
+			if(!hasEvents) data.close();
 			
 			if(threadID >= Short.MAX_VALUE) throw new RuntimeException("Reached maximum number of threads " + Short.MAX_VALUE);				
 
 		}
 		
+		/**
+		 * Starts decoding a batch on the given executor, unless one is already being decoded, there's nothing left, or we're far enough ahead.
+		 */
+		public synchronized void decodeAhead(final Executor decoders) {
+			
+			if(decoding || !moreToDecode || decoded.size() >= BATCHES_AHEAD) return;
+			
+			decoding = true;
+			decoders.execute(new Runnable() {
+				public void run() {
+					
+					DecodedEvents events;
+					try {
+						events = decodeBatch();
+					} catch(IOException e) {
+						events = new DecodedEvents();
+						events.failure = e;
+						events.last = true;
+						moreToDecode = false;
+					}
+					decoded.add(events);
+					synchronized(ThreadLoader.this) {
+						decoding = false;
+					}
+					decodeAhead(decoders);
+					
+				}
+			});
+			
+		}
+
+		/**
+		 * Waits for the first batch and finds the first event ID. Called by the merge before it starts.
+		 */
+		public void start(Executor decoders) throws IOException {
+			
+			if(hasEvents) nextBatch(decoders);
+			
+		}
+		
+		private void nextBatch(Executor decoders) throws IOException {
+			
+			try {
+				batch = decoded.take();
+			} catch(InterruptedException e) {
+				throw new InterruptedIOException("Interrupted while waiting for " + name + " to be decoded");
+			}
+			if(batch.failure != null) throw batch.failure;
+			index = 0;
+			nextEventID = batch.size > 0 ? batch.eventIDs[0] : -1;
+			decodeAhead(decoders);
+			
+		}
+		
+		/**
+		 * Moves the merge to the next event in this thread, waiting for it to be decoded if necessary.
+		 */
+		public void advance(Executor decoders) throws IOException {
+			
+			index++;
+			if(index < batch.size) nextEventID = batch.eventIDs[index];
+			else if(batch.last) nextEventID = -1;
+			else nextBatch(decoders);
+			
+		}
+		
 		public boolean isDone() { return nextEventID < 0 || nextEventID > lastEventID; }
 		
 		public int getNextEventID() { return nextEventID; }
 		
-		private void nextEventID() throws IOException {
+		public int getKindFlags() { return batch.kindFlags[index] & 0xFF; }
+		
+		public int getInstructionID() { return batch.instructionIDs[index]; }
+		
+		public long getValue() { return batch.values[index]; }
+		
+		public Object getArguments() { return batch.arguments[index]; }
 
-			nextKindFlags = data.readUnsignedByte();
+		private DecodedEvents decodeBatch() throws IOException {
 			
-			threadSwitch = switched(nextKindFlags);
-			if(threadSwitch)
-				nextEventID = data.readInt();
-			else
-				nextEventID++;
+			DecodedEvents events = new DecodedEvents();
 			
-		}
+			while(moreToDecode && !events.isFull()) {
+				
+				int kindFlags = data.readUnsignedByte();
+				
+				if(switched(kindFlags))
+					decodedEventID = compact ? readVarLong() : longEventIDs ? data.readLong() : data.readInt();
+				else
+					decodedEventID++;
+
+				int instructionID = readInstructionID();
 
+				long value = 0;
+				Object arguments = null;
+				
+				switch(EventKind.intToEvent(kindFlags >>> 2)) {
+
+					case NEW_OBJECT :
+					case NEW_ARRAY :
+					case LONG_PRODUCED :
+					case LONG_ARG :
+					case OBJECT_PRODUCED :
+					case OBJECT_ARG :
+						value = readLongValue();
+						break;
+
+					case IINC : 
+					case INTEGER_PRODUCED :
+					case INTEGER_ARG :
+						value = readIntValue();
+						break;
+						
+					case GETGRAPHICS :
+						arguments = 
+							new RepaintArguments(
+									data.readBoolean(), // represents window 
+									data.readLong(), // object ID 
+									data.readLong(), // graphicsID 
+									data.readShort(), data.readShort(), // width, height 
+									data.readShort(), data.readShort(), // translateX, translateY
+									data.readLong(), // windowX, windowY
+									data.readShort(), data.readShort() // windowX, windowY
+							);
+						break;
+						
+					case CREATEGRAPHICS : 
+						arguments = new CreateGraphicsArguments(data.readLong(), data.readLong()); 
+						break;
+						
+					case MOUSE_EVENT :
+						arguments = new MouseArguments(data.readLong(), data.readInt(), data.readInt(), data.readInt(), data.readInt()); 
+						break;
+						
+					case KEY_EVENT :
+						arguments = new KeyArguments(data.readLong(), data.readInt(), data.readInt(), data.readInt(), data.readChar(), data.readInt()); 
+						break;
+						
+					case WINDOW :
+						data.readLong(); 
+						break;
+					
+					case IMAGE_SIZE :
+						value = data.readLong();
+						arguments = new int[] { data.readInt(), data.readInt() };
+						break;
+						
+					case SHORT_PRODUCED :
+					case SHORT_ARG :
+						value = readShortValue();
+						break;
+
+					case BYTE_PRODUCED :
+					case BYTE_ARG :
+						value = data.readByte();
+						break;
+
+					case FLOAT_PRODUCED :
+					case FLOAT_ARG :
+						value = data.readInt();
+						break;
+
+					case BOOLEAN_PRODUCED :
+					case BOOLEAN_ARG :
+						value = data.readBoolean() ? 1 : 0;
+						break;
+
+					case CHARACTER_PRODUCED :
+					case CHARACTER_ARG :
+						value = readCharValue();
+						break;
+
+					case DOUBLE_PRODUCED :
+					case DOUBLE_ARG :
+						value = data.readLong();
+						break;
+
+					default : 
+
+				}
+
+				if(decodedEventID < firstEventIDInSegment)
+					replayEventBeforeSegment(EventKind.intToEvent(kindFlags >>> 2), instructionID);
+				else {
+					int i = events.size++;
+					events.eventIDs[i] = (int)(decodedEventID - firstEventIDInSegment);
+					events.kindFlags[i] = (byte)kindFlags;
+					events.instructionIDs[i] = instructionID;
+					events.values[i] = value;
+					events.arguments[i] = arguments;
+				}
+
+				moreToDecode = decodedEventID != lastEventIDInTrace && decodedEventID + 1 < endOfSegment && data.available() > 0;
+				
+			}
+			
+			if(!moreToDecode) finishDecoding();
+			events.last = !moreToDecode;
+			return events;
+			
+		}
+		
+		/**
+		 * Keeps track of the calls and <init>s that an event before the segment leaves waiting, the same way the merge's call stack
+		 * and <init> stack would.
+		 */
+		private void replayEventBeforeSegment(EventKind kind, int instructionID) {
+			
+			Instruction instruction;
+			switch(kind) {
+			
+				case START_METHOD :
+					instruction = trace.getInstructionWithID(instructionID);
+					if(instruction != null) methodsCalledBeforeSegment.add(instruction.getMethod());
+					break;
+					
+				case RETURN :
+					if(!methodsCalledBeforeSegment.isEmpty()) methodsCalledBeforeSegment.remove(methodsCalledBeforeSegment.size() - 1);
+					break;
+					
+				case EXCEPTION_CAUGHT :
+					instruction = trace.getInstructionWithID(instructionID);
+					MethodInfo method = instruction == null ? null : instruction.getMethod();
+					while(!methodsCalledBeforeSegment.isEmpty() && methodsCalledBeforeSegment.get(methodsCalledBeforeSegment.size() - 1) != method)
+						methodsCalledBeforeSegment.remove(methodsCalledBeforeSegment.size() - 1);
+					break;
+					
+				case INVOKE_SPECIAL :
+					instruction = trace.getInstructionWithID(instructionID);
+					if(instruction instanceof INVOKESPECIAL && initializesNewObject((INVOKESPECIAL)instruction))
+						initsBeforeSegment.add((INVOKESPECIAL)instruction);
+					break;
+					
+				case NEW_OBJECT :
+					instruction = trace.getInstructionWithID(instructionID);
+					if(instruction instanceof NEW)
+						popInitBeforeSegment(((NEW)instruction).getClassInstantiated().getName());
+					break;
+					
+				default :
+					
+			}
+			
+		}
+		
+		/**
+		 * Pops <init>s from before the segment until one of the given class, like the merge does with the segment's own <init>s.
+		 */
+		public void popInitBeforeSegment(QualifiedClassName classInstantiated) {
+			
+			while(!initsBeforeSegment.isEmpty())
+				if(initsBeforeSegment.remove(initsBeforeSegment.size() - 1).getMethodInvoked().getClassName() == classInstantiated)
+					return;
+			
+		}
+		
+		private void finishDecoding() throws IOException {
+			
+			moreToDecode = false;
+			// Release the file.
+			data.close();
+			
+		}
+		
 		// Read the thread switch bit.
 		private boolean switched(int kindFlags) { return (kindFlags << 31) >>> 31 == 1; }
 
+		private int readInstructionID() throws IOException {
+			
+			if(!compact) return data.readInt();
+			previousInstructionID += SerialEncoding.unZigZag(readVarLong());
+			return (int)previousInstructionID;
+			
+		}
+		
+		private int readIntValue() throws IOException { return compact ? (int)SerialEncoding.unZigZag(readVarLong()) : data.readInt(); }
+
+		private short readShortValue() throws IOException { return compact ? (short)SerialEncoding.unZigZag(readVarLong()) : data.readShort(); }
+
+		private char readCharValue() throws IOException { return compact ? (char)readVarLong() : data.readChar(); }
+
+		private long readLongValue() throws IOException { return compact ? SerialEncoding.unZigZag(readVarLong()) : data.readLong(); }
+
+		private long readVarLong() throws IOException {
+			
+			long value = 0;
+			int shift = 0;
+			int b;
+			do {
+				b = data.readUnsignedByte();
+				value |= (long)(b & 0x7F) << shift;
+				shift += 7;
+			} while((b & 0x80) != 0);
+			return value;
+			
+		}
+
 		private int getPlaceholderIDFor(int classAndInstructionID) {
 			
 			int placeholder = -1;
@@ -4538,6 +5463,7 @@ public final class Trace {
 
 		private final ThreadMetaData metadata;
 		private final IntegerRange eventIDs;
+		private CallTree calls = new CallTree();
 
 		public ThreadTrace(ThreadMetaData meta) throws IOException {
 			
@@ -4557,6 +5483,7 @@ public final class Trace {
 		public void trimToSize() {
 			
 			eventIDs.trimToSize();
+			calls.trimToSize();
 			
 		}
 
@@ -4608,137 +5535,287 @@ public final class Trace {
 
 	}
 		
+	/**
+	 * Stores the values produced by the events in a block in columns. Each event position has a type, saying which column
+	 * its value is in, and a slot, saying where in that column. Loading a trace appends to heap columns; reading a block 
+	 * back from disk maps the block's file and reads the columns straight out of the mapping, rather than copying them.
+	 */
 	private static class ValueBlock extends Block {
 		
-		// These store the values produced by various value produced events.
-		private final TIntIntHashMap integersProduced = new TIntIntHashMap(10);
-		private final TIntLongHashMap longsProduced = new TIntLongHashMap(10);
-		private final TIntFloatHashMap floatsProduced = new TIntFloatHashMap(10);
-		private final TIntDoubleHashMap doublesProduced = new TIntDoubleHashMap(10);
-		private final TIntIntHashMap charactersProduced = new TIntIntHashMap(10);
-		private final TIntByteHashMap bytesProduced = new TIntByteHashMap(10);
-		private final TIntShortHashMap shortsProduced = new TIntShortHashMap(10);
-		private final TIntByteHashMap booleansProduced = new TIntByteHashMap(10);
-		private final TIntIntHashMap valuesByIncrementID = new TIntIntHashMap(10); 	
+		// The types of values, which say which column each event's value is in. 
+		private static final byte NO_VALUE = 0;
+		private static final byte SHORT = 1;
+		private static final byte INTEGER = 2;
+		private static final byte LONG = 3;
+		private static final byte FLOAT = 4;
+		private static final byte DOUBLE = 5;
+		private static final byte CHARACTER = 6;
+		private static final byte BYTE = 7;
+		private static final byte BOOLEAN = 8;
+		private static final byte INCREMENT = 9;
+		
+		// The sizes of the columns and the format, then the types and slots, and then the columns, widest first, so everything in the file is aligned.
+		private static final int HEADER_SIZE = 8 * 4;
+		private static final int FORMAT_OFFSET = 7 * 4;
+
+		// Marks blocks written in this layout. Blocks saved before it stored their values in maps, and can't be read this way.
+		private static final int FORMAT = 0x57560002;
+		private static final int INITIAL_COLUMN_CAPACITY = 16;
+		
+		private ByteBuffer types;
+		private ShortBuffer slots;
+
+		private LongBuffer longs;
+		private DoubleBuffer doubles;
+		private IntBuffer integers;	// Integers and increment values
+		private FloatBuffer floats;
+		private ShortBuffer shorts;
+		private CharBuffer characters;
+		private ByteBuffer bytes;	// Bytes and booleans
+
+		private int numberOfLongs, numberOfDoubles, numberOfIntegers, numberOfFloats, numberOfShorts, numberOfCharacters, numberOfBytes;
+		
+		public ValueBlock(int firstEventID) { 
+			
+			super(firstEventID);
 
-		public ValueBlock(int firstEventID) { super(firstEventID); }
+			types = ByteBuffer.allocate(EVENTS_PER_BLOCK);
+			slots = ShortBuffer.allocate(EVENTS_PER_BLOCK);
+			longs = LongBuffer.allocate(INITIAL_COLUMN_CAPACITY);
+			doubles = DoubleBuffer.allocate(INITIAL_COLUMN_CAPACITY);
+			integers = IntBuffer.allocate(INITIAL_COLUMN_CAPACITY);
+			floats = FloatBuffer.allocate(INITIAL_COLUMN_CAPACITY);
+			shorts = ShortBuffer.allocate(INITIAL_COLUMN_CAPACITY);
+			characters = CharBuffer.allocate(INITIAL_COLUMN_CAPACITY);
+			bytes = ByteBuffer.allocate(INITIAL_COLUMN_CAPACITY);
+			
+		}
 		
 		protected String getBlockName() { return Whyline.VALUES_NAME + Integer.toString(firstEventID / EVENTS_PER_BLOCK); }
 
+		public byte getType(int eventID) { return types.get(eventID - firstEventID); }
+
+		private int getSlot(int eventID) { return slots.get(eventID - firstEventID); }
+		
+		private void setSlot(int eventID, byte type, int slot) { 
+			
+			types.put(eventID - firstEventID, type);
+			slots.put(eventID - firstEventID, (short)slot);
+			
+		}
+
+		public long getLong(int eventID) { return longs.get(getSlot(eventID)); }
+		public double getDouble(int eventID) { return doubles.get(getSlot(eventID)); }
+		public int getInteger(int eventID) { return integers.get(getSlot(eventID)); }
+		public float getFloat(int eventID) { return floats.get(getSlot(eventID)); }
+		public short getShort(int eventID) { return shorts.get(getSlot(eventID)); }
+		public char getCharacter(int eventID) { return characters.get(getSlot(eventID)); }
+		public byte getByte(int eventID) { return bytes.get(getSlot(eventID)); }
+		
+		// Each of these appends a value to its column, doubling the column if it's full.
+		
+		public void putLong(int eventID, long value) {
+			
+			if(numberOfLongs == longs.capacity()) {
+				long[] bigger = new long[numberOfLongs * 2];
+				System.arraycopy(longs.array(), 0, bigger, 0, numberOfLongs);
+				longs = LongBuffer.wrap(bigger);
+			}
+			setSlot(eventID, LONG, numberOfLongs);
+			longs.put(numberOfLongs++, value);
+			
+		}
+
+		public void putDouble(int eventID, double value) {
+			
+			if(numberOfDoubles == doubles.capacity()) {
+				double[] bigger = new double[numberOfDoubles * 2];
+				System.arraycopy(doubles.array(), 0, bigger, 0, numberOfDoubles);
+				doubles = DoubleBuffer.wrap(bigger);
+			}
+			setSlot(eventID, DOUBLE, numberOfDoubles);
+			doubles.put(numberOfDoubles++, value);
+			
+		}
+
+		private void putInteger(int eventID, byte type, int value) {
+			
+			if(numberOfIntegers == integers.capacity()) {
+				int[] bigger = new int[numberOfIntegers * 2];
+				System.arraycopy(integers.array(), 0, bigger, 0, numberOfIntegers);
+				integers = IntBuffer.wrap(bigger);
+			}
+			setSlot(eventID, type, numberOfIntegers);
+			integers.put(numberOfIntegers++, value);
+			
+		}
+
+		public void putInteger(int eventID, int value) { putInteger(eventID, INTEGER, value); }
+
+		public void putIncrement(int eventID, int value) { putInteger(eventID, INCREMENT, value); }
+
+		public void putFloat(int eventID, float value) {
+			
+			if(numberOfFloats == floats.capacity()) {
+				float[] bigger = new float[numberOfFloats * 2];
+				System.arraycopy(floats.array(), 0, bigger, 0, numberOfFloats);
+				floats = FloatBuffer.wrap(bigger);
+			}
+			setSlot(eventID, FLOAT, numberOfFloats);
+			floats.put(numberOfFloats++, value);
+			
+		}
+
+		public void putShort(int eventID, short value) {
+			
+			if(numberOfShorts == shorts.capacity()) {
+				short[] bigger = new short[numberOfShorts * 2];
+				System.arraycopy(shorts.array(), 0, bigger, 0, numberOfShorts);
+				shorts = ShortBuffer.wrap(bigger);
+			}
+			setSlot(eventID, SHORT, numberOfShorts);
+			shorts.put(numberOfShorts++, value);
+			
+		}
+
+		public void putCharacter(int eventID, char value) {
+			
+			if(numberOfCharacters == characters.capacity()) {
+				char[] bigger = new char[numberOfCharacters * 2];
+				System.arraycopy(characters.array(), 0, bigger, 0, numberOfCharacters);
+				characters = CharBuffer.wrap(bigger);
+			}
+			setSlot(eventID, CHARACTER, numberOfCharacters);
+			characters.put(numberOfCharacters++, value);
+			
+		}
+
+		private void putByte(int eventID, byte type, byte value) {
+			
+			if(numberOfBytes == bytes.capacity()) {
+				byte[] bigger = new byte[numberOfBytes * 2];
+				System.arraycopy(bytes.array(), 0, bigger, 0, numberOfBytes);
+				bytes = ByteBuffer.wrap(bigger);
+			}
+			setSlot(eventID, type, numberOfBytes);
+			bytes.put(numberOfBytes++, value);
+			
+		}
+
+		public void putByte(int eventID, byte value) { putByte(eventID, BYTE, value); }
+
+		public void putBoolean(int eventID, boolean value) { putByte(eventID, BOOLEAN, (byte)(value ? 1 : 0)); }
+
 		public void readFromDisk(File folder) {
 			
 			File block = new File(folder, getBlockName());
 			assert block.exists() : "If we're reading the cached block from disk, then it must be there! But its not!"; 
 			
-			// First read all of the events.
 			try {
-				DataInputStream stream = new DataInputStream(new BufferedInputStream(new FileInputStream(block), EVENTS_PER_BLOCK * BYTES_PER_EVENT));
-
-				// Then read all of the cached values.
-				Util.readIntIntMap(stream, integersProduced);
 				
-				int size = stream.readInt();
-				longsProduced.ensureCapacity(size);
-				for(int i = 0; i < size; i++) {
-					longsProduced.put(stream.readInt(), stream.readLong());
-				}
-				size = stream.readInt();
-				floatsProduced.ensureCapacity(size);
-				for(int i = 0; i < size; i++)
-					floatsProduced.put(stream.readInt(), stream.readFloat());
-				size = stream.readInt();
-				doublesProduced.ensureCapacity(size);
-				for(int i = 0; i < size; i++)
-					doublesProduced.put(stream.readInt(), stream.readDouble());
-				size = stream.readInt();
-				charactersProduced.ensureCapacity(size);
-				for(int i = 0; i < size; i++)
-					charactersProduced.put(stream.readInt(), stream.readChar());
-				size = stream.readInt();
-				bytesProduced.ensureCapacity(size);
-				for(int i = 0; i < size; i++)
-					bytesProduced.put(stream.readInt(), stream.readByte());
-				size = stream.readInt();
-				shortsProduced.ensureCapacity(size);
-				for(int i = 0; i < size; i++)
-					shortsProduced.put(stream.readInt(), stream.readShort());
-				size = stream.readInt();
-				booleansProduced.ensureCapacity(size);
-				for(int i = 0; i < size; i++)
-					booleansProduced.put(stream.readInt(), stream.readByte());
-	
-				Util.readIntIntMap(stream, valuesByIncrementID);
+				RandomAccessFile file = new RandomAccessFile(block, "r");
+				ByteBuffer mapping = file.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, file.length());
+				file.close();
+				
+				if(mapping.capacity() < HEADER_SIZE || mapping.getInt(FORMAT_OFFSET) != FORMAT)
+					throw new IOException(block.getAbsolutePath() + " wasn't written in the current value block format.");
+
+				// First read the column sizes.
+				numberOfLongs = mapping.getInt(0);
+				numberOfDoubles = mapping.getInt(4);
+				numberOfIntegers = mapping.getInt(8);
+				numberOfFloats = mapping.getInt(12);
+				numberOfShorts = mapping.getInt(16);
+				numberOfCharacters = mapping.getInt(20);
+				numberOfBytes = mapping.getInt(24);
+
+				// Then point the columns at their parts of the mapping.
+				int offset = HEADER_SIZE;
+				types = slice(mapping, offset, EVENTS_PER_BLOCK);				offset += EVENTS_PER_BLOCK;
+				slots = slice(mapping, offset, 2 * EVENTS_PER_BLOCK).asShortBuffer();	offset += 2 * EVENTS_PER_BLOCK;
+				longs = slice(mapping, offset, 8 * numberOfLongs).asLongBuffer();		offset += 8 * numberOfLongs;
+				doubles = slice(mapping, offset, 8 * numberOfDoubles).asDoubleBuffer();	offset += 8 * numberOfDoubles;
+				integers = slice(mapping, offset, 4 * numberOfIntegers).asIntBuffer();	offset += 4 * numberOfIntegers;
+				floats = slice(mapping, offset, 4 * numberOfFloats).asFloatBuffer();	offset += 4 * numberOfFloats;
+				shorts = slice(mapping, offset, 2 * numberOfShorts).asShortBuffer();	offset += 2 * numberOfShorts;
+				characters = slice(mapping, offset, 2 * numberOfCharacters).asCharBuffer();	offset += 2 * numberOfCharacters;
+				bytes = slice(mapping, offset, numberOfBytes);
 
-				stream.close();
 			} catch(IOException e) {
 				System.err.println("Tried to read from " + block.getAbsolutePath() + " but...");
 				e.printStackTrace();
 				System.exit(0);
 			}
 
-			// Then trim all of the tables of cached values.
-			integersProduced.trimToSize();
-			longsProduced.trimToSize();
-			floatsProduced.trimToSize();
-			doublesProduced.trimToSize();
-			charactersProduced.trimToSize();
-			bytesProduced.trimToSize();
-			shortsProduced.trimToSize();
-			booleansProduced.trimToSize();
-			valuesByIncrementID.trimToSize(); 	
-
 		}
 		
-		public void writeToDisk(File folder) throws IOException {
-
-			File block = new File(folder, getBlockName());
-			if(block.exists()) return;
+		/**
+		 * True if the block with the given ID in the given folder was written in the format readFromDisk() expects.
+		 */
+		public static boolean isCurrentFormat(File folder, int blockID) throws IOException {
 			
-			// First write all of the events.
-			DataOutputStream stream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(block), EVENTS_PER_BLOCK * BYTES_PER_EVENT));
-		
-			// Then write all of the cached values.
-			Util.writeIntIntMap(stream, integersProduced);
+			File block = new File(folder, Whyline.VALUES_NAME + Integer.toString(blockID));
+			if(!block.exists()) return true;
 			
-			stream.writeInt(longsProduced.size());
-			for(int key : longsProduced.keys()) {
-				stream.writeInt(key);
-				stream.writeLong(longsProduced.get(key));
-			}
-			stream.writeInt(floatsProduced.size());
-			for(int key : floatsProduced.keys()) {
-				stream.writeInt(key);
-				stream.writeFloat(floatsProduced.get(key));
-			}
-			stream.writeInt(doublesProduced.size());
-			for(int key : doublesProduced.keys()) {
-				stream.writeInt(key);
-				stream.writeDouble(doublesProduced.get(key));
-			}
-			stream.writeInt(charactersProduced.size());
-			for(int key : charactersProduced.keys()) {
-				stream.writeInt(key);
-				stream.writeChar(charactersProduced.get(key));
-			}
-			stream.writeInt(bytesProduced.size());
-			for(int key : bytesProduced.keys()) {
-				stream.writeInt(key);
-				stream.writeByte(bytesProduced.get(key));
-			}
-			stream.writeInt(shortsProduced.size());
-			for(int key : shortsProduced.keys()) {
-				stream.writeInt(key);
-				stream.writeShort(shortsProduced.get(key));
+			RandomAccessFile file = new RandomAccessFile(block, "r");
+			try {
+
+				if(file.length() < HEADER_SIZE) return false;
+				file.seek(FORMAT_OFFSET);
+				return file.readInt() == FORMAT;
+
 			}
-			stream.writeInt(booleansProduced.size());
-			for(int key : booleansProduced.keys()) {
-				stream.writeInt(key);
-				stream.writeByte(booleansProduced.get(key));
+			finally {
+				file.close();
 			}
 			
-			Util.writeIntIntMap(stream, valuesByIncrementID);
+		}
+		
+		private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+			
+			ByteBuffer duplicate = buffer.duplicate();
+			duplicate.position(offset);
+			duplicate.limit(offset + length);
+			return duplicate.slice();
+			
+		}
+		
+		public void writeToDisk(File folder) throws IOException {
 
-			stream.close();
+			File block = new File(folder, getBlockName());
+			if(block.exists()) return;
+
+			ByteBuffer out = ByteBuffer.allocate(
+				HEADER_SIZE + 3 * EVENTS_PER_BLOCK + 
+				8 * (numberOfLongs + numberOfDoubles) + 4 * (numberOfIntegers + numberOfFloats) + 
+				2 * (numberOfShorts + numberOfCharacters) + numberOfBytes);
+
+			// First write the column sizes, and then the format.
+			out.putInt(numberOfLongs);
+			out.putInt(numberOfDoubles);
+			out.putInt(numberOfIntegers);
+			out.putInt(numberOfFloats);
+			out.putInt(numberOfShorts);
+			out.putInt(numberOfCharacters);
+			out.putInt(numberOfBytes);
+			out.putInt(FORMAT);
+
+			// Then write the types, slots, and columns, in the order readFromDisk() expects.
+			for(int i = 0; i < EVENTS_PER_BLOCK; i++) out.put(types.get(i));
+			for(int i = 0; i < EVENTS_PER_BLOCK; i++) out.putShort(slots.get(i));
+			for(int i = 0; i < numberOfLongs; i++) out.putLong(longs.get(i));
+			for(int i = 0; i < numberOfDoubles; i++) out.putDouble(doubles.get(i));
+			for(int i = 0; i < numberOfIntegers; i++) out.putInt(integers.get(i));
+			for(int i = 0; i < numberOfFloats; i++) out.putFloat(floats.get(i));
+			for(int i = 0; i < numberOfShorts; i++) out.putShort(shorts.get(i));
+			for(int i = 0; i < numberOfCharacters; i++) out.putChar(characters.get(i));
+			for(int i = 0; i < numberOfBytes; i++) out.put(bytes.get(i));
+			
+			out.flip();
+			FileChannel channel = new FileOutputStream(block).getChannel();
+			while(out.hasRemaining())
+				channel.write(out);
+			channel.close();
 
 		}
 			
@@ -4801,6 +5878,82 @@ public final class Trace {
 
 	}
 	
+	/**
+	 * Stores the kind and class/instruction ID of every event in the trace in one memory-mapped file, rather than in IDBlocks.
+	 * The file holds a column of kind bytes for all events, followed by a column of instruction ID ints, so reading either is
+	 * an offset into a mapping. The operating system's page cache decides what's in memory, rather than Blocks.
+	 * A single mapping can't exceed 2 GB, so each column is mapped in segments.
+	 */
+	private static class MappedIDColumns {
+
+		private static final int EVENTS_PER_SEGMENT_BITS = 28;
+		private static final int EVENTS_PER_SEGMENT = 1 << EVENTS_PER_SEGMENT_BITS;
+		private static final int SEGMENT_MASK = EVENTS_PER_SEGMENT - 1;
+
+		private final MappedByteBuffer[] kinds;
+		private final IntBuffer[] instructionIDs;
+		private final MappedByteBuffer[] instructionIDMappings;
+		
+		/**
+		 * @param writable If true, the file is created (or resized) to fit the given number of events, so the loader can fill it in. 
+		 */
+		public MappedIDColumns(File path, int numberOfEvents, boolean writable) throws IOException {
+			
+			RandomAccessFile file = new RandomAccessFile(path, writable ? "rw" : "r");
+
+			// Pad the kinds column so that the instruction IDs are aligned.
+			long kindsLength = ((long)numberOfEvents + 7) & ~7L;
+			long length = kindsLength + 4L * numberOfEvents;
+			if(writable) file.setLength(length);
+			else if(file.length() != length) 
+				throw new IOException("Expected " + path.getAbsolutePath() + " to be " + length + " bytes, but it's " + file.length());
+
+			FileChannel channel = file.getChannel();
+			FileChannel.MapMode mode = writable ? FileChannel.MapMode.READ_WRITE : FileChannel.MapMode.READ_ONLY;
+			
+			int numberOfSegments = (int)(((long)numberOfEvents + EVENTS_PER_SEGMENT - 1) / EVENTS_PER_SEGMENT);
+			kinds = new MappedByteBuffer[numberOfSegments];
+			instructionIDs = new IntBuffer[numberOfSegments];
+			instructionIDMappings = new MappedByteBuffer[numberOfSegments];
+			for(int segment = 0; segment < numberOfSegments; segment++) {
+				
+				long firstEvent = (long)segment * EVENTS_PER_SEGMENT;
+				int eventsInSegment = (int)Math.min(EVENTS_PER_SEGMENT, numberOfEvents - firstEvent);
+				kinds[segment] = channel.map(mode, firstEvent, eventsInSegment);
+				instructionIDMappings[segment] = channel.map(mode, kindsLength + 4 * firstEvent, 4L * eventsInSegment);
+				instructionIDs[segment] = instructionIDMappings[segment].asIntBuffer();
+				
+			}
+			
+			// The mappings stay valid after the file is closed.
+			file.close();
+			
+		}
+		
+		public byte getKindID(int eventID) { return kinds[eventID >>> EVENTS_PER_SEGMENT_BITS].get(eventID & SEGMENT_MASK); }
+
+		public int getInstructionID(int eventID) { return instructionIDs[eventID >>> EVENTS_PER_SEGMENT_BITS].get(eventID & SEGMENT_MASK); }
+
+		public void set(int eventID, byte kindID, int instructionID) {
+			
+			int segment = eventID >>> EVENTS_PER_SEGMENT_BITS;
+			kinds[segment].put(eventID & SEGMENT_MASK, kindID);
+			instructionIDs[segment].put(eventID & SEGMENT_MASK, instructionID);
+			
+		}
+		
+		/**
+		 * Makes sure everything set is on disk, so that the file can be copied.
+		 */
+		public void force() {
+			
+			for(MappedByteBuffer segment : kinds) segment.force();
+			for(MappedByteBuffer segment : instructionIDMappings) segment.force();
+			
+		}
+
+	}
+	
 	// Represents a series of events. We partition them like this so that we can load and unload them from
 	// disk when we run low on memory.
 	private static class IDBlock extends Block {
@@ -4866,10 +6019,10 @@ public final class Trace {
 	
 	private static class IDBlocks extends Blocks<IDBlock> {
 		
-		public IDBlocks(Trace trace, File folder, int numberOfBlocks, int maxBlocksInMemory) {
+		public IDBlocks(Trace trace, File folder, int numberOfBlocks) {
 			
-			super(trace, folder, numberOfBlocks, maxBlocksInMemory);
-			blocks = new IDBlock[numberOfBlocks];
+			// A kind and an instruction ID for every event.
+			super("id blocks", trace, folder, numberOfBlocks, 5 * EVENTS_PER_BLOCK);
 
 		}
 
@@ -4879,10 +6032,10 @@ public final class Trace {
 
 	private static class ValueBlocks extends Blocks<ValueBlock> {
 		
-		public ValueBlocks(Trace trace, File folder, int numberOfBlocks, int maxBlocksInMemory) {
+		public ValueBlocks(Trace trace, File folder, int numberOfBlocks) {
 			
-			super(trace, folder, numberOfBlocks, maxBlocksInMemory);
-			blocks = new ValueBlock[numberOfBlocks];
+			// A type and slot for every event, and about a long's worth of column for each.
+			super("value blocks", trace, folder, numberOfBlocks, 11 * EVENTS_PER_BLOCK);
 
 		}
 
@@ -4892,10 +6045,10 @@ public final class Trace {
 
 	private static class CallBlocks extends Blocks<CallsBlock> {
 		
-		public CallBlocks(Trace trace, File folder, int numberOfBlocks, int maxBlocksInMemory) {
+		public CallBlocks(Trace trace, File folder, int numberOfBlocks) {
 			
-			super(trace, folder, numberOfBlocks, maxBlocksInMemory);
-			blocks = new CallsBlock[numberOfBlocks];
+			// Only calls, returns, and instantiations have entries, each a key, a value, and a state in a half full table.
+			super("call blocks", trace, folder, numberOfBlocks, 8 * EVENTS_PER_BLOCK);
 
 		}
 
@@ -4903,32 +6056,49 @@ public final class Trace {
 
 	}
 
-	private static abstract class Blocks<T extends Block> {
+	/**
+	 * The blocks of one kind of event data, loading them from disk as they're needed and unloading the least frequently used when the cache budget is full.
+	 * Loading and unloading are synchronized, so several threads can query at once. Blocks that are loaded are read without locking;
+	 * a block that's unloaded while a thread is reading it is still valid, since unloading only forgets it. Blocks being filled are pinned,
+	 * so they aren't unloaded before they're written. Pins are counted, so that a block stays pinned until everyone that pinned it unpins it.
+	 * A block just loaded stays pinned until it's been charged for, so that making space for it can't unload it.
+	 */
+	private static abstract class Blocks<T extends Block> implements CacheBudget.Member {
 		
+		private final int bytesPerBlock;
+
+		private final String name;
 		private final Trace trace;
-		public T[] blocks;
+		private final AtomicReferenceArray<T> blocks;
 		private final boolean[] blocksCreated;
 		private final boolean[] blocksWritten;
-		private final boolean[] blocksLocked;
+		private final int[] pins;
 		private final int[] blockFrequencies;
 		private int blocksInMemory;
-		private final int maxBlocksInMemory;
 		private final File folder; 
 
-		public Blocks(Trace trace, File blockFolder, int numberOfBlocks, int maxBlocksInMemory) {
+		// Blocks read without locking count as hits too, so these are atomic.
+		private final AtomicLong hits = new AtomicLong(0);
+		private long misses, evictions;
+
+		public Blocks(String name, Trace trace, File blockFolder, int numberOfBlocks, int bytesPerBlock) {
 
+			this.name = name;
+			this.bytesPerBlock = bytesPerBlock;
 			this.trace = trace;
 			this.folder = blockFolder;
-			this.maxBlocksInMemory = maxBlocksInMemory;
 
+			blocks = new AtomicReferenceArray<T>(numberOfBlocks);
 			blocksCreated = new boolean[numberOfBlocks];
 			blocksWritten = new boolean[numberOfBlocks];
-			blocksLocked = new boolean[numberOfBlocks];
+			pins = new int[numberOfBlocks];
 			blockFrequencies = new int[numberOfBlocks];
 
+			trace.cacheBudget.add(this);
+			
 		}
 
-		public void markAllBlocksWritten() {
+		public synchronized void markAllBlocksWritten() {
 			
 			Arrays.fill(blocksCreated, true);
 			Arrays.fill(blocksWritten, true);
@@ -4937,58 +6107,79 @@ public final class Trace {
 		
 		protected abstract T makeBlock(int firstEventID);
 		
-		public int getNumberOfBlocks() { return blocks.length; }
+		public int getNumberOfBlocks() { return blocks.length(); }
 		
 		public File getFolder() { return folder; }
 		
-		// Prevents block from being unloaded
-		public void lock(int blockID) { blocksLocked[blockID] = true; }
-		public void unlock(int blockID) { blocksLocked[blockID] = false; }
+		public String getName() { return name; }
+
+		public synchronized long getBytes() { return (long)blocksInMemory * bytesPerBlock; }
+
+		public long getHits() { return hits.get(); }
+		
+		public synchronized long getMisses() { return misses; }
+		
+		public synchronized long getEvictions() { return evictions; }
+
+		// Prevents block from being unloaded until it's unpinned as many times as it was pinned.
+		public synchronized void pin(int blockID) { pins[blockID]++; }
+		public synchronized void unpin(int blockID) { 
+			
+			assert pins[blockID] > 0 : "Unpinned block " + blockID + " more times than it was pinned.";
+			if(pins[blockID] > 0) pins[blockID]--;
+			
+		}
 
+		/**
+		 * Returns the block if it's in memory, or null if it has to be loaded.
+		 */
+		public T getBlockIfLoaded(int blockID) { 
+			
+			T block = blocks.get(blockID);
+			if(block != null) hits.incrementAndGet();
+			return block;
+			
+		}
+		
 		private T getBlockContaining(int eventID) {
 			
 			return getBlock(eventID / EVENTS_PER_BLOCK);
 			
 		}
 
-		private T getBlock(int blockID) {
+		/**
+		 * Returns the block containing the given event, pinned so that it isn't unloaded before it's changed. 
+		 * Callers must call unpinBlockContaining() when they're done with it.
+		 */
+		public T pinBlockContaining(int eventID) {
 			
-			T block = blocks[blockID];
+			int blockID = eventID / EVENTS_PER_BLOCK;
+			pin(blockID);
+			return getBlock(blockID);
 			
-			// We accessed the block, so increase its life span.
-			blockFrequencies[blockID] = Short.MAX_VALUE;
+		}
+		
+		public void unpinBlockContaining(int eventID) { unpin(eventID / EVENTS_PER_BLOCK); }
 
-			// If the block isn't loaded...
-			if(block == null) {
-				
-				int firstEventID = blockID * EVENTS_PER_BLOCK;
+		private T getBlock(int blockID) {
+			
+			T block;
+			synchronized(this) {
+			
+				block = blocks.get(blockID);
 				
-				// We're about to use some memory. Do we need to make space?
-				if(blocksInMemory + 1 > maxBlocksInMemory) {
-					
-					// Find a block to unload, saving its state.
-					int blockIDToUnload = chooseBlockIDToUnload(blockID);
-					if(blockIDToUnload >= 0) {
-
-						// Do we need to write this to disk? Only if it hasn't been written, or it has, but we're still loading an unsaved trace.
-						// an unsaved trace and the block is not written yet.
-						if(!blocksWritten[blockIDToUnload] || (!trace.isSaved() && !trace.isDoneLoading())) {
-							try {
-								blocks[blockIDToUnload].writeToDisk(folder);
-								blocksWritten[blockIDToUnload] = true;
-							} catch(IOException e) {
-								e.printStackTrace();
-							}
-						}
-						blocks[blockIDToUnload] = null;
-						blocksInMemory--;
-
-					}
-
+				// We accessed the block, so increase its life span.
+				blockFrequencies[blockID] = Short.MAX_VALUE;
+	
+				if(block != null) {
+					hits.incrementAndGet();
+					return block;
 				}
-
+				
+				misses++;
+				
 				// Create a fresh block.
-				block = makeBlock(firstEventID);
+				block = makeBlock(blockID * EVENTS_PER_BLOCK);
 
 				// If we've cached the block on disk, then load the block from disk.
 				if(blocksCreated[blockID]) {
@@ -5000,24 +6191,74 @@ public final class Trace {
 					blocksCreated[blockID] = true;
 				}
 				
-				blocks[blockID] = block;
+				// Only publish the block once it's read, so that threads that don't lock never see it half read.
+				blocks.set(blockID, block);
 				blocksInMemory++;
+				
+				// Keep it from being unloaded to make space for itself.
+				pins[blockID]++;
+
+			}
+			
+			// Charge for the block once we've let go of the lock, since making space may mean unloading some of our own blocks.
+			try {
+
+				trace.cacheBudget.charge(bytesPerBlock);
 
 			}
+			finally {
+				unpin(blockID);
+			}
 			
 			return block;
 			
 		}
 
-		private int chooseBlockIDToUnload(int desiredBlockID) {
+		public long evict(long bytes) {
+			
+			long freed = 0;
+			synchronized(this) {
+				while(freed < bytes) {
+					int blockIDToUnload = chooseBlockIDToUnload();
+					if(blockIDToUnload < 0) break;
+					unload(blockIDToUnload);
+					freed += bytesPerBlock;
+				}
+			}
+			trace.cacheBudget.credit(freed);
+			return freed;
+			
+		}
+
+		/**
+		 * Forgets the given block, writing it to disk first if it needs to be. Must be called while synchronized.
+		 */
+		private void unload(int blockID) {
+			
+			// Do we need to write this to disk? Only if it hasn't been written, or it has, but we're still loading an unsaved trace.
+			if(!blocksWritten[blockID] || (!trace.isSaved() && !trace.isDoneLoading())) {
+				try {
+					blocks.get(blockID).writeToDisk(folder);
+					blocksWritten[blockID] = true;
+				} catch(IOException e) {
+					e.printStackTrace();
+				}
+			}
+			blocks.set(blockID, null);
+			blocksInMemory--;
+			evictions++;
+			
+		}
+
+		private int chooseBlockIDToUnload() {
 
-			// Choose a block to unload that's not the requested block and that's already done loading.
+			// Choose a block to unload that's not pinned. The block just loaded has the highest frequency, so it's chosen last.
 			int blockIDToUnload = -1;
-			int smallestFrequency = Short.MAX_VALUE;
-			for(int i = 0; i < blocks.length; i++) {
+			int smallestFrequency = Short.MAX_VALUE + 1;
+			for(int i = 0; i < blockFrequencies.length; i++) {
 				int freq = blockFrequencies[i];
 				if(freq > 0) blockFrequencies[i]--;
-				if(blocks[i] != null && i != desiredBlockID && !blocksLocked[i] && freq < smallestFrequency) {
+				if(pins[i] == 0 && freq < smallestFrequency && blocks.get(i) != null) {
 					blockIDToUnload = i;
 					smallestFrequency = freq;
 				}
@@ -13,29 +13,74 @@ import edu.cmu.hcii.whyline.bytecode.Classfile;
 import edu.cmu.hcii.whyline.bytecode.MethodInfo;
 import edu.cmu.hcii.whyline.bytecode.QualifiedClassName;
 import edu.cmu.hcii.whyline.util.Util;
+import gnu.trove.TIntIntHashMap;
 
 /**
+ * 
+ * Traces recorded with 64-bit event IDs can have more events than an int can count, so they're loaded one segment of EVENTS_PER_SEGMENT
+ * events at a time. Everything loaded refers to events by their int offset in the segment; getFirstEventIDInSegment() converts them back.
+ * The meta files of these traces write -1 where the number of events would be, followed by the 64-bit counts and IDs. Other traces have one segment.
+ * 
+ * Format version 1 meta files identify classes in events by their global class IDs. Version 2 meta files end with a table of the
+ * global class IDs of each class that executed, in the order the Tracer first saw them; events identify classes by their index in this table.
  * 
  * @author Andrew J. Ko
  *
  */ 
 public class TraceMetaData {
 
+	/**
+	 * The version of the meta file format that the Tracer writes.
+	 */
+	public static final int FORMAT_VERSION = 2;
+
+	/**
+	 * Written in place of the number of events in meta files with 64-bit event IDs.
+	 */
+	public static final int LONG_EVENT_IDS = -1;
+	
+	/**
+	 * The number of events in each segment of a trace with 64-bit event IDs. A multiple of the trace's block size, and small enough that
+	 * offsets in a segment never approach the largest int.
+	 */
+	public static final int EVENTS_PER_SEGMENT = 1 << 30;
+
 	private final QualifiedClassName mainClassName;
 	private final List<String> mainArguments;
 	private final long timeOfInvocation;
 
 	private final int numberOfEvents;
+	private final long numberOfEventsInTrace;
+	private final boolean longEventIDs;
+	private final int segment;
+	private final long firstEventIDInSegment;
 	private final long numberOfObjects;
 	private final int numberOfClasses;
 	private final int numberOfThreads;
 	
 	private final ThreadMetaData[] threadMetaData;
 
+	private final SerialEncoding serialEncoding;
+
+	private final int formatVersion;
+
+	// The global class IDs of the classes in the trace, indexed by their ID in the trace, and the reverse. Both null in version 1 traces.
+	private final int[] classIDsByTraceClassID;
+	private final TIntIntHashMap traceClassIDsByClassID;
+
 	private MethodInfo main;
 	
 	public TraceMetaData(File file) throws IOException {
 		
+		this(file, 0);
+		
+	}
+
+	/**
+	 * @param segment The segment of the trace to load, which is clamped to the segments the trace has.
+	 */
+	public TraceMetaData(File file, int segment) throws IOException {
+		
 		DataInputStream data = Util.getReaderFor(file);
 
 		this.mainClassName = QualifiedClassName.get(data.readUTF());
@@ -47,8 +92,21 @@ public class TraceMetaData {
 
 		timeOfInvocation = data.readLong();
 
-		numberOfEvents = data.readInt();
-		assert numberOfEvents <= Integer.MAX_VALUE : "The number of events exceeds the largest possible array we can create."; 
+		int count = data.readInt();
+		longEventIDs = count == LONG_EVENT_IDS;
+		numberOfEventsInTrace = longEventIDs ? data.readLong() : count;
+
+		if(longEventIDs) {
+			int numberOfSegments = (int)((numberOfEventsInTrace + EVENTS_PER_SEGMENT - 1) / EVENTS_PER_SEGMENT);
+			this.segment = Math.max(0, Math.min(segment, numberOfSegments - 1));
+			firstEventIDInSegment = (long)this.segment * EVENTS_PER_SEGMENT;
+			numberOfEvents = (int)Math.min(EVENTS_PER_SEGMENT, numberOfEventsInTrace - firstEventIDInSegment);
+		}
+		else {
+			this.segment = 0;
+			firstEventIDInSegment = 0;
+			numberOfEvents = count;
+		}
 
 		numberOfObjects = data.readLong();
 		numberOfClasses = data.readInt();
@@ -56,7 +114,28 @@ public class TraceMetaData {
 
 		threadMetaData = new ThreadMetaData[numberOfThreads];
 		for(int i = 0; i < numberOfThreads; i++)
-			threadMetaData[i] = new ThreadMetaData(data);
+			threadMetaData[i] = new ThreadMetaData(data, longEventIDs, firstEventIDInSegment, numberOfEvents);
+
+		// Older meta files end here, and were all written with the standard encoding.
+		serialEncoding = data.available() > 0 ? SerialEncoding.values()[data.readByte()] : SerialEncoding.STANDARD;
+
+		// Older meta files may also end here, and used global class IDs in events.
+		formatVersion = data.available() > 0 ? data.readByte() : 1;
+		
+		if(formatVersion >= 2) {
+			int numberOfTraceClassIDs = data.readInt();
+			classIDsByTraceClassID = new int[numberOfTraceClassIDs];
+			traceClassIDsByClassID = new TIntIntHashMap(numberOfTraceClassIDs);
+			// Trace class ID 0 is unused, just like global class ID 0.
+			for(int traceClassID = 1; traceClassID < numberOfTraceClassIDs; traceClassID++) {
+				classIDsByTraceClassID[traceClassID] = data.readInt();
+				traceClassIDsByClassID.put(classIDsByTraceClassID[traceClassID], traceClassID);
+			}
+		}
+		else {
+			classIDsByTraceClassID = null;
+			traceClassIDsByClassID = null;
+		}
 		
 		data.close();
 		
@@ -65,9 +144,37 @@ public class TraceMetaData {
 	public int getNumberOfClasses() { return numberOfClasses; }
 	public long getNumberOfObjects() { return numberOfObjects; }
 	public int getNumberOfEvents() { return numberOfEvents; }
+	public long getNumberOfEventsInTrace() { return numberOfEventsInTrace; }
+	public boolean hasLongEventIDs() { return longEventIDs; }
+	public int getSegment() { return segment; }
+	public int getNumberOfSegments() { return longEventIDs ? (int)((numberOfEventsInTrace + EVENTS_PER_SEGMENT - 1) / EVENTS_PER_SEGMENT) : 1; }
+	public long getFirstEventIDInSegment() { return firstEventIDInSegment; }
 	public int getNumberOfThreads() { return numberOfThreads; }
 	public Iterable<String> getMainArguments() { return mainArguments; }
 	public ThreadMetaData getThreadMetaData(int i) { return threadMetaData[i]; }
+	public SerialEncoding getSerialEncoding() { return serialEncoding; }
+	public int getFormatVersion() { return formatVersion; }
+	public boolean hasTraceClassIDs() { return classIDsByTraceClassID != null; }
+
+	/**
+	 * Returns the global ID of the class with the given ID in this trace's events, or 0 if there isn't one.
+	 */
+	public int getClassIDOfTraceClassID(int traceClassID) {
+		
+		if(classIDsByTraceClassID == null) return traceClassID;
+		else return traceClassID < classIDsByTraceClassID.length ? classIDsByTraceClassID[traceClassID] : 0;
+		
+	}
+
+	/**
+	 * Returns the ID of the class with the given global ID in this trace's events, or 0 if the class never executed.
+	 */
+	public int getTraceClassIDOfClassID(int classID) {
+		
+		if(traceClassIDsByClassID == null) return classID;
+		else return traceClassIDsByClassID.get(classID);
+		
+	}
 
 	public MethodInfo getMain(Trace trace) {
 		
@@ -170,6 +170,12 @@ public final class Agent {
 		
     	if(options.declaresOption(Option.PRINT_METHODS_BEFORE_AND_AFTER))
     		ClassInstrumenter.DEBUG_BEFORE_AND_AFTER = (Boolean)options.getOption(Option.PRINT_METHODS_BEFORE_AND_AFTER);
+
+    	if(options.declaresOption(Option.COMPACT_SERIAL_TRACES))
+    		Tracer.COMPACT_SERIAL_TRACES = (Boolean)options.getOption(Option.COMPACT_SERIAL_TRACES);
+
+    	if(options.declaresOption(Option.LONG_EVENT_IDS))
+    		Tracer.LONG_EVENT_IDS = (Boolean)options.getOption(Option.LONG_EVENT_IDS);
     	
     	String prefixesToSkip = (String)options.getOption(AgentOptions.Option.SKIP);
 
@@ -27,7 +27,9 @@ public final class AgentOptions {
 		SKIP(String.class, "A list of#newline# separated package and class name prefixes (since newlines aren't allowed in the command line string)"),
 		PRINT_INSTRUMENTATION_EVENTS(Boolean.class, "optional flag to print debug info for instrumentation events"),
 		PRINT_INSTRUMENTATION_SUMMARY(Boolean.class, "optional flag to print summaries for each instrumented class"),
-		PRINT_METHODS_BEFORE_AND_AFTER(Boolean.class, "optional flag to print before and after events for each instrument");
+		PRINT_METHODS_BEFORE_AND_AFTER(Boolean.class, "optional flag to print before and after events for each instrument"),
+		COMPACT_SERIAL_TRACES(Boolean.class, "optional flag to write thread traces with varint and delta encoding, which are smaller but slightly slower to write"),
+		LONG_EVENT_IDS(Boolean.class, "optional flag to record 64-bit event IDs, for executions with more than two billion events, which are loaded in segments");
 		
 		public final Class<?> type;
 		public final String purpose;
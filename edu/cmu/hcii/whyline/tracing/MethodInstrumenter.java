@@ -28,7 +28,8 @@ public class MethodInstrumenter {
 	public static final int EVENT_TYPE_BIT_SIZE = 8;
 	
 	/**
-	 * 14 bits to store the unique class identifier number.
+	 * 14 bits to store the class identifier number in each event of a trace. This isn't the class's global ID, but the
+	 * ID the Tracer assigned it when it first executed, so it limits the number of classes that execute in one trace, not the number the Whyline knows about.
 	 */
 	public static final int CLASS_ID_BIT_SIZE = 14;
 		
@@ -37,11 +38,18 @@ public class MethodInstrumenter {
 	 */
 	public static final int INSTRUCTION_ID_BIT_SIZE = 18;
 
+	/**
+	 * 24 bits to store the global class ID in the instrumented code, which the Tracer maps to a 14 bit ID for the trace.
+	 */
+	public static final int WIDE_CLASS_ID_BIT_SIZE = 24;
+	public static final int WIDE_CLASS_ID_SHIFT = 40;
+
 	/**
 	 * We only have 18 bits to store an instruction, so if we go over this, we're in trouble.
 	 */
 	public static final int MAXIMUM_INSTRUCTIONS = (int)Math.pow(2, INSTRUCTION_ID_BIT_SIZE);
-	public static final int MAXIMUM_CLASS_IDS = (int)Math.pow(2, CLASS_ID_BIT_SIZE);
+	public static final int MAXIMUM_CLASS_IDS = (int)Math.pow(2, WIDE_CLASS_ID_BIT_SIZE);
+	public static final int MAXIMUM_TRACE_CLASS_IDS = (int)Math.pow(2, CLASS_ID_BIT_SIZE);
 	
 	private final ClassInstrumenter.ClassInstrumentationInfo instrumentationData;
 	private final long classID;
@@ -88,18 +96,20 @@ public class MethodInstrumenter {
 	
 	// This is the format of the 64-bit iid passed in below
 	//
-	// 	[00000000 00000000 00000000 bbbbbbba cccccccc ccccccdd dddddddd dddddddd ]
+	// 	[cccccccc cccccccc cccccccc bbbbbbba 00000000 000000dd dddddddd dddddddd ]
 	// 
 	// a (1 bit) - whether this instruction represents primitive output
 	// b (7 bits) - the type of execution event
-	// c (14 bits) - the class ID
+	// c (24 bits) - the global class ID, which the Tracer maps to the class's ID in the trace
 	// d (18 bits) - the instruction ID within the class represented by the classID
 	private Instruction addLoadAndTraceInstructions(EventKind event, boolean isIO, int instructionID) throws JavaSpecificationViolation {
 		
-		// 32 bits for the id and 32 bits for the kind and isOutput flag.
-		long ciid = (classID << INSTRUCTION_ID_BIT_SIZE) | instructionID;
+		if(instructionID >= MAXIMUM_INSTRUCTIONS) 
+			throw new RuntimeException(classname + " has more than the " + MAXIMUM_INSTRUCTIONS + " instructions the Whyline supports in a class.");
+		
+		// The global class ID in the top 24 bits, the kind and isOutput flag in the next 8, and the instruction ID in the bottom 32.
 		long kind = (event.id << 1) | (isIO ? 1 : 0);
-		long kind_ciid = (kind << 32) | ciid;
+		long kind_ciid = (classID << WIDE_CLASS_ID_SHIFT) | (kind << 32) | instructionID;
 		
 		Instruction firstInserted = new LDC2_W(code, pool.addLongInfo(kind_ciid));
 		instructions.add(firstInserted);
@@ -0,0 +1,238 @@
+package edu.cmu.hcii.whyline.tracing;
+
+import java.io.File;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Encodes a single thread's events directly into a direct ByteBuffer, handing it off to the TraceFlusher when it fills.
+ * This replaces the DataOutputStream/BufferedOutputStream/FileOutputStream chain that each traced value used to pass through.
+ *
+ * The bytes written are identical to what DataOutputStream would write (big endian, with floats and doubles
+ * converted with floatToIntBits() and doubleToLongBits()), so Trace.Loader reads these files without change.
+ *
+ * Only the thread that owns the writer may write to it, so none of the write methods are synchronized.
+ * Other threads that want the buffered events on disk call requestFlush(), which the owning thread honors at its next event.
+ *
+ * @author Andrew J. Ko
+ *
+ */
+final class ThreadTraceWriter {
+
+	private final TraceFlusher flusher;
+	private final FileChannel channel;
+	private ByteBuffer buffer;
+
+	private volatile boolean flushRequested = false;
+
+	// Whether the owning thread is in the middle of an event. Only the owner sets it; shutdown reads it.
+	private volatile boolean writingEvent = false;
+
+	// How many of the owner's events are on disk, the last of them, and the first that may not be. Only the flusher sets these.
+	private volatile long numberOfEventsOnDisk = 0, lastEventIDOnDisk = -2, firstEventIDNotOnDisk = 0;
+
+	public ThreadTraceWriter(File file, TraceFlusher flusher) throws FileNotFoundException {
+
+		this(new FileOutputStream(file).getChannel(), flusher);
+
+	}
+
+	/**
+	 * Several writers may share a channel, as long as each only writes whole records (see keepTogether()).
+	 * The flusher may then interleave their buffers in any order.
+	 */
+	public ThreadTraceWriter(FileChannel channel, TraceFlusher flusher) {
+
+		this.flusher = flusher;
+		this.channel = channel;
+		buffer = flusher.getEmptyBuffer();
+
+	}
+
+	private void ensureRemaining(int bytes) throws IOException {
+
+		if(buffer.remaining() < bytes)
+			handOff();
+
+	}
+
+	/**
+	 * Guarantees that the next given number of bytes will be handed off in the same buffer.
+	 */
+	public void keepTogether(int bytes) throws IOException {
+
+		ensureRemaining(bytes);
+
+	}
+
+	public void writeByte(int value) throws IOException {
+
+		ensureRemaining(1);
+		buffer.put((byte)value);
+
+	}
+
+	public void writeBoolean(boolean value) throws IOException {
+
+		ensureRemaining(1);
+		buffer.put((byte)(value ? 1 : 0));
+
+	}
+
+	public void writeShort(int value) throws IOException {
+
+		ensureRemaining(2);
+		buffer.putShort((short)value);
+
+	}
+
+	public void writeChar(int value) throws IOException {
+
+		ensureRemaining(2);
+		buffer.putChar((char)value);
+
+	}
+
+	public void writeInt(int value) throws IOException {
+
+		ensureRemaining(4);
+		buffer.putInt(value);
+
+	}
+
+	public void writeLong(long value) throws IOException {
+
+		ensureRemaining(8);
+		buffer.putLong(value);
+
+	}
+
+	public void writeFloat(float value) throws IOException {
+
+		ensureRemaining(4);
+		buffer.putInt(Float.floatToIntBits(value));
+
+	}
+
+	public void writeDouble(double value) throws IOException {
+
+		ensureRemaining(8);
+		buffer.putLong(Double.doubleToLongBits(value));
+
+	}
+
+	/**
+	 * Writes the given value seven bits at a time, low bits first, setting the high bit of each byte
+	 * if more bytes follow. Values are treated as unsigned, so small negative values should be zig-zag encoded first.
+	 */
+	public void writeVarLong(long value) throws IOException {
+
+		ensureRemaining(10);
+		while((value & ~0x7FL) != 0) {
+			buffer.put((byte)((value & 0x7F) | 0x80));
+			value >>>= 7;
+		}
+		buffer.put((byte)value);
+
+	}
+
+	/**
+	 * Asks the owning thread to hand off its buffered events at its next opportunity. Safe to call from any thread.
+	 */
+	public void requestFlush() { flushRequested = true; }
+
+	public boolean isFlushRequested() { return flushRequested; }
+
+	/**
+	 * Should only be called by the owning thread.
+	 */
+	public void setWritingEvent(boolean writing) { writingEvent = writing; }
+
+	public boolean isWritingEvent() { return writingEvent; }
+
+	/**
+	 * Hands off everything buffered so far. Should only be called by the owning thread.
+	 */
+	public void flush() throws IOException {
+
+		flushRequested = false;
+		if(buffer.position() > 0)
+			handOff();
+
+	}
+
+	/**
+	 * Hands off everything buffered so far, which ends with a whole event, so that once it's written the flusher
+	 * can say how much of the owner's trace is on disk. We hand off even if there's nothing buffered, since earlier
+	 * full buffers may still be waiting to be written. Should only be called by the owning thread.
+	 * 
+	 * @param numberOfEvents The number of events the owner has written.
+	 * @param lastEventID The ID of the last of them.
+	 * @param nextEventID The ID of the owner's next event, which won't be in the buffer handed off.
+	 */
+	public void flush(long numberOfEvents, long lastEventID, long nextEventID) throws IOException {
+
+		flushRequested = false;
+		buffer.flip();
+		flusher.handOff(channel, buffer, this, numberOfEvents, lastEventID, nextEventID);
+		buffer = flusher.getEmptyBuffer();
+
+	}
+
+	/**
+	 * Called by the flusher once the given number of events, up to the given event ID, are on disk.
+	 */
+	void eventsOnDisk(long numberOfEvents, long lastEventID, long nextEventID) {
+
+		numberOfEventsOnDisk = numberOfEvents;
+		lastEventIDOnDisk = lastEventID;
+		firstEventIDNotOnDisk = nextEventID;
+
+	}
+
+	/**
+	 * Should be called before the owner writes any events.
+	 */
+	public void setFirstEventIDNotOnDisk(long eventID) { firstEventIDNotOnDisk = eventID; }
+
+	public long getNumberOfEventsOnDisk() { return numberOfEventsOnDisk; }
+
+	public long getLastEventIDOnDisk() { return lastEventIDOnDisk; }
+
+	public long getFirstEventIDNotOnDisk() { return firstEventIDNotOnDisk; }
+
+	/**
+	 * Writes whatever remains directly to disk. This should only be called after the flusher has finished,
+	 * so that this doesn't get written before buffers that are still waiting.
+	 */
+	public synchronized void close() throws IOException {
+
+		writeRemaining();
+		channel.close();
+
+	}
+
+	/**
+	 * Like close(), but leaves the channel open, for writers that share their channel with others.
+	 */
+	public synchronized void writeRemaining() throws IOException {
+
+		buffer.flip();
+		while(buffer.hasRemaining())
+			channel.write(buffer);
+		buffer.clear();
+
+	}
+
+	private void handOff() throws IOException {
+
+		buffer.flip();
+		flusher.handOff(channel, buffer);
+		buffer = flusher.getEmptyBuffer();
+
+	}
+
+}
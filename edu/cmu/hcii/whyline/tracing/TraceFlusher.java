@@ -0,0 +1,174 @@
+package edu.cmu.hcii.whyline.tracing;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A background thread that does all of the tracer's disk I/O. Application threads hand it their filled buffers
+ * and ask it to rewrite the trace meta data; they never wait on the disk themselves, unless they get so far
+ * ahead of the disk that the queue of filled buffers is full.
+ *
+ * Buffers are written in the order they were handed off, so each thread's serial trace stays in order.
+ *
+ * @author Andrew J. Ko
+ *
+ */
+final class TraceFlusher extends Thread {
+
+	public static final int BUFFER_SIZE = 65536;
+
+	// This bounds the memory we use for buffers waiting to be written to 16 MB.
+	private static final int MAXIMUM_PENDING_BUFFERS = 256;
+
+	private static final long MILLISECONDS_BETWEEN_CHECKS = 100;
+
+	private static final class FilledBuffer {
+
+		public final FileChannel channel;
+		public final ByteBuffer buffer;
+
+		// If the buffer ends with a whole event, the writer to tell once it's on disk, and what it had written by then.
+		public final ThreadTraceWriter writer;
+		public final long numberOfEvents, lastEventID, nextEventID;
+
+		public FilledBuffer(FileChannel channel, ByteBuffer buffer, ThreadTraceWriter writer, long numberOfEvents, long lastEventID, long nextEventID) {
+
+			this.channel = channel;
+			this.buffer = buffer;
+			this.writer = writer;
+			this.numberOfEvents = numberOfEvents;
+			this.lastEventID = lastEventID;
+			this.nextEventID = nextEventID;
+
+		}
+
+	}
+
+	private final BlockingQueue<FilledBuffer> pending = new ArrayBlockingQueue<FilledBuffer>(MAXIMUM_PENDING_BUFFERS);
+
+	// Written buffers are recycled, so that we don't keep allocating direct memory.
+	private final ConcurrentLinkedQueue<ByteBuffer> empty = new ConcurrentLinkedQueue<ByteBuffer>();
+
+	private volatile boolean metadataRequested = false;
+	private volatile boolean finishing = false;
+
+	public TraceFlusher() {
+
+		super("Whyline trace flusher");
+
+		setDaemon(true);
+
+	}
+
+	public ByteBuffer getEmptyBuffer() {
+
+		ByteBuffer buffer = empty.poll();
+		return buffer == null ? ByteBuffer.allocateDirect(BUFFER_SIZE) : buffer;
+
+	}
+
+	/**
+	 * Queues the given flipped buffer to be written to the given channel. If we've stopped flushing, it's written immediately.
+	 */
+	public void handOff(FileChannel channel, ByteBuffer buffer) throws IOException {
+
+		handOff(new FilledBuffer(channel, buffer, null, 0, 0, 0));
+
+	}
+
+	/**
+	 * Like handOff(FileChannel, ByteBuffer), but the buffer ends with the writer's last whole event, so once the buffer's 
+	 * written, the writer is told that the given number of events, up to the given event ID, are on disk.
+	 */
+	public void handOff(FileChannel channel, ByteBuffer buffer, ThreadTraceWriter writer, long numberOfEvents, long lastEventID, long nextEventID) throws IOException {
+
+		handOff(new FilledBuffer(channel, buffer, writer, numberOfEvents, lastEventID, nextEventID));
+
+	}
+
+	private void handOff(FilledBuffer filled) throws IOException {
+
+		if(!finishing) {
+			try {
+				pending.put(filled);
+				return;
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+
+		write(filled);
+
+	}
+
+	public void requestMetadata() { metadataRequested = true; }
+
+	public void run() {
+
+		while(!finishing || !pending.isEmpty()) {
+
+			try {
+
+				FilledBuffer filled = pending.poll(MILLISECONDS_BETWEEN_CHECKS, TimeUnit.MILLISECONDS);
+				if(filled != null)
+					write(filled);
+
+				if(metadataRequested) {
+					metadataRequested = false;
+					Tracer.writeMetadata(false);
+				}
+
+			} catch (InterruptedException e) {
+				// We check whether we're finishing on each iteration, so just continue.
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+
+		}
+
+	}
+
+	/**
+	 * Stops accepting buffers, waits for the ones already handed off to be written, and returns.
+	 */
+	public void finish() {
+
+		finishing = true;
+		try {
+			join();
+		} catch (InterruptedException e) {
+			e.printStackTrace();
+		}
+
+		// In case the thread was never started or died, write whatever's left here.
+		FilledBuffer filled;
+		while((filled = pending.poll()) != null) {
+			try {
+				write(filled);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+
+	}
+
+	private void write(FilledBuffer filled) throws IOException {
+
+		ByteBuffer buffer = filled.buffer;
+		while(buffer.hasRemaining())
+			filled.channel.write(buffer);
+		buffer.clear();
+		empty.offer(buffer);
+
+		// Buffers are written in order, so everything the writer handed off before this is on disk too.
+		if(filled.writer != null)
+			filled.writer.eventsOnDisk(filled.numberOfEvents, filled.lastEventID, filled.nextEventID);
+
+	}
+
+}
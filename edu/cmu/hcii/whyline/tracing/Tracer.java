@@ -1,15 +1,21 @@
 package edu.cmu.hcii.whyline.tracing;
 
 import java.io.*;
+import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.HashSet;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 import edu.cmu.hcii.whyline.Whyline;
 import edu.cmu.hcii.whyline.bytecode.QualifiedClassName;
 import edu.cmu.hcii.whyline.trace.ImmutableKind;
+import edu.cmu.hcii.whyline.trace.SerialEncoding;
+import edu.cmu.hcii.whyline.trace.TraceMetaData;
+import edu.cmu.hcii.whyline.util.StripedWeakLongHashMap;
 import edu.cmu.hcii.whyline.util.Util;
-import edu.cmu.hcii.whyline.util.WeakLongHashMap;
 
 /**
  * 
@@ -22,6 +28,17 @@ import edu.cmu.hcii.whyline.util.WeakLongHashMap;
 public final class Tracer {
 
 	public static boolean DEBUG_CLASSES_INSTRUMENTED = false;
+
+	/**
+	 * If true, threads write their serial traces with SerialEncoding.COMPACT. This has to be set before any events are traced.
+	 */
+	public static boolean COMPACT_SERIAL_TRACES = false;
+
+	/**
+	 * If true, threads write the event IDs after thread switches as 64-bit longs, and the meta file has 64-bit counts, so that 
+	 * traces can have more events than an int can count. This has to be set before any events are traced.
+	 */
+	public static boolean LONG_EVENT_IDS = false;
 	
 	/**
 	 * We may or may not instrument main(), so we set defaults.
@@ -33,24 +50,52 @@ public final class Tracer {
 	// Writes the definitions of immutable objects
 	private static DataOutputStream immutables;
 
-	// Writes the types of each object encountered
-	private static DataOutputStream objectTypes;
+	// The types of each object encountered. Each thread buffers its own type records and hands them to the flusher,
+	// which writes them here in whatever order they arrive; the Loader doesn't care about the order.
+	private static FileChannel objectTypes;
 	
 	private static FileWriter debug;
 			
-	private static WeakLongHashMap<Object> objectIDs = new WeakLongHashMap<Object>(10000);
+	// Striped, so that threads looking up different objects don't wait on each other.
+	private static final StripedWeakLongHashMap<Object> objectIDs = new StripedWeakLongHashMap<Object>(10000);
+
+	// The global class IDs of the classes of objects we've seen, by class name, so that recording a new object's type
+	// only takes the lock on the class IDs the first time we see an object of its class. Names, rather than classes, 
+	// so that we don't keep classes from being unloaded.
+	private static final ConcurrentHashMap<String,Integer> classIDsByObjectClassname = new ConcurrentHashMap<String,Integer>();
+
+	// Events identify classes by the order in which they first executed, so that the Whyline can know about many more classes than are in one trace.
+	// The first is indexed by global class ID; 0 means the class hasn't executed yet. Entries are only ever set once, under the lock.
+	private static volatile int[] traceClassIDsByClassID = new int[1024];
+	private static int[] classIDsByTraceClassID = new int[256];
+	private static int nextTraceClassID = 1;								// 0 represents no class, just like global class IDs.
+	private static final Object traceClassIDLock = new Object();
 
 	private static gnu.trove.TLongHashSet immutablesWritten = new gnu.trove.TLongHashSet(10000);
 	
 	private static int nextThreadID = 0;
-	private static long nextObjectID = 1;			// 0 represents null, so we start at 1.
-	private static int nextEventID = 0;
+	private static final AtomicLong nextObjectID = new AtomicLong(1);			// 0 represents null, so we start at 1.
+
+	// Each thread reserves this many object IDs at a time, so that it only touches nextObjectID once per range.
+	// This leaves gaps in the IDs, so nextObjectID is an upper bound on the IDs used, rather than a count.
+	private static final int OBJECT_IDS_PER_RANGE = 1024;
+
+	// Every traced instruction takes an ID from this, so we avoid a global monitor and use an atomic counter instead.
+	// Each thread still receives increasing IDs, and the IDs across all threads still form a single total order.
+	private static final AtomicLong nextEventID = new AtomicLong(0);
 	public static int numberOfClassfiles = 0;
 	
-	private static boolean shutdown = false, shuttingDown = false;
+	private static volatile boolean shutdown = false, shuttingDown = false;
+	private static final Object shutdownLock = new Object();
 
-	// Keep all of the tracers around until shutdown.
+	// How long shutdown() waits, in milliseconds, for threads to finish the events they're writing.
+	private static final long MAXIMUM_SHUTDOWN_WAIT = 2000;
+
+	// Keep all of the tracers around until shutdown. We lock on this set, rather than on Tracer, when reading or changing it.
 	private static Set<ThreadTracer> tracerSet = new HashSet<ThreadTracer>();
+
+	// Does all of the disk I/O, so that application threads only ever hand off buffers.
+	private static final TraceFlusher flusher = new TraceFlusher();
 	
 	static {
 
@@ -60,7 +105,7 @@ public final class Tracer {
 				Whyline.getWorkingSerialHistoryFolder().mkdir();
 			
 			immutables = Util.getWriterFor(Whyline.getWorkingImmutablesFile());
-			objectTypes = Util.getWriterFor(Whyline.getWorkingObjectTypesFile());
+			objectTypes = new FileOutputStream(Whyline.getWorkingObjectTypesFile()).getChannel();
 
 			// Note that we DON'T delete the class ids file because we need this to persist across executions, since the instrumented classes persist.
 			
@@ -75,6 +120,8 @@ public final class Tracer {
 			debugFile.createNewFile();
 			debug = new FileWriter(debugFile);
 			
+			flusher.start();
+
 		} catch (IOException e) {
 			e.printStackTrace();
 			System.exit(Whyline.WHYLINE_FAILURE_EXIT_CODE);
@@ -89,27 +136,42 @@ public final class Tracer {
 		public String name;
 		public int threadID;
 		public long objectID;
-		public int numberOfEvents = 0;
+		public long numberOfEvents = 0;
 		/**
 		 *  THIS IS NOT THREAD SAFE! THIS WILL NOT NECESSARILY BE THE FIRST ID!
 		 */
-		public int firstEventID;
-		public int lastEventID = -2;
+		public long firstEventID;
+		public long lastEventID = -2;
 		
 		// == 0 no requests to stop tracing for the given thread ID
 		// != 0 one or more requests to stop tracing
-		public int stopRequests = 0;
+		public final AtomicInteger stopRequests = new AtomicInteger(0);
+
+		// How deeply this thread is nested in events. Only this thread reads or changes it, so it's not volatile; 
+		// the thread's writer is only told when the outermost event starts and ends.
+		private int eventDepth = 0;
+
+		public ThreadTraceWriter trace;
+
+		// The type records of the objects this thread was the first to see.
+		public ThreadTraceWriter objectTypes;
 
-		public DataOutputStream trace;
+		// The range of object IDs reserved for this thread; the next ID to use and the end of the range, exclusive.
+		private long nextObjectIDInRange = 0, endOfObjectIDRange = 0;
+
+		// The class and instruction ID of the last event, which the compact encoding writes deltas from.
+		private long previousInstructionID = 0;
+
+		// The global and trace class ID of the last event's class, since consecutive events are usually in the same class.
+		private int previousClassID = 0, previousTraceClassID = 0;
 
 		public ThreadTracer(Thread thread) throws IOException {
 			
 			this.thread = thread;
 			this.threadID = nextThreadID++;
-			this.objectID = getUniqueObjectID(thread);
 			
 			// THIS IS NOT THREAD SAFE! THIS WILL NOT NECESSARILY BE THE FIRST ID!
-			this.firstEventID = nextEventID;
+			this.firstEventID = nextEventID.get();
 			
 		}
 
@@ -117,7 +179,7 @@ public final class Tracer {
 		// may instrument calls to some of the java.io classes we use below, causing infinite
 		// recursion. We need the ThreadLocal to point to this instance BEFORE we call the constructors
 		// below, so it doesn't repeatedly initialize a new ThreadTracer() each time.
-		private void init() throws FileNotFoundException {
+		private void init() throws IOException {
 
 			stop();
 
@@ -133,17 +195,70 @@ public final class Tracer {
 			nameBuilder.append(threadID);
 			this.name = nameBuilder.toString();
 		
-			this.trace = Util.getWriterFor(new File(Whyline.getWorkingSerialHistoryFolder(), name + Whyline.TRACE_FILE_SUFFIX));
+			this.trace = new ThreadTraceWriter(new File(Whyline.getWorkingSerialHistoryFolder(), name + Whyline.TRACE_FILE_SUFFIX), flusher);
+			this.trace.setFirstEventIDNotOnDisk(firstEventID);
+			this.objectTypes = new ThreadTraceWriter(Tracer.objectTypes, flusher);
+
+			this.objectID = getUniqueObjectID(this, thread);
 								
-			tracerSet.add(this);
+			synchronized(tracerSet) {
+				tracerSet.add(this);
+			}
 
 			start();
 
 		}
 
-		public void stop() { stopRequests++; }
+		public void stop() { stopRequests.incrementAndGet(); }
+
+		public void start() { stopRequests.decrementAndGet(); }
+
+		public boolean isStopped() { return stopRequests.get() > 0; }
+
+		/**
+		 * Marks the start of an event, returning false if we've shut down, in which case the event shouldn't be written.
+		 * We mark the event before checking, and shutdown() sets the flag before checking the marks, so either this sees
+		 * the shutdown or shutdown() sees the event and waits for endEvent().
+		 * 
+		 * The event's class is given an ID in the trace first, if it doesn't have one, since once we've run out of IDs, 
+		 * we stop recording rather than write an event the Whyline can't read. 
+		 */
+		public boolean beginEvent(long iid) {
+			
+			int classID = (int)(iid >>> MethodInstrumenter.WIDE_CLASS_ID_SHIFT);
+			if(classID != previousClassID) {
+				int traceClassID = getTraceClassID(classID);
+				if(traceClassID < 0) return false;
+				previousTraceClassID = traceClassID;
+				previousClassID = classID;
+			}
+			
+			if(eventDepth++ == 0) trace.setWritingEvent(true);
+			if(shutdown) {
+				endEvent();
+				return false;
+			}
+			return true;
+			
+		}
+		
+		public void endEvent() { 
+			
+			if(--eventDepth == 0) trace.setWritingEvent(false); 
+			
+		}
+
+		public boolean isWritingEvent() { return trace != null && trace.isWritingEvent(); }
 
-		public void start() { stopRequests--; }
+		private long nextObjectID() {
+			
+			if(nextObjectIDInRange == endOfObjectIDRange) {
+				nextObjectIDInRange = nextObjectID.getAndAdd(OBJECT_IDS_PER_RANGE);
+				endOfObjectIDRange = nextObjectIDInRange + OBJECT_IDS_PER_RANGE;
+			}
+			return nextObjectIDInRange++;
+			
+		}
 		
 		/**
 		 * @param iid
@@ -152,18 +267,20 @@ public final class Tracer {
 		 */
 		private void header(long iid) throws IOException {
 			
-			int eventID;
+			// This used to hold the lock on Tracer, which also kept events out of shutdown(). Now callers bracket each event 
+			// with beginEvent() and endEvent() instead, and shutdown() waits for every thread to finish the event it's writing.
+			long eventID = nextEventID.getAndIncrement();
+
+			// Periodically ask every thread to hand off its buffer and the flusher to rewrite the meta data. 
+			// This doesn't block; the flusher does the writing in the background.
+			if(eventID % 65536 == 0)
+				flush();
 			
-			synchronized(Tracer.class) { 
-				
-				eventID = nextEventID++;
-				
-				if(eventID % 65536 == 0) {
-					stop();
-					flush();
-					start();
-				}
-				
+			// If a flush was requested, hand off what we've buffered so far, which ends with our last event,
+			// so that once it's written, the meta data can count the events in it.
+			if(trace.isFlushRequested()) {
+				trace.flush(numberOfEvents, lastEventID, eventID);
+				objectTypes.flush();
 			}
 			
 			numberOfEvents++;
@@ -181,11 +298,55 @@ public final class Tracer {
 			trace.writeByte(kindFlags);
 
 			// If we just switched back to this event, write the event ID.
-			if(switchedBack)
-				trace.writeInt(eventID);
+			if(switchedBack) {
+				if(COMPACT_SERIAL_TRACES) trace.writeVarLong(eventID);
+				else if(LONG_EVENT_IDS) trace.writeLong(eventID);
+				else trace.writeInt((int)eventID);
+			}
+
+			// Replace the global class ID in the top bits with the class's ID in this trace, next to the instruction ID in the bottom bits.
+			// beginEvent() already gave the class an ID, but an event nested in this one may have since changed the previous class.
+			int classID = (int)(iid >>> MethodInstrumenter.WIDE_CLASS_ID_SHIFT);
+			if(classID != previousClassID) {
+				previousTraceClassID = getTraceClassID(classID);
+				previousClassID = classID;
+			}
+			long instructionID = ((long)previousTraceClassID << MethodInstrumenter.INSTRUCTION_ID_BIT_SIZE) | (int)iid;
+			if(COMPACT_SERIAL_TRACES) {
+				trace.writeVarLong(SerialEncoding.zigZag(instructionID - previousInstructionID));
+				previousInstructionID = instructionID;
+			}
+			else trace.writeInt((int)instructionID);
+			
+		}
+
+		// These write values in whichever encoding we're using; see SerialEncoding.
+		
+		private void writeIntValue(int value) throws IOException {
+			
+			if(COMPACT_SERIAL_TRACES) trace.writeVarLong(SerialEncoding.zigZag(value));
+			else trace.writeInt(value);
+			
+		}
+
+		private void writeShortValue(short value) throws IOException {
+			
+			if(COMPACT_SERIAL_TRACES) trace.writeVarLong(SerialEncoding.zigZag(value));
+			else trace.writeShort(value);
+			
+		}
+
+		private void writeCharValue(char value) throws IOException {
+			
+			if(COMPACT_SERIAL_TRACES) trace.writeVarLong(value);
+			else trace.writeChar(value);
+			
+		}
 
-			// Shift left and then right to erase the high 32 bits to write the class and instruction ID.
-			trace.writeInt((int)((iid << 32) >>> 32));
+		private void writeLongValue(long value) throws IOException {
+			
+			if(COMPACT_SERIAL_TRACES) trace.writeVarLong(SerialEncoding.zigZag(value));
+			else trace.writeLong(value);
 			
 		}
 
@@ -229,29 +390,51 @@ public final class Tracer {
 
 	public static boolean isShuttingDown() { return shuttingDown; }
 	
-	public static synchronized void shutdown() {
+	public static void shutdown() {
 
-		if(shutdown) return;
-		shuttingDown = true;
+		// This can't hold the lock on Tracer, since threads finishing their events may need it to write immutables.
+		synchronized(shutdownLock) {
+			if(shuttingDown) return;
+			shuttingDown = true;
+		}
 		
 		try {
 
-			// Stop all threads from tracing.
-			for(ThreadTracer tracer : tracerSet)
-				tracer.stop();
-	
+			// Stop all threads from starting new events, then wait for each to finish the one it's writing, 
+			// so that no one is writing to the buffers and channels we're about to drain and close.
 			shutdown = true;
 
+			Set<ThreadTracer> tracers;
+			synchronized(tracerSet) {
+				tracers = new HashSet<ThreadTracer>(tracerSet);
+			}
+			// If we're shutting down from inside one of this thread's events (because instrumenting failed, for example), we can't wait for ourselves.
+			// A thread that's blocked in the middle of an event won't finish it, so we only wait so long before saving what we have.
+			long giveUpTime = System.currentTimeMillis() + MAXIMUM_SHUTDOWN_WAIT;
+			for(ThreadTracer tracer : tracers) {
+				if(tracer.thread == Thread.currentThread()) continue;
+				while(tracer.isWritingEvent() && System.currentTimeMillis() < giveUpTime)
+					Thread.yield();
+				if(tracer.isWritingEvent())
+					Whyline.debug("\tGave up waiting for " + tracer.name + " to finish its event.");
+			}
+
 			Whyline.debugBreak();
 			Whyline.debug("\tSaving thread recordings...");
 			
-			flush();
+			// Wait for the flusher to write everything that's been handed off, then write the rest ourselves.
+			flusher.finish();
 
-			// Close the thread recording streams.
-			for(ThreadTracer tracer : tracerSet)
-				tracer.trace.close();
+			writeMetadata(true);
 
-			tracerSet.clear();
+			// Close the thread recording streams. No one is writing to them now, and no one will start to.
+			synchronized(tracerSet) {
+				for(ThreadTracer tracer : tracerSet) {
+					tracer.trace.close();
+					tracer.objectTypes.writeRemaining();
+				}
+				tracerSet.clear();
+			}
 
 			immutables.close();
 			Whyline.debug("\tClosed immutables file...");
@@ -276,10 +459,11 @@ public final class Tracer {
 			debug.flush();
 			debug.close();
 			
-			synchronized(Agent.classes) {
-				Agent.classes.flush();
-				Agent.classes.close();
-			}
+			if(Agent.classes != null)
+				synchronized(Agent.classes) {
+					Agent.classes.flush();
+					Agent.classes.close();
+				}
 			
 		} catch (IOException e) {
 			e.printStackTrace();
@@ -288,10 +472,43 @@ public final class Tracer {
 
 	}
 
-	private static void flush() throws IOException {
+	private static void flush() {
+
+		synchronized(tracerSet) {
+			// Other threads own their writers, so we just ask them to hand off their buffers when they next write an event.
+			for(ThreadTracer tracer : tracerSet)
+				tracer.trace.requestFlush();
+		}
+
+		flusher.requestMetadata();
+		
+	}
+
+	/**
+	 * Called by the TraceFlusher in the background, and once more at shutdown. In the background, threads still have events 
+	 * buffered, so we only count the events before the first event that may not be on disk, in case we never get to shut down.
+	 * A thread's events are on disk up to its last whole event that the flusher has written, so this is only safe to call from the flusher.
+	 * 
+	 * @param complete True if every thread's events are about to be written, as at shutdown, so that all of them can be counted.
+	 */
+	static void writeMetadata(boolean complete) throws IOException {
 		
 		try {
 
+			// We read the next ID before getting the tracers, so that threads that start after are only given later IDs.
+			long numberOfEventsOnDisk = nextEventID.get();
+
+			Set<ThreadTracer> tracers;
+			synchronized(tracerSet) {
+				tracers = new HashSet<ThreadTracer>(tracerSet);
+			}
+			
+			// Events at and after the first event not on disk in any thread can't be counted yet. Threads may count some 
+			// events after this, but since the loader stops at the end of the trace, it won't look for them.
+			if(!complete)
+				for(ThreadTracer tracer : tracers)
+					numberOfEventsOnDisk = Math.min(numberOfEventsOnDisk, tracer.trace.getFirstEventIDNotOnDisk());
+
 			Whyline.getWorkingMetaFile().delete();
 			DataOutputStream meta = Util.getWriterFor(Whyline.getWorkingMetaFile());
 
@@ -301,35 +518,58 @@ public final class Tracer {
 			meta.writeLong(System.currentTimeMillis());
 			
 			// Write the number of events, objects, classes, and source files.
-			meta.writeInt(nextEventID);
-			meta.writeLong(nextObjectID);
+			if(LONG_EVENT_IDS) {
+				meta.writeInt(TraceMetaData.LONG_EVENT_IDS);
+				meta.writeLong(numberOfEventsOnDisk);
+			}
+			else meta.writeInt((int)numberOfEventsOnDisk);
+			meta.writeLong(nextObjectID.get());
 			meta.writeInt(numberOfClassfiles);
 			
-			Set<ThreadTracer> tracers = new HashSet<ThreadTracer>(tracerSet);
-			
 			// Write the number of events in each thread trace
 			meta.writeInt(tracers.size());
 			for(ThreadTracer tracer : tracers) {
 				
+				long numberOfEventsInThread = complete ? tracer.numberOfEvents : tracer.trace.getNumberOfEventsOnDisk();
+				long lastEventIDInThread = complete ? tracer.lastEventID : tracer.trace.getLastEventIDOnDisk();
+				
 				meta.writeUTF(tracer.name);
 				meta.writeInt(tracer.threadID);
 				meta.writeLong(tracer.objectID);
-				meta.writeInt(tracer.numberOfEvents);
-				meta.writeInt(tracer.firstEventID);
-				meta.writeInt(tracer.lastEventID);
-
-				tracer.trace.flush();
+				if(LONG_EVENT_IDS) {
+					meta.writeLong(numberOfEventsInThread);
+					meta.writeLong(tracer.firstEventID);
+					meta.writeLong(lastEventIDInThread);
+				}
+				else {
+					meta.writeInt((int)numberOfEventsInThread);
+					meta.writeInt((int)tracer.firstEventID);
+					meta.writeInt((int)lastEventIDInThread);
+				}
 				
 			}
 
+			meta.writeByte((COMPACT_SERIAL_TRACES ? SerialEncoding.COMPACT : SerialEncoding.STANDARD).ordinal());
+
+			// Write the global class IDs of the classes in the trace, in the order they were first executed.
+			meta.writeByte(TraceMetaData.FORMAT_VERSION);
+			synchronized(traceClassIDLock) {
+				meta.writeInt(nextTraceClassID);
+				for(int traceClassID = 1; traceClassID < nextTraceClassID; traceClassID++)
+					meta.writeInt(classIDsByTraceClassID[traceClassID]);
+			}
+
 			meta.close();
 			
 			// Flush all of the other file's data
 			immutables.flush();
-			objectTypes.flush();
 			debug.flush();
 
-			Agent.classes.flush();
+			// There are no class names to flush if the agent didn't start the tracer, as when benchmarking.
+			if(Agent.classes != null)
+				synchronized(Agent.classes) {
+					Agent.classes.flush();
+				}
 			Agent.classIDs.write();
 
 		} catch(IOException e) {
@@ -340,7 +580,7 @@ public final class Tracer {
 
 	}
 	
-	private static long getUniqueObjectID(Object o) throws IOException {
+	private static long getUniqueObjectID(ThreadTracer tracer, Object o) throws IOException {
 
 		if(o == null) return 0;
 		long id = objectIDs.get(o);
@@ -348,28 +588,105 @@ public final class Tracer {
 		// If we already recorded this, return the id
 		if(id != 0) return id;
 
-		// Otherwise, make a new id for this new object, put it in the table, and record its type.
-		// We need to make sure to write to these streams sequentially, rather than in parallel, so we lock.
-		synchronized(Tracer.class) {
+		// Otherwise, make a new id for this new object from this thread's range and try to put it in the table.
+		// If another thread beat us to it, use its id instead; ours just goes unused.
+		id = tracer.nextObjectID();
+		long existingID = objectIDs.putIfAbsent(o, id);
+		if(existingID != 0) return existingID;
 
-			id = nextObjectID++;
-			objectIDs.put(o, id);
-			String classname = o.getClass().getName();
-			int classID = classname == null ? 0 : Agent.classIDs.getIDOfClassname(QualifiedClassName.get(classname));
-			objectTypes.writeLong(id);
-			objectTypes.writeInt(classID);
+		// Record its type in this thread's buffer. Each record has to stay whole, since other threads' buffers share the file.
+		String classname = o.getClass().getName();
+		int classID = classname == null ? 0 : getClassIDOfObjectClass(classname);
+		tracer.objectTypes.keepTogether(12);
+		tracer.objectTypes.writeLong(id);
+		tracer.objectTypes.writeInt(classID);
 
-		}
 		return id;
 
 	}
 	
-	private static ThreadTracer getActiveThreadTracer() throws FileNotFoundException {
+	private static int getClassIDOfObjectClass(String classname) {
+		
+		Integer classID = classIDsByObjectClassname.get(classname);
+		if(classID != null) return classID;
+
+		// Class IDs never change once they're given, so if another thread got here first, it found the same ID.
+		classID = Agent.classIDs.getIDOfClassname(QualifiedClassName.get(classname));
+		classIDsByObjectClassname.put(classname, classID);
+		return classID;
+		
+	}
+	
+	/**
+	 * Returns the ID of the class with the given global ID in this trace, giving it the next one if this is the first time the class has executed.
+	 * If there are none left to give, this stops recording and returns -1. This never throws, since it's called from the program's own code.
+	 */
+	private static int getTraceClassID(int classID) {
+		
+		int[] traceClassIDs = traceClassIDsByClassID;
+		if(classID < traceClassIDs.length && traceClassIDs[classID] != 0)
+			return traceClassIDs[classID];
+
+		synchronized(traceClassIDLock) {
+			
+			traceClassIDs = traceClassIDsByClassID;
+			if(classID < traceClassIDs.length && traceClassIDs[classID] != 0)
+				return traceClassIDs[classID];
+
+			// Events only have room for so many classes. Rather than fail the program, end the recording here; 
+			// events already begun finish, and the trace is saved at exit with everything up to this point.
+			if(nextTraceClassID >= MethodInstrumenter.MAXIMUM_TRACE_CLASS_IDS) {
+				if(!shutdown) {
+					shutdown = true;
+					Whyline.debug("More than " + MethodInstrumenter.MAXIMUM_TRACE_CLASS_IDS + " classes executed, which is more than one trace can hold, so the recording ends here.");
+				}
+				return -1;
+			}
+
+			int traceClassID = nextTraceClassID++;
+
+			if(traceClassID == classIDsByTraceClassID.length) {
+				int[] newClassIDs = new int[classIDsByTraceClassID.length * 2];
+				System.arraycopy(classIDsByTraceClassID, 0, newClassIDs, 0, classIDsByTraceClassID.length);
+				classIDsByTraceClassID = newClassIDs;
+			}
+			classIDsByTraceClassID[traceClassID] = classID;
+
+			// Grow the table if necessary, publishing the bigger one only after it has all of the old entries.
+			if(classID >= traceClassIDs.length) {
+				int[] newTraceClassIDs = new int[Math.max(classID + 1, traceClassIDs.length * 2)];
+				System.arraycopy(traceClassIDs, 0, newTraceClassIDs, 0, traceClassIDs.length);
+				newTraceClassIDs[classID] = traceClassID;
+				traceClassIDsByClassID = newTraceClassIDs;
+			}
+			else traceClassIDs[classID] = traceClassID;
+			
+			return traceClassID;
+			
+		}
+		
+	}
+	
+	private static ThreadTracer getActiveThreadTracer() throws IOException {
 		
+		if(shutdown) return null;
+
 		// Don't get the tracer if its initializing; this would lead to infinite recursion.
 		ThreadTracer tracer = tracers.get();
 		if(tracer.trace == null) tracer.init();
-		if(tracer.stopRequests > 0) return null;
+		if(tracer.isStopped()) return null;
+		return tracer;
+		
+	}
+
+	/**
+	 * Returns the current thread's tracer having marked the start of an event, or null if the event shouldn't be traced.
+	 * Whoever gets a tracer from this must call endEvent() once the event is written.
+	 */
+	private static ThreadTracer beginEvent(long iid) throws IOException {
+		
+		ThreadTracer tracer = getActiveThreadTracer();
+		if(tracer == null || !tracer.beginEvent(iid)) return null;
 		return tracer;
 		
 	}
@@ -396,361 +713,613 @@ public final class Tracer {
 		
 	public static void IINC(int value, long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
 
-		tracer.header(iid);
-		
-		tracer.trace.writeInt(value);
+		try {
+
+			tracer.header(iid);
+
+			tracer.writeIntValue(value);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
 
 	}
 
 	public static void PUTFIELD(long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
+
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
 
 	}
 
 	public static void PUTSTATIC(long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
+
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
 
 	}
 	public static void SETARRAY(long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
+
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
 
 	}
 	public static void SETLOCAL(long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
+
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
 
 	}
 	
 	public static void COMPINTS(long iid) throws IOException {
 		
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
-		
+
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 
 	public static void COMPZERO(long iid) throws IOException {
 		
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
-		
+
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 
 	public static void COMPREFS(long iid) throws IOException {
 		
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
-		
+
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 
 	public static void COMPNULL(long iid) throws IOException {
 		
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
-		
+
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 
 	public static void TABLEBRANCH(long iid) throws IOException {
 		
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
-		
+
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 
 	public static void INVOKE_VIRTUAL(long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
-		
+
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 
 	public static void INVOKE_SPECIAL(long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
-		
+
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 
 	public static void INVOKE_STATIC(long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
-		
+
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 
 	public static void INVOKE_INTERFACE(long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
-		
+
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 
 	public static void RETURN(long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
-	
+
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 
 	public static void START_METHOD(long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
-	
-	}	
+
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
+	}
 
 	public static void EXCEPTION_THROWN(long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
-	
-	}	
+
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
+	}
 
 	public static void EXCEPTION_CAUGHT(long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
-	
-	}	
+
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
+	}
 
 	public static void MONITOR(long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
-	
-	}	
+
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
+	}
 	
 	public static void INTEGER_PRODUCED(int value, long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
-		
-		tracer.trace.writeInt(value);
-		
+
+		try {
+
+			tracer.header(iid);
+
+			tracer.writeIntValue(value);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 
 	public static void SHORT_PRODUCED(short value, long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
-		
-		tracer.trace.writeShort(value);			
-		
+
+		try {
+
+			tracer.header(iid);
+
+			tracer.writeShortValue(value);			
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 
 	public static void BYTE_PRODUCED(byte value, long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
-		
-		tracer.trace.writeByte(value);			
+
+		try {
+
+			tracer.header(iid);
+
+			tracer.trace.writeByte(value);			
+
+		}
+		finally {
+			tracer.endEvent();
+		}
 
 	}
 
 	public static void FLOAT_PRODUCED(float value, long iid) throws IOException {
 		
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
-		
-		tracer.trace.writeFloat(value);			
+
+		try {
+
+			tracer.header(iid);
+
+			tracer.trace.writeFloat(value);			
+
+		}
+		finally {
+			tracer.endEvent();
+		}
 
 	}
 
 	public static void BOOLEAN_PRODUCED(boolean value, long iid) throws IOException {
 		
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
 
-		tracer.header(iid);
-		tracer.trace.writeBoolean(value);			
-		
+		try {
+
+			tracer.header(iid);
+			tracer.trace.writeBoolean(value);			
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 
 	public static void CHARACTER_PRODUCED(char value, long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
-		
-		tracer.trace.writeChar(value);			
-		
+
+		try {
+
+			tracer.header(iid);
+
+			tracer.writeCharValue(value);			
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 
 	public static void DOUBLE_PRODUCED(double value, long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
-		
-		tracer.trace.writeDouble(value);			
-		
+
+		try {
+
+			tracer.header(iid);
+
+			tracer.trace.writeDouble(value);			
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 
 	public static void LONG_PRODUCED(long value, long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
-		
-		tracer.trace.writeLong(value);			
-		
+
+		try {
+
+			tracer.header(iid);
+
+			tracer.writeLongValue(value);			
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 
 	public static void OBJECT_PRODUCED(Object value, boolean inInit, long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
 
-		long id = getUniqueObjectID(value);
-		tracer.trace.writeLong(id);
+		try {
 
-		ImmutableKind kind = null;
-		if(!inInit && value != null && !immutablesWritten.contains(id) && (kind = ImmutableKind.classToType(value)) != null)
-			synchronized(Tracer.class) {
+			tracer.header(iid);
 
-				// Remember that we wrote it.
-				immutablesWritten.add(id);
-				
-				// Write the type of object and its id, then write the object.
-				immutables.writeByte(kind.ordinal());
-				immutables.writeLong(id);
-		
-				tracer.stop();
-				kind.writeObject(value, immutables);
-				tracer.start();
-				
-			}
+			long id = getUniqueObjectID(tracer, value);
+			tracer.writeLongValue(id);
+
+			ImmutableKind kind = null;
+			if(!inInit && value != null && !immutablesWritten.contains(id) && (kind = ImmutableKind.classToType(value)) != null)
+				synchronized(Tracer.class) {
+
+					// Remember that we wrote it.
+					immutablesWritten.add(id);
+
+					// Write the type of object and its id, then write the object.
+					immutables.writeByte(kind.ordinal());
+					immutables.writeLong(id);
+
+					tracer.stop();
+					kind.writeObject(value, immutables);
+					tracer.start();
+
+				}
+
+		}
+		finally {
+			tracer.endEvent();
+		}
 
 	}
 
 	public static void CONSTANT_INTEGER_PRODUCED(long iid) throws IOException {
 		
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
-		
+
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 
 	public static void CONSTANT_SHORT_PRODUCED(long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
-		
+
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 
 	public static void CONSTANT_BYTE_PRODUCED(long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
+
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
 
 	}
 
 	public static void CONSTANT_FLOAT_PRODUCED(long iid) throws IOException {
 		
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
+
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
 
 	}
 
 	public static void CONSTANT_BOOLEAN_PRODUCED(long iid) throws IOException {
 		
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
-		
+
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 
 	public static void CONSTANT_CHARACTER_PRODUCED(long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
-		
+
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 
 	public static void CONSTANT_DOUBLE_PRODUCED(long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
-		
+
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 
 	public static void CONSTANT_LONG_PRODUCED(long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
-		
+
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 
 	/**
@@ -761,29 +1330,50 @@ public final class Tracer {
 	 */
 	public static void CONSTANT_OBJECT_PRODUCED(long iid) throws IOException {
 		
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
+
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
 
 	}
 
 	public static void THIS_PRODUCED(long iid) throws IOException {
 		
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
+
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
 
 	}
 
 	public static void INITIALIZER(long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
 
-		tracer.header(iid);
-		
+		try {
+
+			tracer.header(iid);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 	
 	public static void NEW_OBJECT(Object value, boolean inInit, long iid) throws IOException {
@@ -794,130 +1384,198 @@ public final class Tracer {
 
 	public static void NEW_ARRAY(Object value, long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
 
-		tracer.header(iid);
+		try {
 
-		DataOutputStream trace = tracer.trace;
-		
-		trace.writeLong(getUniqueObjectID(value));
+			tracer.header(iid);
+
+			tracer.writeLongValue(getUniqueObjectID(tracer, value));
+
+		}
+		finally {
+			tracer.endEvent();
+		}
 
 	}
 
 	public static void INTEGER_ARG(int value, long iid) throws IOException {
 		
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
 
-		tracer.trace.writeInt(value);
-		
+		try {
+
+			tracer.header(iid);
+
+			tracer.writeIntValue(value);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 
 	public static void SHORT_ARG(short value, long iid) throws IOException {
 		
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
 
-		tracer.trace.writeShort(value);
-		
+		try {
+
+			tracer.header(iid);
+
+			tracer.writeShortValue(value);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 
 	public static void BYTE_ARG(byte value, long iid) throws IOException {
 		
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
 
-		tracer.trace.writeByte(value);
-				
+		try {
+
+			tracer.header(iid);
+
+			tracer.trace.writeByte(value);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 
 	public static void FLOAT_ARG(float value, long iid) throws IOException {
 		
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
 
-		tracer.header(iid);
+		try {
+
+			tracer.header(iid);
 
-		tracer.trace.writeFloat(value);
+			tracer.trace.writeFloat(value);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
 
 	}
 
 	public static void BOOLEAN_ARG(boolean value, long iid) throws IOException {
 		
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
 
-		tracer.trace.writeBoolean(value);
-		
+		try {
+
+			tracer.header(iid);
+
+			tracer.trace.writeBoolean(value);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 
 	public static void CHARACTER_ARG(char value, long iid) throws IOException {
 		
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
 
-		tracer.trace.writeChar(value);
-		
+		try {
+
+			tracer.header(iid);
+
+			tracer.writeCharValue(value);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 
 	public static void DOUBLE_ARG(double value, long iid) throws IOException {
 		
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		
-		tracer.header(iid);
 
-		tracer.trace.writeDouble(value);
-		
+		try {
+
+			tracer.header(iid);
+
+			tracer.trace.writeDouble(value);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
+
 	}
 
 	public static void LONG_ARG(long value, long iid) throws IOException {
 		
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
 
-		tracer.header(iid);
+		try {
+
+			tracer.header(iid);
+
+			tracer.writeLongValue(value);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
 
-		tracer.trace.writeLong(value);
-		
 	}
 
 	public static void OBJECT_ARG(Object value, long iid) throws IOException {
 		
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
 
-		tracer.header(iid);
+		try {
 
-		long id = getUniqueObjectID(value);
-		tracer.trace.writeLong(id);
-		
-		if(value instanceof String && !immutablesWritten.contains(id))
-			synchronized(Tracer.class) {
+			tracer.header(iid);
 
-				// Remember that we wrote it.
-				immutablesWritten.add(id);
-				
-				// Write the type of object and its id, then write the object.
-				immutables.writeByte(ImmutableKind.STRING.ordinal());
-				immutables.writeLong(id);
-		
-				tracer.stop();
-				ImmutableKind.STRING.writeObject(value, immutables);
-				tracer.start();
-				
-			}
+			long id = getUniqueObjectID(tracer, value);
+			tracer.writeLongValue(id);
+
+			if(value instanceof String && !immutablesWritten.contains(id))
+				synchronized(Tracer.class) {
+
+					// Remember that we wrote it.
+					immutablesWritten.add(id);
+
+					// Write the type of object and its id, then write the object.
+					immutables.writeByte(ImmutableKind.STRING.ordinal());
+					immutables.writeLong(id);
+
+					tracer.stop();
+					ImmutableKind.STRING.writeObject(value, immutables);
+					tracer.start();
+
+				}
+
+		}
+		finally {
+			tracer.endEvent();
+		}
 
 	}
 	
@@ -957,24 +1615,20 @@ public final class Tracer {
 
 			);
 
-		if(tracer != null) tracer.start();
-
 		if(tracer == null) return g;
 
-		tracer.stop();
-		
 		// We aren't necessarily getting graphics on a window; it may be a component within a window
 		// that's being repainted. So we need to find out what the translation origin is based on the components window.
+		// This calls into AWT, which may block, so we do it before the event begins, so that shutdown() isn't left waiting on it.
 		int translateX = 0, translateY = 0;
 		int width = 0, height = 0;
 		java.awt.Window window = null;
 		int windowX = 0, windowY = 0;
-		long windowID = 0;
 
 		if(c instanceof java.awt.Component) {
-			
+		
 			java.awt.Component comp = (java.awt.Component)c;
-			
+		
 			if(c instanceof java.awt.Window) {
 				window = (java.awt.Window)c;
 			}
@@ -990,69 +1644,83 @@ public final class Tracer {
 					translateY = comp.getY();
 				}
 			}
-		}
-		
-		tracer.header(iid);
-		DataOutputStream trace = tracer.trace;
-
-		long id = 0;
-		boolean representsWindow = false;
-		
-		if(c instanceof java.awt.Component) {
-			if(window == null) {
-				id = getUniqueObjectID(c);
-				width = 0;
-				height = 0;
-			}
-			else {
-				representsWindow = true;
-				id = getUniqueObjectID(window);
+			if(window != null) {
 				width = window.getComponent(0).getWidth();
 				height = window.getComponent(0).getHeight();
+				windowX = window.getX();
+				windowY = window.getY();
 			}
 		}
 		else if(c instanceof java.awt.Image) {
-			id = getUniqueObjectID(c);
 			width = ((java.awt.Image)c).getWidth(null);
 			height = ((java.awt.Image)c).getHeight(null);
 		}
 		else if(c instanceof java.awt.peer.ComponentPeer){
-			id = getUniqueObjectID(c);
 			width = ((java.awt.peer.ComponentPeer)c).getBounds().width;
 			height = ((java.awt.peer.ComponentPeer)c).getBounds().height;
 		}
-		else {
+
+		tracer.start();
+
+		if(!tracer.beginEvent(iid)) return g;
+
+		try {
+
+			tracer.stop();
+		
+			tracer.header(iid);
+			ThreadTraceWriter trace = tracer.trace;
+
+			long id = 0;
+			long windowID = 0;
+			boolean representsWindow = false;
+		
+			if(c instanceof java.awt.Component) {
+				if(window == null) {
+					id = getUniqueObjectID(tracer, c);
+				}
+				else {
+					representsWindow = true;
+					id = getUniqueObjectID(tracer, window);
+				}
+			}
+			else if(c instanceof java.awt.Image || c instanceof java.awt.peer.ComponentPeer) {
+				id = getUniqueObjectID(tracer, c);
+			}
+			else {
 			
-			debug.write("Not handling " + c + "\n");
-			debug.write("Class is " + c.getClass() + "\n");
-			debug.write("Instanceof java.awt.Component? " + (c instanceof java.awt.Component) + "\n");
+				debug.write("Not handling " + c + "\n");
+				debug.write("Class is " + c.getClass() + "\n");
+				debug.write("Instanceof java.awt.Component? " + (c instanceof java.awt.Component) + "\n");
 
-			id = getUniqueObjectID(c);
-		}
+				id = getUniqueObjectID(tracer, c);
+			}
 
-		if(window != null) {
-			windowX = window.getX();
-			windowY = window.getY();
-			windowID = getUniqueObjectID(window);
-		}
+			if(window != null)
+				windowID = getUniqueObjectID(tracer, window);
 		
-		trace.writeBoolean(representsWindow);
+			trace.writeBoolean(representsWindow);
 		
-		trace.writeLong(id);
-		trace.writeLong(getUniqueObjectID(g));
+			trace.writeLong(id);
+			trace.writeLong(getUniqueObjectID(tracer, g));
 
-		trace.writeShort(width);
-		trace.writeShort(height);
+			trace.writeShort(width);
+			trace.writeShort(height);
 		
-		trace.writeShort(translateX);
-		trace.writeShort(translateY);
+			trace.writeShort(translateX);
+			trace.writeShort(translateY);
 
-		trace.writeLong(windowID);
+			trace.writeLong(windowID);
 
-		trace.writeShort(windowX);
-		trace.writeShort(windowY);
+			trace.writeShort(windowX);
+			trace.writeShort(windowY);
 
-		tracer.start();
+			tracer.start();
+
+		}
+		finally {
+			tracer.endEvent();
+		}
 
 		return g;
 
@@ -1079,14 +1747,21 @@ public final class Tracer {
 		
 		if(tracer != null) tracer.start();
 		
-		if(tracer == null) return newG;
+		if(tracer == null || !tracer.beginEvent(iid)) return newG;
 
-		tracer.header(iid);
+		try {
 
-		DataOutputStream trace = tracer.trace;
+			tracer.header(iid);
 
-		trace.writeLong(getUniqueObjectID(g));
-		trace.writeLong(getUniqueObjectID(newG));
+			ThreadTraceWriter trace = tracer.trace;
+
+			trace.writeLong(getUniqueObjectID(tracer, g));
+			trace.writeLong(getUniqueObjectID(tracer, newG));
+
+		}
+		finally {
+			tracer.endEvent();
+		}
 		
 		return newG;
 		
@@ -1094,19 +1769,26 @@ public final class Tracer {
 
 	public static void MOUSE_EVENT(Object source, int id, int x, int y, int button, long iid) throws IOException {
 		
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
 
-		tracer.header(iid);
+		try {
 
-		DataOutputStream trace = tracer.trace;
+			tracer.header(iid);
+
+			ThreadTraceWriter trace = tracer.trace;
+
+			trace.writeLong(getUniqueObjectID(tracer, source));
+			trace.writeInt(id);
+			trace.writeInt(x);
+			trace.writeInt(y);
+			trace.writeInt(button);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
 
-		trace.writeLong(getUniqueObjectID(source));
-		trace.writeInt(id);
-		trace.writeInt(x);
-		trace.writeInt(y);
-		trace.writeInt(button);
-		
 	}
 	
 	// We're recording the arguments passed to
@@ -1116,48 +1798,70 @@ public final class Tracer {
 	// Note that we're skipping "when".
 	public static void KEY_EVENT(Object source, int id, int modifiers, int keyCode, char keyChar, int keyLocation, long iid) throws IOException {
 
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
 
-		tracer.header(iid);
+		try {
+
+			tracer.header(iid);
+
+			ThreadTraceWriter trace = tracer.trace;
+
+			trace.writeLong(getUniqueObjectID(tracer, source));
+			trace.writeInt(id);
+			trace.writeInt(modifiers);
+			trace.writeInt(keyCode);
+			trace.writeChar(keyChar);
+			trace.writeInt(keyLocation);
+
+		}
+		finally {
+			tracer.endEvent();
+		}
 
-		DataOutputStream trace = tracer.trace;
-			
-		trace.writeLong(getUniqueObjectID(source));
-		trace.writeInt(id);
-		trace.writeInt(modifiers);
-		trace.writeInt(keyCode);
-		trace.writeChar(keyChar);
-		trace.writeInt(keyLocation);
-		
 	}
 	
 	public static void WINDOW(Object window, long iid) throws IOException {
 		
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
 
-		tracer.header(iid);
+		try {
+
+			tracer.header(iid);
+
+			tracer.trace.writeLong(getUniqueObjectID(tracer, window));
+
+		}
+		finally {
+			tracer.endEvent();
+		}
 
-		tracer.trace.writeLong(getUniqueObjectID(window));
-		
 	}
 
 	public static void IMAGE_SIZE(Object image, long iid) throws IOException {
 		
-		ThreadTracer tracer = getActiveThreadTracer();
+		ThreadTracer tracer = beginEvent(iid);
 		if(tracer == null) return;
-		if(image == null) return;
 
-		tracer.stop();
+		try {
 
-		tracer.header(iid);
-		tracer.trace.writeLong(getUniqueObjectID(image));
-		tracer.trace.writeInt(((java.awt.Image)image).getWidth(null));
-		tracer.trace.writeInt(((java.awt.Image)image).getHeight(null));
+			if(image == null) return;
+
+			tracer.stop();
+
+			tracer.header(iid);
+			tracer.trace.writeLong(getUniqueObjectID(tracer, image));
+			tracer.trace.writeInt(((java.awt.Image)image).getWidth(null));
+			tracer.trace.writeInt(((java.awt.Image)image).getHeight(null));
+
+			tracer.start();
+
+		}
+		finally {
+			tracer.endEvent();
+		}
 
-		tracer.start();
-	
 	}
 
 }
\ No newline at end of file
@@ -87,12 +87,30 @@ public class DebugMenu extends JLabel {
 				showFile();
 			}});
 
+		final int segment = whylineUI.getTrace().getSegment();
+
+		WhylineMenuItem previousSegment = new WhylineMenuItem("Load previous segment of events", new ActionListener() { 
+			public void actionPerformed(ActionEvent e) { 
+				whylineUI.loadSegment(segment - 1);
+			}});
+		previousSegment.setEnabled(whylineUI.canLoadSegment(segment - 1));
+
+		WhylineMenuItem nextSegment = new WhylineMenuItem("Load next segment of events", new ActionListener() { 
+			public void actionPerformed(ActionEvent e) { 
+				whylineUI.loadSegment(segment + 1);
+			}});
+		nextSegment.setEnabled(whylineUI.canLoadSegment(segment + 1));
+
 		popup.add(saveas);
 		popup.add(breakdown);
 		popup.add(usage);
 		popup.add(browser);
 		popup.add(memory);
 		popup.add(showfile);
+		if(whylineUI.getTrace().isTruncated()) {
+			popup.add(previousSegment);
+			popup.add(nextSegment);
+		}
 
 		popup.show(DebugMenu.this, x, y);
 				
@@ -157,10 +157,20 @@ public final class WhylineUI extends WhylineWindow implements Asker {
 	
 	public WhylineUI(LauncherUI launcher, File path, Mode mode) throws IOException, AnalysisException, ClassNotFoundException, InstantiationException, IllegalAccessException, UnsupportedLookAndFeelException {
 		
+		this(launcher, path, mode, -1);
+		
+	}
+
+	/**
+	 * @param segment The segment of a trace too long to load at once to load, or -1 for the one in the Whyline's preferences.
+	 */
+	public WhylineUI(LauncherUI launcher, File path, Mode mode, int segment) throws IOException, AnalysisException, ClassNotFoundException, InstantiationException, IllegalAccessException, UnsupportedLookAndFeelException {
+		
 		this.launcher = launcher;
 		this.debuggingMode = mode;
 
 		trace = new Trace(new LoadingListener(), path);
+		if(segment >= 0) trace.setSegmentToLoad(segment);
 		
 		persistentState = new PersistentState(this);
 
@@ -792,6 +802,32 @@ public final class WhylineUI extends WhylineWindow implements Asker {
 
 	}
 		
+	/**
+	 * True if the trace is too long to load at once and has another segment to load. Saved traces only have the segment they saved.
+	 */
+	public boolean canLoadSegment(int segment) {
+		
+		return trace.isDoneLoading() && !trace.isSaved() && segment >= 0 && segment < trace.getNumberOfSegments() && segment != trace.getSegment();
+		
+	}
+	
+	/**
+	 * Closes this window and opens the given segment of the same trace in a new one.
+	 */
+	public void loadSegment(int segment) {
+		
+		File path = trace.getPath();
+		close();
+		try {
+			if(launcher != null) launcher.analyzeTrace(path, debuggingMode, segment);
+			else new WhylineUI(null, path, debuggingMode, segment);
+		} catch(Exception e) {
+			e.printStackTrace();
+			JOptionPane.showMessageDialog(null, "Couldn't load segment " + (segment + 1) + ": " + e.getMessage());
+		}
+		
+	}
+
 	/**
 	 * Returns true if the close was canceled.
 	 */
@@ -1536,6 +1572,10 @@ public final class WhylineUI extends WhylineWindow implements Asker {
 					timeUI.setProgress(1.0);
 					
 					log(new Note("" + NumberFormat.getNumberInstance().format(trace.getNumberOfEvents()) + " events, " + seconds + " seconds"));
+					
+					// Traces with too many events to load at once are truncated to one segment; say which, so the user knows what's missing.
+					if(trace.isTruncated())
+						log(new Note("Loaded only " + trace.getSegmentDescription() + "; load the previous or next segment from the Whyline menu to see the rest"));
 
 					setInputTime(
 						getTrace().getIOHistory().getNumberOfEvents() > 0 ?
@@ -1572,7 +1612,11 @@ public final class WhylineUI extends WhylineWindow implements Asker {
 				
 		public void exceptionDuringLoading(Exception e) {
 			
-			JOptionPane.showMessageDialog(WhylineUI.this, "<html><p>There was an exception during the loading of the trace:<br><br>" + e.getMessage() + "</html>", "Trace loading error...", JOptionPane.ERROR_MESSAGE);
+			// Old traces aren't an error, just something to record again.
+			if(Trace.SAVED_BY_OLDER_VERSION_MESSAGE.equals(e.getMessage()))
+				JOptionPane.showMessageDialog(WhylineUI.this, e.getMessage(), "Can't load this trace...", JOptionPane.INFORMATION_MESSAGE);
+			else
+				JOptionPane.showMessageDialog(WhylineUI.this, "<html><p>There was an exception during the loading of the trace:<br><br>" + e.getMessage() + "</html>", "Trace loading error...", JOptionPane.ERROR_MESSAGE);
 			saveIfNecessaryThenClose();
 			
 		}
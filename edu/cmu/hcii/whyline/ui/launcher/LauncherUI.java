@@ -467,7 +467,8 @@ public class LauncherUI extends WhylineWindow {
 						Util.commas(metadata.getNumberOfEvents()) + " events" + ", " +
 						Util.commas((int)metadata.getNumberOfObjects())+ " objects" + "\n" +
 						"~" + Util.commas(expectedRetainedSize) + " mb required, " + Util.commas(maxMemory) + " available" +
-						(wontFit ? "\n(Need to restart with a higher maximum heap size)" : "")
+						(wontFit ? "\n(Need to restart with a higher maximum heap size)" : "") +
+						(Trace.wasSavedByOlderVersion(traceDirectory) ? "\n(Saved by an older version of the Whyline; record the program again to analyze it)" : "")
 				);
 				
 				selectionDetails.setForeground(wontFit ? UI.ERROR_COLOR : UI.getControlTextColor());
@@ -604,9 +605,23 @@ public class LauncherUI extends WhylineWindow {
 		
 	private void analyzeTrace(File traceDirectory, WhylineUI.Mode mode) {
 		
+		analyzeTrace(traceDirectory, mode, -1);
+		
+	}
+
+	/**
+	 * Opens the given segment of the trace, or the one in the Whyline's preferences if the segment is negative.
+	 */
+	public void analyzeTrace(File traceDirectory, WhylineUI.Mode mode, int segment) {
+		
+		if(Trace.wasSavedByOlderVersion(traceDirectory)) {
+			JOptionPane.showMessageDialog(this, Trace.SAVED_BY_OLDER_VERSION_MESSAGE, "Can't load this trace...", JOptionPane.INFORMATION_MESSAGE);
+			return;
+		}
+		
 		try {
 			
-			openWindows.add(new WhylineUI(this, traceDirectory, mode));
+			openWindows.add(new WhylineUI(this, traceDirectory, mode, segment));
 			setVisible(false);
 			
 		} catch (Exception e) {
@@ -909,6 +924,8 @@ public class LauncherUI extends WhylineWindow {
 		private final WhylineButton changeWhylineHome;
 		private final WhylineLabel whylineHomeLabel;
 		private final WhylineTextField sourcePath;
+		private final WhylineTextField segment;
+		private final WhylineCheckBox mapEventIDs;
 
 		public PreferencesPanel() {
 			
@@ -960,13 +977,43 @@ public class LauncherUI extends WhylineWindow {
 			});
 			pathPanel.add(sourcePath);
 
+			// Traces with more events than fit in 32-bit event IDs are loaded one segment at a time. Segments are numbered from 1 here.
+			WhylinePanel segmentPanel = new WhylinePanel(new FlowLayout(FlowLayout.LEFT, UI.getPanelPadding(), UI.getPanelPadding()));
+			segmentPanel.add(new WhylineTitleLabel("Segment of long traces to load"));
+			segment = new WhylineTextField("" + (Whyline.getEventSegment() + 1), 5, "");
+			segment.getDocument().addDocumentListener(new DocumentListener() {
+				public void changedUpdate(DocumentEvent e) { validate(); }
+				public void insertUpdate(DocumentEvent e) {validate(); }
+				public void removeUpdate(DocumentEvent e) {validate(); }
+				private void validate() {
+					int number = 0;
+					try { number = Integer.parseInt(segment.getText().trim()); } catch(NumberFormatException ex) {}
+					segment.setForeground(number > 0 ? UI.getControlTextColor() : UI.ERROR_COLOR);
+					if(number > 0) Whyline.setEventSegment(number - 1);
+				}
+			});
+			segmentPanel.add(segment);
+
+			// Keeping event kinds and instruction IDs in one mapped file uses more disk but avoids swapping blocks during queries.
+			WhylinePanel mapPanel = new WhylinePanel(new FlowLayout(FlowLayout.LEFT, UI.getPanelPadding(), UI.getPanelPadding()));
+			mapEventIDs = new WhylineCheckBox("Map event IDs into memory when loading new recordings");
+			mapEventIDs.setSelected(Whyline.isMappingEventIDs());
+			mapEventIDs.addItemListener(new ItemListener() {
+				public void itemStateChanged(ItemEvent e) {
+					Whyline.setMappingEventIDs(mapEventIDs.isSelected());
+				}
+			});
+			mapPanel.add(mapEventIDs);
+
 			WhylinePanel fields = new WhylinePanel();
 			fields.setLayout(new BoxLayout(fields, BoxLayout.Y_AXIS));
 			
 			add(fields, BorderLayout.NORTH);
 			
 			fields.add(whylineHomePanel);
-			fields.add(pathPanel);						
+			fields.add(pathPanel);
+			fields.add(segmentPanel);
+			fields.add(mapPanel);
 			add(new WhylineButton(new AbstractAction("All done!") {
 				public void actionPerformed(ActionEvent e) {
 					showMainPanel();
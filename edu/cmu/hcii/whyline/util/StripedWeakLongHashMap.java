@@ -0,0 +1,91 @@
+package edu.cmu.hcii.whyline.util;
+
+/**
+ * A thread safe weak identity map from objects to longs, made of several WeakLongHashMaps, each guarded by its own lock.
+ * A key's stripe is chosen from the high bits of its System.identityHashCode(), since WeakLongHashMap indexes its
+ * table with the low bits. Threads looking up different objects rarely contend for the same lock, unlike a single
+ * synchronized WeakLongHashMap.
+ *
+ * Like WeakLongHashMap, 0 means "no value," so 0 should never be stored.
+ *
+ * @author Andrew J. Ko
+ *
+ */
+public final class StripedWeakLongHashMap<K> {
+
+	// Must be a power of two.
+	private static final int DEFAULT_NUMBER_OF_STRIPES = 64;
+
+	private final WeakLongHashMap<K>[] stripes;
+	private final int stripeShift;
+
+	public StripedWeakLongHashMap(int initialCapacity) {
+
+		this(initialCapacity, DEFAULT_NUMBER_OF_STRIPES);
+
+	}
+
+	@SuppressWarnings("unchecked")
+	public StripedWeakLongHashMap(int initialCapacity, int numberOfStripes) {
+
+		if(numberOfStripes <= 0 || Integer.bitCount(numberOfStripes) != 1)
+			throw new IllegalArgumentException("The number of stripes must be a positive power of two, but was " + numberOfStripes);
+
+		stripes = (WeakLongHashMap<K>[])new WeakLongHashMap<?>[numberOfStripes];
+		for(int i = 0; i < numberOfStripes; i++)
+			stripes[i] = new WeakLongHashMap<K>(Math.max(16, initialCapacity / numberOfStripes));
+
+		// We use the top bits of the 32 bit hash to choose the stripe.
+		stripeShift = 32 - Integer.numberOfTrailingZeros(numberOfStripes);
+
+	}
+
+	private WeakLongHashMap<K> getStripe(Object key) {
+
+		// Spread the bits first, since identity hash codes don't always use the high bits.
+		int h = System.identityHashCode(key) * 0x9E3779B9;
+		return stripes.length == 1 ? stripes[0] : stripes[h >>> stripeShift];
+
+	}
+
+	/**
+	 * Returns the value associated with the given key, or 0 if there isn't one.
+	 */
+	public long get(Object key) {
+
+		WeakLongHashMap<K> stripe = getStripe(key);
+		synchronized(stripe) {
+			return stripe.get(key);
+		}
+
+	}
+
+	/**
+	 * Associates the given value with the given key, unless the key already has one.
+	 *
+	 * @return The value already associated with the key, or 0 if the given value was stored.
+	 */
+	public long putIfAbsent(K key, long value) {
+
+		WeakLongHashMap<K> stripe = getStripe(key);
+		synchronized(stripe) {
+			long existing = stripe.get(key);
+			if(existing != 0) return existing;
+			stripe.put(key, value);
+			return 0;
+		}
+
+	}
+
+	public int size() {
+
+		int size = 0;
+		for(WeakLongHashMap<K> stripe : stripes)
+			synchronized(stripe) {
+				size += stripe.size();
+			}
+		return size;
+
+	}
+
+}